@@ -0,0 +1,149 @@
+package benchmark;
+
+import common.Message;
+import common.MessageTypes;
+import common.Utils;
+import server.cluster.ElectionService;
+import server.cluster.MembershipView;
+import server.cluster.Node;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures how long an election request takes to go around the whole ring, for each cluster size,
+ * number of failed nodes and ring walk mode.
+ * Every node is simulated in this JVM by a TCP server on its own loopback address (127.0.0.x), which
+ * answers like a TCPListener and propagates the request like a MembershipService with older logs.
+ * Failed nodes accept connections but never reply, like a hung process.
+ */
+public class ElectionBenchmark {
+    private static final int basePort = 9500;
+    private static int runs = 0;
+    private static final long seed = 42;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 3) {
+            System.out.println("Wrong number of arguments. Please invoke the program as:");
+            System.out.println("java benchmark.ElectionBenchmark [<sizes>] [<failures>] [<trials>]");
+            System.out.println("e.g. java benchmark.ElectionBenchmark 4,8,16,32 0,1,2 3");
+            System.exit(1);
+        }
+
+        final int[] sizes = parseList(args.length > 0 ? args[0] : "4,8,16,32");
+        final int[] failures = parseList(args.length > 1 ? args[1] : "0,1,2");
+        final int trials = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        System.out.printf("%-15s %6s %7s %12s %12s%n", "mode", "nodes", "failed", "median (ms)", "max (ms)");
+        for (ElectionService.WalkMode mode : ElectionService.WalkMode.values()) {
+            ElectionService.setWalkMode(mode);
+            for (int size : sizes) {
+                for (int failed : failures) {
+                    if (failed >= size) continue;
+
+                    long[] latencies = new long[trials];
+                    for (int trial = 0; trial < trials; ++trial) {
+                        // Only the first trial of each configuration starts without suspected nodes
+                        if (trial == 0) ElectionService.clearSuspicions();
+                        latencies[trial] = runElection(size, failed);
+                    }
+
+                    Arrays.sort(latencies);
+                    System.out.printf("%-15s %6d %7d %12d %12d%n", mode, size, failed,
+                            latencies[trials / 2], latencies[trials - 1]);
+                }
+            }
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * @return milliseconds until the election request started by the first node comes back to it
+     */
+    private static long runElection(int size, int failed) throws Exception {
+        // Every run gets its own port, so sockets still closing from the last run do not collide
+        final int port = basePort + runs++;
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < size; ++i)
+            nodes.add(new Node("127.0.0." + (i + 2), port));
+
+        MembershipView view = MembershipView.empty();
+        for (Node node : nodes) view = view.withNode(node);
+        final NavigableMap<String, Node> nodeMap = view.nodes();
+
+        final Node origin = nodes.get(0);
+        List<Node> candidates = new ArrayList<>(nodes.subList(1, size));
+        Collections.shuffle(candidates, new Random(seed + size));
+        Set<Node> failedNodes = new HashSet<>(candidates.subList(0, failed));
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        CountDownLatch electionDone = new CountDownLatch(1);
+        List<ServerSocket> serverSockets = new ArrayList<>();
+        try {
+            for (Node node : nodes) {
+                ServerSocket serverSocket = new ServerSocket(node.getPort(), 50, InetAddress.getByName(node.getId()));
+                serverSockets.add(serverSocket);
+                boolean isFailed = failedNodes.contains(node);
+                executor.submit(() -> serve(node, serverSocket, isFailed, nodeMap, origin, electionDone, executor));
+            }
+
+            String body = origin.getId() + Utils.newLine + origin.getId() + " 0" + Utils.newLine;
+            Message request = new Message(MessageTypes.REQUEST.getCode(), MessageTypes.ELECTION_REQUEST.getCode(),
+                    body.getBytes(StandardCharsets.UTF_8));
+
+            long start = System.nanoTime();
+            ElectionService.propagateRequest(origin.getId(), nodeMap, request);
+            if (!electionDone.await(5, TimeUnit.MINUTES))
+                throw new TimeoutException("Election did not finish");
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            for (ServerSocket serverSocket : serverSockets) serverSocket.close();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void serve(Node node, ServerSocket serverSocket, boolean isFailed, NavigableMap<String, Node> nodeMap,
+                              Node origin, CountDownLatch electionDone, ExecutorService executor) {
+        List<Socket> hungSockets = new ArrayList<>();
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                if (isFailed) {
+                    hungSockets.add(socket); // Never replies
+                    continue;
+                }
+
+                Message message;
+                try (socket) {
+                    message = new Message(socket.getInputStream().readAllBytes());
+                    Message reply = new Message(MessageTypes.REPLY.getCode(), MessageTypes.OK.getCode(), null);
+                    socket.getOutputStream().write(reply.toBytes());
+                }
+
+                if (!message.getAction().equals(MessageTypes.ELECTION_REQUEST.getCode())) continue;
+
+                if (node.equals(origin)) electionDone.countDown();
+                else executor.submit(() -> ElectionService.propagateRequest(node.getId(), nodeMap, message));
+            }
+        } catch (IOException ignored) {
+            // Server socket closed at the end of the run
+        } finally {
+            for (Socket socket : hungSockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static int[] parseList(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+}
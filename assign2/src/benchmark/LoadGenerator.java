@@ -0,0 +1,300 @@
+package benchmark;
+
+import client.KVClient;
+import common.Message;
+import common.MessageTypes;
+import common.Utils;
+import server.Server;
+import server.metrics.Histogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * End-to-end load test of a local cluster. Starts one Store process per loopback address (127.0.0.x), joins them,
+ * loads the key space and then runs concurrent clients with a mix of get, put and delete requests.
+ * Keys are picked with a Zipfian popularity, so a few keys get most of the requests, like in real workloads.
+ * Optionally, the last node leaves and joins again periodically, to see the effect of rebalancing on the clients.
+ * Prints the latency percentiles of each operation and the throughput of every second of the run.
+ */
+public class LoadGenerator {
+    private static final String multicastAddr = "224.0.0.7";
+    private static final int multicastPort = 4447;
+    private static final int basePort = 9100;
+    private static final int numKeys = 1000;
+    private static final double zipfExponent = 0.99;
+    private static final int preloadBatchSize = 50;
+    private static final long joinTimeoutMs = 20000;
+    private static final long primeJoinMs = 4000; // The first node waits for every join retransmission
+    private static final long settleMs = 1000; // Transfers and UDP listener start after the membership is known
+    private static final long seed = 42;
+
+    private static final String[] operations = {"get", "put", "delete"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 6) {
+            System.out.println("Wrong number of arguments. Please invoke the program as:");
+            System.out.println("java benchmark.LoadGenerator [<nodes>] [<clients>] [<seconds>] [<get%,put%,delete%>] " +
+                    "[<value sizes>] [<churn seconds>]");
+            System.out.println("e.g. java benchmark.LoadGenerator 4 16 30 80,15,5 1024,16384 10");
+            System.exit(1);
+        }
+
+        final int numNodes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int numClients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        final int[] mix = parseList(args.length > 3 ? args[3] : "80,15,5");
+        final int[] valueSizes = parseList(args.length > 4 ? args[4] : "1024");
+        final int churnSeconds = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+        if (mix.length != operations.length) throw new IllegalArgumentException("The mix needs a get, put and delete share");
+
+        final File workDir = java.nio.file.Files.createTempDirectory("loadgen").toFile();
+        final List<Process> processes = new ArrayList<>();
+        try {
+            System.out.printf("Starting %d nodes in %s%n", numNodes, workDir);
+            for (int i = 1; i <= numNodes; ++i) processes.add(startStore(workDir, i));
+            Thread.sleep(2000); // RMI registries
+
+            for (int i = 1; i <= numNodes; ++i) joinAndWait(i, i);
+
+            final String[] keys = new String[numKeys];
+            for (int i = 0; i < numKeys; ++i) keys[i] = Utils.generateKey("loadgen-" + i);
+            final List<byte[]> values = buildValues(valueSizes);
+            preload(keys, values);
+
+            run(numNodes, numClients, seconds, mix, keys, values, churnSeconds);
+        } finally {
+            for (Process process : processes) process.destroy();
+            for (Process process : processes) process.waitFor(5, TimeUnit.SECONDS);
+            deleteRecursively(workDir);
+        }
+
+        System.exit(0);
+    }
+
+    private static void run(int numNodes, int numClients, int seconds, int[] mix, String[] keys, List<byte[]> values,
+                            int churnSeconds) throws Exception {
+        final Histogram[] latencies = new Histogram[operations.length];
+        for (int i = 0; i < operations.length; ++i) latencies[i] = new Histogram();
+        final Histogram[] perSecond = new Histogram[seconds + 1];
+        for (int i = 0; i <= seconds; ++i) perSecond[i] = new Histogram();
+        final AtomicLongArray errors = new AtomicLongArray(seconds + 1);
+        final Map<String, Long> failures = new ConcurrentHashMap<>();
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+        final ZipfGenerator zipf = new ZipfGenerator(numKeys, zipfExponent);
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+
+        ExecutorService clients = Executors.newFixedThreadPool(numClients + 1);
+        for (int c = 0; c < numClients; ++c) {
+            final Random random = new Random(seed + c);
+            // Every client starts from a different node, like independent applications
+            final KVClient client = new KVClient("127.0.0." + (c % numNodes + 1), basePort + c % numNodes + 1);
+            clients.submit(() -> {
+                while (System.nanoTime() < deadline) {
+                    int op = pickOperation(random, mix);
+                    String key = keys[zipf.next(random)];
+                    long opStart = System.nanoTime();
+                    String action;
+                    try {
+                        Message reply = switch (op) {
+                            case 0 -> client.get(key);
+                            case 1 -> client.put(key, values.get(random.nextInt(values.size())));
+                            default -> client.delete(key);
+                        };
+                        action = reply.getAction();
+                    } catch (IOException e) {
+                        action = "exception";
+                    }
+
+                    long now = System.nanoTime();
+                    int second = (int) Math.min(seconds, TimeUnit.NANOSECONDS.toSeconds(now - start));
+                    latencies[op].recordNanos(now - opStart);
+                    perSecond[second].recordNanos(now - opStart);
+                    if (!action.equals(MessageTypes.OK.getCode())) {
+                        errors.incrementAndGet(second);
+                        failures.merge(operations[op] + " " + action, 1L, Long::sum);
+                    }
+                }
+                return null;
+            });
+        }
+
+        if (churnSeconds > 0 && numNodes > 1) {
+            clients.submit(() -> {
+                // The last node leaves and joins again, the other nodes keep the ring alive
+                while (System.nanoTime() + TimeUnit.SECONDS.toNanos(churnSeconds) < deadline) {
+                    Thread.sleep(churnSeconds * 1000L);
+                    events.add(String.format("%3ds leave 127.0.0.%d", elapsedSeconds(start), numNodes));
+                    getServer(numNodes).leave();
+                    Thread.sleep(churnSeconds * 1000L);
+                    if (System.nanoTime() >= deadline) break;
+                    events.add(String.format("%3ds join  127.0.0.%d", elapsedSeconds(start), numNodes));
+                    getServer(numNodes).join();
+                }
+                return null;
+            });
+        }
+
+        clients.shutdown();
+        if (!clients.awaitTermination(seconds + 60L, TimeUnit.SECONDS)) clients.shutdownNow();
+
+        System.out.printf("%n%-10s %10s %10s %10s %10s %10s %10s%n", "operation", "count", "mean (us)", "p50",
+                "p99", "p99.9", "max");
+        for (int i = 0; i < operations.length; ++i) {
+            Histogram h = latencies[i];
+            System.out.printf("%-10s %10d %10d %10d %10d %10d %10d%n", operations[i], h.getCount(), h.getMeanMicros(),
+                    h.getPercentile(50), h.getPercentile(99), h.getPercentile(99.9), h.getMax());
+        }
+
+        System.out.printf("%n%-8s %10s %10s %12s%n", "second", "ops/s", "non-ok", "p99 (us)");
+        for (int s = 0; s < seconds; ++s)
+            System.out.printf("%-8d %10d %10d %12d%n", s, perSecond[s].getCount(), errors.get(s),
+                    perSecond[s].getPercentile(99));
+
+        if (!events.isEmpty()) {
+            System.out.println("\nMembership events:");
+            for (String event : events) System.out.println(event);
+        }
+
+        if (!failures.isEmpty()) {
+            System.out.println("\nNon-ok replies (a get of a deleted key is expected to fail):");
+            new TreeMap<>(failures).forEach((reply, count) -> System.out.printf("%-24s %8d%n", reply, count));
+        }
+    }
+
+    private static Process startStore(File workDir, int index) throws IOException {
+        List<String> command = new ArrayList<>(List.of("java", "-cp", System.getProperty("java.class.path")));
+        // Store settings given to the generator are passed on, e.g. -Dstore.durability=per_write
+        for (String property : List.of("store.durability", "log.level")) {
+            if (System.getProperty(property) != null)
+                command.add("-D" + property + "=" + System.getProperty(property));
+        }
+        command.addAll(List.of("server.Store", multicastAddr, Integer.toString(multicastPort), "127.0.0." + index,
+                Integer.toString(basePort + index)));
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(workDir);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(workDir, "node" + index + ".log"));
+        return builder.start();
+    }
+
+    /**
+     * Joins the node and waits until both the node and the first node see expectedSize nodes, i.e. the join
+     * multicast was received and the node got the membership of the cluster
+     */
+    private static void joinAndWait(int index, int expectedSize) throws Exception {
+        getServer(index).join();
+        if (index == 1) {
+            Thread.sleep(primeJoinMs);
+            System.out.println("Node 127.0.0.1 joined");
+            return;
+        }
+
+        final long deadline = System.currentTimeMillis() + joinTimeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(250);
+            if (ringSize(index) >= expectedSize && ringSize(1) >= expectedSize) {
+                Thread.sleep(settleMs);
+                System.out.printf("Node 127.0.0.%d joined%n", index);
+                return;
+            }
+        }
+        throw new TimeoutException("Node 127.0.0." + index + " did not join");
+    }
+
+    /**
+     * @return number of nodes in the ring of the node, or 0 if it is not answering yet
+     */
+    private static int ringSize(int index) {
+        KVClient client = new KVClient("127.0.0." + index, basePort + index);
+        try {
+            client.refreshTopology();
+            return client.getRing().size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static Server getServer(int index) throws Exception {
+        Registry registry = LocateRegistry.getRegistry("127.0.0." + index);
+        return (Server) registry.lookup("Server");
+    }
+
+    private static void preload(String[] keys, List<byte[]> values) throws IOException {
+        KVClient client = new KVClient("127.0.0.1", basePort + 1);
+        for (int i = 0; i < keys.length; i += preloadBatchSize) {
+            LinkedHashMap<String, byte[]> batch = new LinkedHashMap<>();
+            for (int j = i; j < Math.min(keys.length, i + preloadBatchSize); ++j)
+                batch.put(keys[j], values.get(j % values.size()));
+            client.mput(batch);
+        }
+        System.out.printf("Loaded %d keys%n", keys.length);
+    }
+
+    private static List<byte[]> buildValues(int[] sizes) {
+        final Random random = new Random(seed);
+        List<byte[]> values = new ArrayList<>();
+        for (int size : sizes) {
+            byte[] value = new byte[size];
+            random.nextBytes(value);
+            values.add(value);
+        }
+        return values;
+    }
+
+    private static int pickOperation(Random random, int[] mix) {
+        int total = Arrays.stream(mix).sum();
+        int pick = random.nextInt(total);
+        for (int i = 0; i < mix.length; ++i) {
+            if (pick < mix[i]) return i;
+            pick -= mix[i];
+        }
+        return 0;
+    }
+
+    private static long elapsedSeconds(long start) {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+    }
+
+    /**
+     * Picks ranks from 0 to n - 1 with probability proportional to 1 / (rank + 1)^exponent,
+     * by binary search on the cumulative distribution
+     */
+    private static class ZipfGenerator {
+        private final double[] cdf;
+
+        ZipfGenerator(int n, double exponent) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; ++i) {
+                sum += 1 / Math.pow(i + 1, exponent);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < n; ++i) cdf[i] /= sum;
+        }
+
+        int next(Random random) {
+            int index = Arrays.binarySearch(cdf, random.nextDouble());
+            return Math.min(cdf.length - 1, index >= 0 ? index : -index - 1);
+        }
+    }
+
+    private static int[] parseList(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children) deleteRecursively(child);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,232 @@
+package benchmark;
+
+import common.Message;
+import common.MessageTypes;
+import common.Utils;
+import server.Constants;
+import server.WorkerPools;
+import server.cluster.LogHandler;
+import server.cluster.MembershipView;
+import server.cluster.Node;
+import server.storage.GroupCommitter;
+import server.storage.ValueCodec;
+import server.storage.StorageService;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Throughput and allocation of the hot paths of the store: message codec, key hashing, value compression,
+ * ring lookups, local puts and gets (of big values too, split in chunks), and reading the membership log.
+ * Each benchmark is warmed up, then measured over several fixed-length iterations. Inputs come from a seeded
+ * random generator, so runs are comparable across commits. Allocation is the bytes allocated by the benchmark
+ * thread, as reported by the JVM, divided by the number of operations.
+ */
+public class MicroBenchmark {
+    private static final long seed = 42;
+    private static final int valueSize = 1024;
+    private static final int numKeys = 1024; // Power of two, so inputs are picked with a mask
+    private static final String benchNodeId = "127.0.0.250";
+
+    private static volatile long sink; // Keeps the JIT from removing the benchmarked work
+
+    private interface Operation {
+        long run(int i) throws Exception;
+    }
+
+    private record Benchmark(String name, Operation operation, Runnable afterIteration) {
+        Benchmark(String name, Operation operation) {
+            this(name, operation, () -> {});
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 4) {
+            System.out.println("Wrong number of arguments. Please invoke the program as:");
+            System.out.println("java benchmark.MicroBenchmark [<filter>] [<iterations>] [<iteration ms>] [<warmup iterations>]");
+            System.out.println("e.g. java benchmark.MicroBenchmark ring 5 1000 3");
+            System.exit(1);
+        }
+
+        final String filter = args.length > 0 ? args[0] : "";
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final long iterationMs = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        final int warmups = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        final Path benchFolder = Paths.get(Utils.generateFolderPath(benchNodeId));
+        Files.createDirectories(benchFolder);
+        final WorkerPools workerPools = new WorkerPools();
+        try {
+            List<Benchmark> benchmarks = buildBenchmarks(benchFolder, workerPools);
+
+            System.out.printf("%-32s %14s %12s %12s%n", "benchmark", "ops/s", "+- stddev", "bytes/op");
+            for (Benchmark benchmark : benchmarks) {
+                if (!benchmark.name().contains(filter)) continue;
+                measure(benchmark, iterations, iterationMs, warmups);
+            }
+        } finally {
+            workerPools.shutdownNow();
+            deleteRecursively(benchFolder.toFile());
+            //noinspection ResultOfMethodCallIgnored
+            benchFolder.getParent().toFile().delete(); // Only removed if no node stored data there
+        }
+
+        System.exit(0);
+    }
+
+    private static List<Benchmark> buildBenchmarks(Path benchFolder, WorkerPools workerPools) throws IOException {
+        final Random random = new Random(seed);
+        final List<Benchmark> benchmarks = new ArrayList<>();
+
+        final byte[] value = new byte[valueSize];
+        random.nextBytes(value);
+        final String[] keys = new String[numKeys];
+        for (int i = 0; i < numKeys; ++i) keys[i] = Utils.generateKey(Long.toString(random.nextLong()));
+
+        // Message codec
+        final Message putMessage = new Message(MessageTypes.REQUEST.getCode(), MessageTypes.PUT.getCode(), value);
+        final byte[] putBytes = putMessage.toBytes();
+        benchmarks.add(new Benchmark("message.encode", i -> putMessage.toBytes().length));
+        benchmarks.add(new Benchmark("message.decode", i -> new Message(putBytes).getBody().length));
+
+        // Key hashing
+        benchmarks.add(new Benchmark("generateKey.value1k", i -> Utils.generateKey(value).length()));
+        benchmarks.add(new Benchmark("generateKey.nodeId", i -> Utils.generateKey(benchNodeId).length()));
+
+        // Value compression, of text that compresses well and of random bytes that are stored raw
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < 4 * valueSize)
+            text.append("{\"id\":").append(random.nextInt(100000)).append(",\"status\":\"active\",\"tags\":[\"a\",\"b\"]}\n");
+        final byte[] textValue = text.toString().getBytes(StandardCharsets.UTF_8);
+        final byte[] randomValue = new byte[4 * valueSize];
+        random.nextBytes(randomValue);
+        final ValueCodec deflate = new ValueCodec(ValueCodec.Codec.DEFLATE);
+        final ValueCodec.Encoded encodedText = deflate.encode(textValue);
+        benchmarks.add(new Benchmark("codec.encode4k.text", i -> deflate.encode(textValue).bytes().length));
+        benchmarks.add(new Benchmark("codec.decode4k.text", i -> ValueCodec.decode(encodedText).length));
+        benchmarks.add(new Benchmark("codec.encode4k.random", i -> deflate.encode(randomValue).bytes().length));
+
+        // Ring lookups, through the StorageService like the request path
+        for (int size : new int[]{3, 10, 100, 1000}) {
+            List<Node> nodes = new ArrayList<>();
+            for (int n = 0; n < size; ++n)
+                nodes.add(new Node("10." + (n >> 16 & 255) + "." + (n >> 8 & 255) + "." + (n & 255), 9000));
+            final MembershipView view = MembershipView.of(1, nodes);
+            final StorageService ring = new StorageService(() -> view, benchNodeId);
+            final Node[] ringNodes = nodes.toArray(new Node[0]);
+
+            benchmarks.add(new Benchmark("ring.responsible." + size,
+                    i -> ring.getResponsibleNode(keys[i & (numKeys - 1)]).getPort()));
+            benchmarks.add(new Benchmark("ring.next." + size,
+                    i -> ring.getNextNode(ringNodes[i % ringNodes.length]).getPort()));
+            benchmarks.add(new Benchmark("ring.replicas." + size,
+                    i -> view.getReplicas(keys[i & (numKeys - 1)]).size()));
+        }
+
+        // Local storage, on a ring where this node owns every key so nothing is replicated
+        final MembershipView single = MembershipView.of(1, List.of(new Node(benchNodeId, 9000)));
+        final StorageService storage = new StorageService(() -> single, benchNodeId, GroupCommitter.DurabilityMode.NONE);
+        storage.setWorkerPools(workerPools);
+
+        // A single writer, so every per-write commit forces one file
+        final long[] putCounter = {0};
+        for (GroupCommitter.DurabilityMode mode : GroupCommitter.DurabilityMode.values()) {
+            final StorageService modeStorage = new StorageService(() -> single, benchNodeId, mode);
+            modeStorage.setWorkerPools(workerPools);
+            benchmarks.add(new Benchmark("storage.put1k." + mode.name().toLowerCase(),
+                    i -> modeStorage.put("put-" + putCounter[0]++, value).getAction().length(),
+                    () -> clearValues(benchFolder)));
+        }
+
+        // Versions of a big value that differ in a few bytes, so most chunks are already stored
+        final byte[] bigValue = new byte[256 * valueSize];
+        random.nextBytes(bigValue);
+        final Random versionRandom = new Random(seed);
+        benchmarks.add(new Benchmark("storage.put256k.versioned", i -> {
+            bigValue[versionRandom.nextInt(bigValue.length)]++;
+            return storage.put("put-" + putCounter[0]++, bigValue).getAction().length();
+        }, () -> clearValues(benchFolder)));
+
+        for (String key : keys) storage.put(key, value);
+        benchmarks.add(new Benchmark("storage.get1k", i -> storage.get(keys[i & (numKeys - 1)]).getBody().length));
+        final String[] missingKeys = new String[numKeys];
+        for (int i = 0; i < numKeys; ++i) missingKeys[i] = Utils.generateKey("missing-" + i);
+        benchmarks.add(new Benchmark("storage.getMissing", i -> storage.get(missingKeys[i & (numKeys - 1)]).getBody().length));
+
+        // Membership log with a full window of events
+        try (PrintWriter writer = new PrintWriter(new FileWriter(benchFolder.resolve(Constants.membershipLogFileName).toFile()))) {
+            for (int i = 0; i < Constants.numLogEvents; ++i)
+                writer.print("10.0.0." + i + " " + 2 * random.nextInt(10) + Utils.newLine);
+        }
+        final String folderPath = benchFolder + "/";
+        benchmarks.add(new Benchmark("logs.buildLogsMap",
+                i -> LogHandler.buildLogsMap(folderPath, Constants.numLogEvents).size()));
+
+        return benchmarks;
+    }
+
+    private static void measure(Benchmark benchmark, int iterations, long iterationMs, int warmups) throws Exception {
+        final com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < warmups; ++i) {
+            runIteration(benchmark.operation(), iterationMs);
+            benchmark.afterIteration().run();
+        }
+
+        double[] throughputs = new double[iterations];
+        long totalOps = 0, totalBytes = 0;
+        for (int i = 0; i < iterations; ++i) {
+            long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            long ops = runIteration(benchmark.operation(), iterationMs);
+            long elapsed = System.nanoTime() - start;
+            totalBytes += threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+            totalOps += ops;
+            throughputs[i] = ops * 1e9 / elapsed;
+            benchmark.afterIteration().run();
+        }
+
+        double mean = Arrays.stream(throughputs).average().orElse(0);
+        double variance = Arrays.stream(throughputs).map(t -> (t - mean) * (t - mean)).sum() / Math.max(1, iterations - 1);
+        System.out.printf("%-32s %14.0f %12.0f %12.0f%n", benchmark.name(), mean, Math.sqrt(variance),
+                (double) totalBytes / Math.max(1, totalOps));
+    }
+
+    /**
+     * Runs the operation in batches until the iteration time is over, so the clock is not read on every operation
+     * @return number of operations run
+     */
+    private static long runIteration(Operation operation, long iterationMs) throws Exception {
+        final long deadline = System.nanoTime() + iterationMs * 1_000_000;
+        long ops = 0, result = 0;
+        int i = 0;
+        do {
+            for (int batch = 0; batch < 64; ++batch) result += operation.run(i++);
+            ops += 64;
+        } while (System.nanoTime() < deadline);
+
+        sink = result;
+        return ops;
+    }
+
+    private static void clearValues(Path benchFolder) {
+        File[] files = benchFolder.toFile().listFiles((dir, name) -> name.startsWith("put-"));
+        if (files == null) return;
+        for (File file : files) //noinspection ResultOfMethodCallIgnored
+            file.delete();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children) deleteRecursively(child);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,211 @@
+package benchmark;
+
+import common.FragmentAssembler;
+import common.Message;
+import common.MessageTypes;
+import common.Sender;
+import common.Utils;
+import server.WorkerPools;
+import server.cluster.MembershipService;
+import server.metrics.Metrics;
+import server.network.UDPListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Checks that membership messages of clusters with hundreds of nodes get through the multicast path, and measures
+ * how long they take. A real UDPListener and MembershipService listen on a loopback address, and every message is
+ * sent with Sender.sendMulticast, as the nodes send them:
+ * - a join from each simulated node, whose view must end up with all of them;
+ * - election pings with the logs of every simulated node, bigger than Message.MAX_MSG_SIZE and so fragmented, which
+ *   must be delivered once each. Their fragments are also sent out of order, twice, with one missing, with the
+ *   missing one late, and with the missing one after the 5 s a partial message is kept.
+ * Deliveries are counted with the udp.<action> metrics of the listener.
+ */
+public class MulticastBenchmark {
+    private static final String multicastAddr = "224.0.0.9";
+    private static final int multicastPort = 4449;
+    private static final String listenerId = "127.0.0.250";
+    private static final int simulatedPort = 9700; // Nothing listens there, join replies fail at once
+    private static final long deliveryTimeoutMs = 3000;
+    private static final long expiryWaitMs = 5500;
+    private static final long seed = 42;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1) {
+            System.out.println("Wrong number of arguments. Please invoke the program as:");
+            System.out.println("java benchmark.MulticastBenchmark [<nodes>]");
+            System.out.println("e.g. java benchmark.MulticastBenchmark 500");
+            System.exit(1);
+        }
+        final int numNodes = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        if (System.getProperty("log.level") == null) System.setProperty("log.level", "error");
+
+        final WorkerPools workerPools = new WorkerPools();
+        final MembershipService membershipService = new MembershipService(multicastAddr, multicastPort, listenerId,
+                simulatedPort);
+        final DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                .bind(new InetSocketAddress(multicastPort));
+        workerPools.getListeners().submit(new UDPListener(null, membershipService, null, workerPools, channel));
+        Thread.sleep(500); // Lets the listener join the group
+
+        System.out.printf("%-28s %10s %10s %10s %10s%n", "scenario", "bytes", "fragments", "delivered", "time (ms)");
+        try {
+            runJoins(membershipService, numNodes);
+
+            final Random random = new Random(seed);
+            runPing("in order", numNodes, 1, fragments -> fragments);
+            runPing("reversed", numNodes, 2, fragments -> {
+                Collections.reverse(fragments);
+                return fragments;
+            });
+            runPing("shuffled", numNodes, 3, fragments -> {
+                Collections.shuffle(fragments, random);
+                return fragments;
+            });
+            runPing("duplicated", numNodes, 4, fragments -> {
+                List<byte[]> twice = new ArrayList<>(fragments);
+                twice.addAll(fragments);
+                Collections.shuffle(twice, random);
+                return twice;
+            });
+            runPing("one missing", numNodes, 5, fragments -> fragments.subList(1, fragments.size()));
+            runLatePing("missing one late", numNodes, 6, 1000, true);
+            runLatePing("missing one after expiry", numNodes, 7, expiryWaitMs, false);
+        } finally {
+            channel.close();
+            deleteRecursively(new File(Utils.generateFolderPath(listenerId)));
+        }
+
+        System.out.println(failures == 0 ? "All scenarios passed" : failures + " scenarios failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Every simulated node multicasts its join, like MembershipService.multicastJoin
+     */
+    private static void runJoins(MembershipService membershipService, int numNodes) throws Exception {
+        final long delivered = Metrics.getCount("udp.join");
+        final long start = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < numNodes; ++i) {
+            String body = simulatedId(0, i) + Utils.newLine + simulatedPort + Utils.newLine + 0 + Utils.newLine;
+            byte[] msg = new Message("REQ", "join", body.getBytes(StandardCharsets.UTF_8)).toBytes();
+            Sender.sendMulticast(msg, multicastAddr, multicastPort);
+            bytes += msg.length;
+            if (i % 50 == 49) Thread.sleep(5); // Stays under the receive buffer of the socket
+        }
+
+        boolean ok = waitFor(() -> membershipService.getView().size() == numNodes);
+        report("joins", bytes, numNodes, ok ? "all" : membershipService.getView().size() + "/" + numNodes, start, ok);
+        if (Metrics.getCount("udp.join") - delivered != numNodes) {
+            System.out.println("  joins received: " + (Metrics.getCount("udp.join") - delivered));
+            ++failures;
+        }
+    }
+
+    /**
+     * Sends the fragments of an election ping, reordered or dropped by the scenario
+     */
+    private static void runPing(String name, int numNodes, int group, FragmentOrder order) throws Exception {
+        final byte[] ping = buildPing(numNodes, group);
+        final List<byte[]> fragments = FragmentAssembler.split(ping, Message.MAX_MSG_SIZE);
+        final boolean expected = order.arrange(new ArrayList<>(fragments)).size() >= fragments.size();
+
+        final long delivered = Metrics.getCount("udp.electionPing");
+        final long start = System.nanoTime();
+        for (byte[] fragment : order.arrange(new ArrayList<>(fragments)))
+            Sender.sendMulticast(fragment, multicastAddr, multicastPort);
+
+        checkPing(name, ping.length, fragments.size(), expected, delivered, start);
+    }
+
+    /**
+     * Sends all the fragments of a ping but the first, and the first one after a delay. A partial message is only
+     * dropped when a new message arrives after its timeout, so another message is sent before the late fragment.
+     */
+    private static void runLatePing(String name, int numNodes, int group, long delayMs, boolean expected)
+            throws Exception {
+        final byte[] ping = buildPing(numNodes, group);
+        final List<byte[]> fragments = FragmentAssembler.split(ping, Message.MAX_MSG_SIZE);
+
+        final long delivered = Metrics.getCount("udp.electionPing");
+        final long start = System.nanoTime();
+        for (byte[] fragment : fragments.subList(1, fragments.size()))
+            Sender.sendMulticast(fragment, multicastAddr, multicastPort);
+        Thread.sleep(delayMs);
+        List<byte[]> other = FragmentAssembler.split(buildPing(numNodes, group + 100), Message.MAX_MSG_SIZE);
+        Sender.sendMulticast(other.get(0), multicastAddr, multicastPort);
+        Sender.sendMulticast(fragments.get(0), multicastAddr, multicastPort);
+
+        checkPing(name, ping.length, fragments.size(), expected, delivered, start);
+    }
+
+    private static void checkPing(String name, int bytes, int fragments, boolean expected, long delivered, long start)
+            throws InterruptedException {
+        final BooleanSupplier received = () -> Metrics.getCount("udp.electionPing") > delivered;
+        // A ping that is not delivered is only known once the timeout has passed, and a duplicate one shortly after
+        // the first, so both wait it out
+        if (expected) waitFor(received);
+        Thread.sleep(expected ? 200 : deliveryTimeoutMs);
+
+        long count = Metrics.getCount("udp.electionPing") - delivered;
+        boolean ok = count == (expected ? 1 : 0);
+        report(name, bytes, fragments, count == 0 ? "no" : count == 1 ? "yes" : count + " times", start, ok);
+    }
+
+    /**
+     * Election ping body, like ElectionPing: the sender and a log line per node
+     */
+    private static byte[] buildPing(int numNodes, int group) throws IOException {
+        StringBuilder sb = new StringBuilder(simulatedId(group, numNodes)).append(Utils.newLine);
+        for (int i = 0; i < numNodes; ++i)
+            sb.append(simulatedId(group, i)).append(' ').append(2).append(' ').append(simulatedPort).append(Utils.newLine);
+        return new Message(MessageTypes.REQUEST.getCode(), MessageTypes.ELECTION_PING.getCode(),
+                sb.toString().getBytes(StandardCharsets.UTF_8)).toBytes();
+    }
+
+    /**
+     * @return a loopback address of its own for each node of each group, so pings differ from each other
+     */
+    private static String simulatedId(int group, int node) {
+        return "127." + (10 + group) + "." + (node / 250) + "." + (node % 250 + 1);
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + deliveryTimeoutMs;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    private static void report(String name, long bytes, int fragments, String delivered, long start, boolean ok) {
+        if (!ok) ++failures;
+        System.out.printf("%-28s %10d %10d %10s %10d%s%n", name, bytes, fragments, delivered,
+                (System.nanoTime() - start) / 1_000_000, ok ? "" : "  FAILED");
+    }
+
+    private interface FragmentOrder {
+        List<byte[]> arrange(List<byte[]> fragments);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children) deleteRecursively(child);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
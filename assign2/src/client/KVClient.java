@@ -0,0 +1,349 @@
+package client;
+
+import common.BatchCodec;
+import common.Message;
+import common.MessageTypes;
+import common.Sender;
+import common.Utils;
+import server.Constants;
+import server.cluster.MembershipView;
+import server.cluster.Node;
+import server.storage.ExpiryIndex;
+import server.storage.HotKeys;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Key-value client that caches the cluster ring and sends each request straight to the node responsible
+ * for the key, hashing keys with the same ring lookup as the store.
+ * The ring is fetched from any node on the first request and refreshed whenever a node redirects us, since a
+ * redirect means the cached ring is out of date, and before the next request once a reply carries a ring digest
+ * different from the one of the cached ring.
+ * The owner of a hot key lists the nodes holding a copy of it in its get replies, and the next gets of the key
+ * are spread over the replicas and those nodes for a while.
+ */
+public class KVClient {
+    private static final int maxRedirects = 5;
+    private static final long hotKeyTtlMs = Constants.hotKeyTtlMs / 2; // The owner sends the copies again halfway
+
+    /**
+     * @param until when to stop sending gets to the copies
+     */
+    private record HotKey(List<Node> copies, long until) {}
+
+    private final Node seedNode;
+    private volatile MembershipView ring = null;
+    private volatile String ringDigest = null; // Of the cached ring
+    private volatile boolean isRingStale = false;
+    private final ConcurrentHashMap<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    public KVClient(String nodeIP, int nodePort) {
+        this.seedNode = new Node(nodeIP, nodePort);
+    }
+
+    /**
+     * Stores a value under its content hash
+     * @return the generated key
+     */
+    public String put(byte[] value) throws IOException {
+        String key = Utils.generateKey(value);
+        Message reply = put(key, value);
+        if (!reply.getAction().equals(MessageTypes.OK.getCode()))
+            throw new IOException("Put failed with reply " + reply.getAction() + ": " + bodyToString(reply));
+        return key;
+    }
+
+    public Message put(String key, byte[] value) throws IOException {
+        return put(key, value, 0);
+    }
+
+    /**
+     * @param ttlMs milliseconds after which the value is gone, 0 if it never expires. A put of a key that is
+     *              already stored does not change when it expires.
+     */
+    public Message put(String key, byte[] value, long ttlMs) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(key.getBytes(StandardCharsets.UTF_8));
+        out.write(Utils.newLine.getBytes(StandardCharsets.UTF_8));
+        out.write(value);
+
+        Message request = new Message(MessageTypes.REQUEST.getCode(), MessageTypes.PUT.getCode(), out.toByteArray());
+        if (ttlMs > 0) request.setHeader(ExpiryIndex.ttlHeader, Long.toString(ttlMs));
+        return sendToOwner(key, request);
+    }
+
+    /**
+     * Replicas can serve reads, so a get falls back to the next replica when a node does not answer or is busy
+     * @return reply whose body has the 8 byte tombstone timestamp followed by the value
+     */
+    public Message get(String key) throws IOException {
+        Message request = new Message(MessageTypes.REQUEST.getCode(), MessageTypes.GET.getCode(),
+                key.getBytes(StandardCharsets.UTF_8));
+
+        Message reply = null;
+        for (Node replica : getReadNodes(key)) {
+            reply = send(replica, request);
+            if (!reply.getAction().equals(MessageTypes.TIMEOUT.getCode()) &&
+                    !reply.getAction().equals(MessageTypes.BUSY.getCode())) break;
+        }
+
+        final String copies = reply == null ? null : reply.getHeader(HotKeys.copiesHeader);
+        if (copies != null)
+            hotKeys.put(key, new HotKey(HotKeys.parseCopies(copies), System.currentTimeMillis() + hotKeyTtlMs));
+
+        if (reply == null || !reply.getAction().equals(MessageTypes.REDIRECT.getCode())) return reply;
+        return followRedirects(reply, request);
+    }
+
+    public Message delete(String key) throws IOException {
+        return sendToOwner(key, new Message(MessageTypes.REQUEST.getCode(), MessageTypes.DELETE.getCode(),
+                key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Non-blocking put, the returned future completes once the owner replies.
+     * Timeouts and redirects are retried on the synchronous path, after the ring is refreshed.
+     */
+    public CompletableFuture<Message> putAsync(String key, byte[] value) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(key.getBytes(StandardCharsets.UTF_8));
+        out.write(Utils.newLine.getBytes(StandardCharsets.UTF_8));
+        out.write(value);
+
+        return sendToOwnerAsync(key, new Message(MessageTypes.REQUEST.getCode(), MessageTypes.PUT.getCode(), out.toByteArray()));
+    }
+
+    public CompletableFuture<Message> getAsync(String key) throws IOException {
+        return sendToOwnerAsync(key, new Message(MessageTypes.REQUEST.getCode(), MessageTypes.GET.getCode(),
+                key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public CompletableFuture<Message> deleteAsync(String key) throws IOException {
+        return sendToOwnerAsync(key, new Message(MessageTypes.REQUEST.getCode(), MessageTypes.DELETE.getCode(),
+                key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Stores the values with one mput message per responsible node
+     * @return one reply per key, in the same order as the values
+     */
+    public LinkedHashMap<String, Message> mput(Map<String, byte[]> values) throws IOException {
+        return sendBatch(values.keySet(), MessageTypes.MPUT.getCode(), keys -> {
+            LinkedHashMap<String, byte[]> groupValues = new LinkedHashMap<>();
+            for (String key : keys) groupValues.put(key, values.get(key));
+            return BatchCodec.encodeValues(groupValues);
+        });
+    }
+
+    /**
+     * Gets the values with one mget message per responsible node
+     * @return one reply per key, each body has the 8 byte tombstone timestamp followed by the value
+     */
+    public LinkedHashMap<String, Message> mget(Collection<String> keys) throws IOException {
+        return sendBatch(keys, MessageTypes.MGET.getCode(), BatchCodec::encodeKeys);
+    }
+
+    public LinkedHashMap<String, Message> mdelete(Collection<String> keys) throws IOException {
+        return sendBatch(keys, MessageTypes.MDELETE.getCode(), BatchCodec::encodeKeys);
+    }
+
+    /**
+     * Fetches the ring from the seed node, or from any cached node if the seed does not answer
+     */
+    public void refreshTopology() throws IOException {
+        List<Node> sources = new ArrayList<>();
+        sources.add(seedNode);
+        if (ring != null) sources.addAll(ring.nodes().values());
+
+        for (Node source : sources) {
+            if (refreshTopology(source)) return;
+        }
+        throw new IOException("Could not fetch the cluster ring from any node");
+    }
+
+    public MembershipView getRing() {
+        return ring;
+    }
+
+    private boolean refreshTopology(Node source) throws IOException {
+        Message request = new Message(MessageTypes.REQUEST.getCode(), MessageTypes.GET_RING.getCode(), null);
+        Message reply = new Message(Sender.sendTCPMessage(request.toBytes(), source.getId(), source.getPort()));
+        if (!reply.getAction().equals(MessageTypes.OK.getCode())) return false;
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(reply.getBody()), StandardCharsets.UTF_8));
+        long version = Long.parseLong(reader.readLine());
+
+        List<Node> nodes = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] data = line.split(" ");
+            nodes.add(data.length > 2 ? new Node(data[0], Integer.parseInt(data[1]), Integer.parseInt(data[2])) :
+                    new Node(data[0], Integer.parseInt(data[1])));
+        }
+
+        if (nodes.isEmpty()) return false;
+        ring = MembershipView.of(version, nodes);
+        ringDigest = ring.digest();
+        isRingStale = false;
+        return true;
+    }
+
+    private Message sendToOwner(String key, Message request) throws IOException {
+        Message reply = send(getOwner(key), request);
+        if (reply.getAction().equals(MessageTypes.TIMEOUT.getCode())) {
+            // The owner may have left, so the ring is fetched again before retrying
+            refreshTopology();
+            reply = send(getOwner(key), request);
+        }
+
+        if (!reply.getAction().equals(MessageTypes.REDIRECT.getCode())) return reply;
+        return followRedirects(reply, request);
+    }
+
+    private CompletableFuture<Message> sendToOwnerAsync(String key, Message request) throws IOException {
+        final Node owner = getOwner(key);
+        return Sender.sendTCPMessageAsync(request.toBytes(), owner.getId(), owner.getPort())
+                .thenCompose(replyBytes -> {
+                    try {
+                        Message reply = new Message(replyBytes);
+                        checkRing(reply);
+                        if (reply.getAction().equals(MessageTypes.OK.getCode()) ||
+                                reply.getAction().equals(MessageTypes.ERROR.getCode()))
+                            return CompletableFuture.completedFuture(reply);
+                        // Rare case, the blocking retry runs outside the socket completion threads
+                        return CompletableFuture.supplyAsync(() -> {
+                            try {
+                                return sendToOwner(key, request);
+                            } catch (IOException e) {
+                                throw new CompletionException(e);
+                            }
+                        });
+                    } catch (IOException e) {
+                        return CompletableFuture.failedFuture(e);
+                    }
+                });
+    }
+
+    private Message followRedirects(Message reply, Message request) throws IOException {
+        for (int i = 0; i < maxRedirects && reply.getAction().equals(MessageTypes.REDIRECT.getCode()); ++i) {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(reply.getBody())));
+            Node target = new Node(reader.readLine(), Integer.parseInt(reader.readLine()));
+
+            if (!refreshTopology(target)) refreshTopology();
+            reply = send(target, request);
+        }
+
+        return reply;
+    }
+
+    /**
+     * Groups the keys by responsible node and sends one batch message to each node. Keys that were redirected
+     * or whose node did not answer are retried after refreshing the ring.
+     */
+    private LinkedHashMap<String, Message> sendBatch(Collection<String> keys, String action, BatchBody batchBody)
+            throws IOException {
+        final LinkedHashMap<String, Message> replies = new LinkedHashMap<>();
+        for (String key : keys) replies.put(key, null); // Keeps the order of the keys
+
+        List<String> pendingKeys = new ArrayList<>(keys);
+        for (int attempt = 0; attempt <= maxRedirects && !pendingKeys.isEmpty(); ++attempt) {
+            if (attempt > 0) refreshTopology();
+
+            final MembershipView currRing = currentRing();
+            final Map<Node, List<String>> groups = new LinkedHashMap<>();
+            for (String key : pendingKeys)
+                groups.computeIfAbsent(currRing.getResponsibleNode(key), node -> new ArrayList<>()).add(key);
+
+            pendingKeys = new ArrayList<>();
+            for (Map.Entry<Node, List<String>> group : groups.entrySet()) {
+                Message request = new Message(MessageTypes.REQUEST.getCode(), action, batchBody.build(group.getValue()));
+                Message reply = send(group.getKey(), request);
+
+                if (!reply.getAction().equals(MessageTypes.OK.getCode())) {
+                    for (String key : group.getValue()) replies.put(key, reply);
+                    if (reply.getAction().equals(MessageTypes.TIMEOUT.getCode())) pendingKeys.addAll(group.getValue());
+                    continue;
+                }
+
+                for (Map.Entry<String, Message> keyReply : BatchCodec.decodeReplies(reply.getBody()).entrySet()) {
+                    replies.put(keyReply.getKey(), keyReply.getValue());
+                    if (keyReply.getValue().getAction().equals(MessageTypes.REDIRECT.getCode()))
+                        pendingKeys.add(keyReply.getKey());
+                }
+            }
+        }
+
+        return replies;
+    }
+
+    private interface BatchBody {
+        byte[] build(List<String> keys) throws IOException;
+    }
+
+    private Node getOwner(String key) throws IOException {
+        return currentRing().getResponsibleNode(key);
+    }
+
+    /**
+     * @return the owner of the key followed by its replicas, in ring order
+     */
+    private List<Node> getReplicas(String key) throws IOException {
+        return currentRing().getReplicas(key);
+    }
+
+    /**
+     * @return the replicas of the key, followed by the nodes with a copy if it is hot, starting from a random one
+     */
+    private List<Node> getReadNodes(String key) throws IOException {
+        final List<Node> replicas = getReplicas(key);
+        final HotKey hotKey = hotKeys.get(key);
+        if (hotKey == null) return replicas;
+        if (hotKey.until() < System.currentTimeMillis()) {
+            hotKeys.remove(key, hotKey);
+            return replicas;
+        }
+
+        final List<Node> nodes = new ArrayList<>(replicas);
+        for (Node copy : hotKey.copies())
+            if (!MembershipView.containsNode(nodes, copy.getId())) nodes.add(copy);
+        Collections.rotate(nodes, ThreadLocalRandom.current().nextInt(nodes.size()));
+        return nodes;
+    }
+
+    private MembershipView currentRing() throws IOException {
+        if (ring == null || isRingStale) refreshTopology();
+        return ring;
+    }
+
+    private Message send(Node node, Message request) throws IOException {
+        Message reply = new Message(Sender.sendTCPMessage(request.toBytes(), node.getId(), node.getPort()));
+        checkRing(reply);
+        return reply;
+    }
+
+    /**
+     * Marks the cached ring stale when the node that replied has a different one. Nodes apply membership changes
+     * at slightly different times, so the ring is fetched again on the next request instead of right away.
+     */
+    private void checkRing(Message reply) {
+        final String digest = reply.getHeader(MembershipView.ringHeader);
+        if (digest != null && ringDigest != null && !digest.equals(ringDigest)) isRingStale = true;
+    }
+
+    private static String bodyToString(Message reply) {
+        return reply.getBody() == null ? "" : new String(reply.getBody(), StandardCharsets.UTF_8);
+    }
+}
@@ -1,25 +1,31 @@
 package client;
 
 import common.Message;
-import common.Sender;
 import common.Utils;
 import server.Server;
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 public class TestClient {
+    private static final List<String> batchOperations = List.of("mput", "mget", "mdelete");
+
     public static void main(String[] args) {
-        if (args.length < 2 || args.length > 3) {
+        final boolean isBatch = args.length >= 2 && batchOperations.contains(args[1]);
+        final boolean hasTtl = args.length == 4 && args[1].equals("put");
+        if (args.length < 2 || (args.length > 3 && !isBatch && !hasTtl) || (isBatch && args.length < 3)) {
             System.out.println("Wrong number of arguments. Please invoke the program as:");
             System.out.println("java TestClient <node_ap> <operation> [<opnd>]");
+            System.out.println("java TestClient <node_ap> put <opnd> [<ttl seconds>]");
+            System.out.println("java TestClient <node_ap> <mput|mget|mdelete> <opnd> [<opnd> ...]");
             System.exit(1);
         }
 
@@ -30,7 +36,8 @@ public class TestClient {
         String nodeSuffix = nodeInfo[1];
 
         final String operation = args[1];
-        final String operand = args.length == 3 ? args[2] : null;
+        final String operand = args.length == 3 || hasTtl ? args[2] : null;
+        final long ttlMs = hasTtl ? (long) (Double.parseDouble(args[3]) * 1000) : 0;
 
         if (operand == null && operation.equals("put")) {
             System.out.println("The put operation requires the file pathname to be provided");
@@ -42,11 +49,14 @@ public class TestClient {
             System.exit(1);
         }
 
-        if (operation.equals("join") || operation.equals("leave"))
+        if (operation.equals("join") || operation.equals("leave") || operation.equals("metrics"))
             membershipOperation(nodeIP, nodeSuffix, operation);
         else {
             try {
-                keyValueOperation(nodeIP, Integer.parseInt(nodeSuffix), operation, operand);
+                if (isBatch)
+                    batchOperation(nodeIP, Integer.parseInt(nodeSuffix), operation, List.of(args).subList(2, args.length));
+                else
+                    keyValueOperation(nodeIP, Integer.parseInt(nodeSuffix), operation, operand, ttlMs);
             } catch (IOException e) {
                 System.out.println("Client sided error:");
                 throw new RuntimeException(e);
@@ -54,28 +64,32 @@ public class TestClient {
         }
     }
 
-    private static void keyValueOperation(String nodeIP, int nodePort, String operation, String operand) throws IOException {
-        Message msg = buildKeyValueRequest(operand, operation);
+    private static void keyValueOperation(String nodeIP, int nodePort, String operation, String operand, long ttlMs)
+            throws IOException {
+        KVClient client = new KVClient(nodeIP, nodePort);
         Message reply;
-        do {
-            reply = new Message(Sender.sendTCPMessage(msg.toBytes(), nodeIP, nodePort));
-            System.out.println("Sent " + operation + " request to " + nodeIP + ":" + nodePort);
-
-            if (reply.getAction().equals("redirect")) {
-                final BufferedReader reader = new BufferedReader(new InputStreamReader(
-                        new ByteArrayInputStream(reply.getBody())));
-                nodeIP = reader.readLine();
-                nodePort = Integer.parseInt(reader.readLine());
-                System.out.println("Redirecting to " + nodeIP + ":" + nodePort);
-            } else if (reply.getAction().equals("error")) {
-                System.out.println("Received error message: " + new String(reply.getBody()));
+        switch (operation) {
+            case "put" -> {
+                final byte[] file = Files.readAllBytes(Paths.get(operand));
+                final String key = Utils.generateKey(file);
+                System.out.println("Generated Key = " + key);
+                reply = client.put(key, file, ttlMs);
+            }
+            case "get" -> reply = client.get(operand);
+            case "delete" -> reply = client.delete(operand);
+            default -> {
+                System.out.println("Invalid operation: " + operation);
                 return;
-            } else {
-                System.out.println("Received " + reply.getAction() + " reply");
             }
-        } while (reply.getAction().equals("redirect"));
+        }
+
+        if (reply.getAction().equals("error")) {
+            System.out.println("Received error message: " + new String(reply.getBody()));
+            return;
+        }
+        System.out.println("Received " + reply.getAction() + " reply");
 
-        if (operation.equals("get")) {
+        if (operation.equals("get") && reply.getAction().equals("ok")) {
             ByteArrayInputStream bis = new ByteArrayInputStream(reply.getBody());
             //noinspection ResultOfMethodCallIgnored
             bis.skip(8); // Ignore tombstone
@@ -83,28 +97,41 @@ public class TestClient {
         }
     }
 
-    private static Message buildKeyValueRequest(String operand, String operation) throws IOException {
-        String key;
-        byte[] file = null;
-
-        if (operation.equals("put")) {
-            final Path path = Paths.get(operand);
-            file = Files.readAllBytes(path);
-            key = Utils.generateKey(file);
-            System.out.println("Generated Key = " + key);
-        } else {
-            key = operand;
+    /**
+     * mput takes file pathnames, mget and mdelete take keys. Values from mget are saved in files named after their key.
+     */
+    private static void batchOperation(String nodeIP, int nodePort, String operation, List<String> operands) throws IOException {
+        KVClient client = new KVClient(nodeIP, nodePort);
+        Map<String, Message> replies;
+        switch (operation) {
+            case "mput" -> {
+                LinkedHashMap<String, byte[]> values = new LinkedHashMap<>();
+                for (String pathname : operands) {
+                    final byte[] file = Files.readAllBytes(Paths.get(pathname));
+                    final String key = Utils.generateKey(file);
+                    System.out.println("Generated Key = " + key + " (" + pathname + ")");
+                    values.put(key, file);
+                }
+                replies = client.mput(values);
+            }
+            case "mget" -> replies = client.mget(operands);
+            default -> replies = client.mdelete(operands);
         }
 
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-        out.write(key.getBytes(StandardCharsets.UTF_8));
-        if (file != null) {
-            out.write("\r\n".getBytes(StandardCharsets.UTF_8));
-            out.write(file);
-        }
-        byte[] body = out.toByteArray();
+        for (Map.Entry<String, Message> entry : replies.entrySet()) {
+            Message reply = entry.getValue();
+            if (reply.getAction().equals("error")) {
+                System.out.println(entry.getKey() + ": received error message: " + new String(reply.getBody()));
+                continue;
+            }
+            System.out.println(entry.getKey() + ": received " + reply.getAction() + " reply");
 
-        return new Message("REQ", operation, body);
+            if (operation.equals("mget") && reply.getAction().equals("ok")) {
+                try (FileOutputStream fos = new FileOutputStream(entry.getKey())) {
+                    fos.write(reply.getBody(), 8, reply.getBody().length - 8); // Ignore tombstone
+                }
+            }
+        }
     }
 
     private static void saveFile(byte[] value) throws IOException {
@@ -125,6 +152,7 @@ public class TestClient {
 
             if (operation.equals("join")) serverStub.join();
             else if (operation.equals("leave")) serverStub.leave();
+            else System.out.print(serverStub.getMetrics());
 
         } catch (RemoteException | NotBoundException e) {
             throw new RuntimeException(e);
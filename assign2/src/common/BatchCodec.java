@@ -0,0 +1,90 @@
+package common;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes the bodies of the batch actions (mget, mput, mdelete and their replication messages).
+ * Key list:    | count (int) | key (UTF) ... |
+ * Value map:   | count (int) | key (UTF) | length (int) | bytes ... |
+ * Reply map:   | count (int) | key (UTF) | action (UTF) | length (int) | bytes ... |
+ */
+public class BatchCodec {
+    public static byte[] encodeKeys(Collection<String> keys) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(keys.size());
+        for (String key : keys) dos.writeUTF(key);
+
+        return out.toByteArray();
+    }
+
+    public static List<String> decodeKeys(byte[] body) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(body));
+        int count = dis.readInt();
+        List<String> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) keys.add(dis.readUTF());
+
+        return keys;
+    }
+
+    public static byte[] encodeValues(Map<String, byte[]> values) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(values.size());
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            dos.writeUTF(entry.getKey());
+            dos.writeInt(entry.getValue().length);
+            dos.write(entry.getValue());
+        }
+
+        return out.toByteArray();
+    }
+
+    public static LinkedHashMap<String, byte[]> decodeValues(byte[] body) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(body));
+        int count = dis.readInt();
+        LinkedHashMap<String, byte[]> values = new LinkedHashMap<>();
+        for (int i = 0; i < count; ++i) {
+            String key = dis.readUTF();
+            values.put(key, dis.readNBytes(dis.readInt()));
+        }
+
+        return values;
+    }
+
+    /**
+     * Only the action and body of each reply are sent, every reply is a REP message
+     */
+    public static byte[] encodeReplies(Map<String, Message> replies) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(replies.size());
+        for (Map.Entry<String, Message> entry : replies.entrySet()) {
+            byte[] body = entry.getValue().getBody() == null ? new byte[0] : entry.getValue().getBody();
+            dos.writeUTF(entry.getKey());
+            dos.writeUTF(entry.getValue().getAction());
+            dos.writeInt(body.length);
+            dos.write(body);
+        }
+
+        return out.toByteArray();
+    }
+
+    public static LinkedHashMap<String, Message> decodeReplies(byte[] body) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(body));
+        int count = dis.readInt();
+        LinkedHashMap<String, Message> replies = new LinkedHashMap<>();
+        for (int i = 0; i < count; ++i) {
+            String key = dis.readUTF();
+            String action = dis.readUTF();
+            replies.put(key, new Message(MessageTypes.REPLY.getCode(), action, dis.readNBytes(dis.readInt())));
+        }
+
+        return replies;
+    }
+}
@@ -0,0 +1,148 @@
+package common;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Splits multicast messages bigger than Message.MAX_MSG_SIZE into fragment messages and
+ * reassembles them on the receiving side.
+ * Fragment body structure
+ * | message id (long) |
+ * | fragment index (int) |
+ * | fragment count (int) |
+ * | chunk of the original message |
+ */
+public class FragmentAssembler {
+    // Room left for the fragment message header and the fragment fields
+    private static final int fragmentHeaderSize = 64;
+    private static final int maxPendingMessages = 64;
+    private static final long fragmentTimeoutMS = 5000;
+    // Largest message reassembled, bounds the fragment count a datagram can ask room for
+    private static final int maxMessageSize = 8 * 1024 * 1024;
+    private static final int maxFragmentCount = maxMessageSize / (Message.MAX_MSG_SIZE - fragmentHeaderSize);
+
+    private final Map<Long, PendingMessage> pendingMessages;
+    // Ids of the messages reassembled in the last fragmentTimeoutMS, so their duplicate fragments are dropped
+    private final LinkedHashMap<Long, Long> completedMessages;
+
+    public FragmentAssembler() {
+        this.pendingMessages = new HashMap<>();
+        this.completedMessages = new LinkedHashMap<>();
+    }
+
+    /**
+     * Splits a serialized message into fragment messages that fit in maxSize bytes
+     * @param msg serialized message
+     * @param maxSize maximum size of each serialized fragment message
+     * @return list with the serialized fragment messages
+     */
+    public static List<byte[]> split(byte[] msg, int maxSize) throws IOException {
+        final int chunkSize = maxSize - fragmentHeaderSize;
+        final int count = (msg.length + chunkSize - 1) / chunkSize;
+        final long messageId = ThreadLocalRandom.current().nextLong();
+
+        List<byte[]> fragments = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            int offset = i * chunkSize;
+            int length = Math.min(chunkSize, msg.length - offset);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length + 16);
+            DataOutputStream dos = new DataOutputStream(out);
+            dos.writeLong(messageId);
+            dos.writeInt(i);
+            dos.writeInt(count);
+            dos.write(msg, offset, length);
+
+            Message fragment = new Message(MessageTypes.REQUEST.getCode(), MessageTypes.FRAGMENT.getCode(), out.toByteArray());
+            fragments.add(fragment.toBytes());
+        }
+
+        return fragments;
+    }
+
+    /**
+     * Stores a received fragment. Not thread-safe, it is meant to be used by the listener thread only.
+     * @return the reassembled message bytes when the last missing fragment arrives, null otherwise
+     */
+    public byte[] accept(Message fragment) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(fragment.getBody()));
+        long messageId = dis.readLong();
+        int index = dis.readInt();
+        int count = dis.readInt();
+        byte[] chunk = dis.readAllBytes();
+
+        if (count <= 0 || count > maxFragmentCount || index < 0 || index >= count)
+            throw new IOException("Invalid fragment " + index + "/" + count);
+
+        PendingMessage pending = pendingMessages.get(messageId);
+        if (pending == null) {
+            expirePendingMessages();
+            if (completedMessages.containsKey(messageId)) return null;
+            if (pendingMessages.size() >= maxPendingMessages) return null;
+
+            pending = new PendingMessage(count);
+            pendingMessages.put(messageId, pending);
+        }
+
+        if (!pending.add(index, chunk)) return null;
+
+        pendingMessages.remove(messageId);
+        completedMessages.put(messageId, System.currentTimeMillis());
+        return pending.join();
+    }
+
+    private void expirePendingMessages() {
+        long now = System.currentTimeMillis();
+        Iterator<PendingMessage> iterator = pendingMessages.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().createdAt > fragmentTimeoutMS)
+                iterator.remove();
+        }
+
+        // Oldest first, so the scan stops at the first one still recent
+        Iterator<Long> completed = completedMessages.values().iterator();
+        while (completed.hasNext() && now - completed.next() > fragmentTimeoutMS)
+            completed.remove();
+    }
+
+    private static class PendingMessage {
+        private final byte[][] chunks;
+        private final long createdAt;
+        private int received = 0;
+        private int totalLength = 0;
+
+        PendingMessage(int count) {
+            this.chunks = new byte[count][];
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        /**
+         * @return true if the message is complete
+         */
+        boolean add(int index, byte[] chunk) {
+            if (index >= chunks.length) return false;
+            if (chunks[index] == null) {
+                chunks[index] = chunk;
+                received++;
+                totalLength += chunk.length;
+            }
+            return received == chunks.length;
+        }
+
+        byte[] join() {
+            byte[] msg = new byte[totalLength];
+            int offset = 0;
+            for (byte[] chunk : chunks) {
+                System.arraycopy(chunk, 0, msg, offset, chunk.length);
+                offset += chunk.length;
+            }
+            return msg;
+        }
+    }
+}
@@ -1,12 +1,15 @@
 package common;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Message Structure
  * | type             |     ( request or reply )
  * | action           |     ( join/leave/get/put/delete )
- * | CRLF             |
+ * | headers CRLF     |     ( optional name=value pairs separated by spaces )
  * | Body             |
  */
 public class Message {
@@ -14,6 +17,7 @@ public class Message {
     private final String type;
     private final String action;
     private final byte[] body;
+    private final Map<String, String> headers = new LinkedHashMap<>();
 
     public Message(String type, String action, byte[] body) {
         this.type = type;
@@ -22,17 +26,39 @@ public class Message {
     }
 
     public Message(byte[] bytes) throws IOException {
-        final ByteArrayInputStream stream = new ByteArrayInputStream(bytes);
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes)));
-        this.type = reader.readLine();
-        this.action = reader.readLine();
-        reader.readLine(); // last empty line
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Parses a Message directly from the remaining bytes of a buffer, without
+     * copying the header. Only the body is copied out, so the buffer can be reused.
+     */
+    public Message(ByteBuffer buffer) throws IOException {
+        this.type = readLine(buffer);
+        this.action = readLine(buffer);
+        for (String header : readLine(buffer).split(" ")) {
+            int separator = header.indexOf('=');
+            if (separator > 0) headers.put(header.substring(0, separator), header.substring(separator + 1));
+        }
 
-        int bodyOffset = type.length() + action.length() + 6; // 2 chars used for newlines per row on top
+        this.body = new byte[buffer.remaining()];
+        buffer.get(this.body);
+    }
+
+    private static String readLine(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        for (int i = start; i < limit; ++i) {
+            if (buffer.get(i) != '\n') continue;
 
-        //noinspection ResultOfMethodCallIgnored
-        stream.skip(bodyOffset);
-        this.body = stream.readAllBytes();
+            int end = (i > start && buffer.get(i - 1) == '\r') ? i - 1 : i;
+            byte[] line = new byte[end - start];
+            buffer.get(start, line);
+            buffer.position(i + 1);
+            return new String(line, StandardCharsets.UTF_8);
+        }
+
+        throw new IOException("Malformed message header");
     }
 
     /**
@@ -40,7 +66,7 @@ public class Message {
      * where the first line is the header, in the format
      * Type
      * Action
-     * (empty line)
+     * Headers (usually an empty line)
      * Body
      * @return Byte array with the message
      */
@@ -50,7 +76,10 @@ public class Message {
         sb.append(type).append(Utils.newLine);
         sb.append(action).append(Utils.newLine);
 
-        // empty line
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (sb.charAt(sb.length() - 1) != '\n') sb.append(' ');
+            sb.append(header.getKey()).append('=').append(header.getValue());
+        }
         sb.append(Utils.newLine);
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -71,4 +100,20 @@ public class Message {
     public byte[] getBody() {
         return body;
     }
+
+    /**
+     * @param value must not contain spaces or line breaks
+     * @return this message
+     */
+    public Message setHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * @return the header value, or null if the message does not have it
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
 }
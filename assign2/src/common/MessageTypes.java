@@ -4,18 +4,38 @@ public enum MessageTypes {
     REQUEST("REQ"),
     REPLY("REP"),
     JOIN("join"),
+    JOIN_ACK("joinAck"),
     LEAVE("leave"),
     GET("get"),
     PUT("put"),
     DELETE("delete"),
+    MGET("mget"),
+    MPUT("mput"),
+    MDELETE("mdelete"),
     SAVE_FILE("saveFile"),
-    GET_AND_DELETE("getAndDelete"),
+    SAVE_FILES("saveFiles"),
+    CACHE_VALUE("cacheValue"),
+    UNCACHE_VALUE("uncacheValue"),
+    SAFE_DELETE_FILES("safeDeleteFiles"),
+    GET_FRAGMENT("getFragment"),
+    GET_REPLICA("getReplica"),
     GET_FILES("getFiles"),
+    GET_FILTER("getFilter"),
+    GET_RING("getRing"),
+    GET_CHUNKS("getChunks"),
+    SAVE_CHUNKS("saveChunks"),
+    MISSING_CHUNKS("missingChunks"),
+    REDIRECT("redirect"),
     ERROR("error"),
     OK("ok"),
     TIMEOUT("timeout"),
+    BUSY("busy"),
+    STATS("stats"),
+    PING("ping"),
     ELECTION_REQUEST("electionRequest"),
     ELECTION_PING("electionPing"),
+    FRAGMENT("fragment"),
+    LOAD("load"),
 
     ELECTION_LEAVE("electionLeave");
 
@@ -1,60 +1,199 @@
 package common;
 
 import server.Constants;
+import server.metrics.Metrics;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ShutdownChannelGroupException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class Sender {
+    private static final BufferPool multicastBuffers = new BufferPool(Message.MAX_MSG_SIZE, 16);
+    private static DatagramChannel multicastChannel = null;
+
     public static void sendMulticast(byte[] msg, String multicastIpAddr, int multicastIPPort) throws IOException {
-        //noinspection resource
-        DatagramSocket socket = new DatagramSocket();
-        InetAddress group = InetAddress.getByName(multicastIpAddr);
+        InetSocketAddress group = new InetSocketAddress(multicastIpAddr, multicastIPPort);
+        if (msg.length <= multicastBuffers.getBufferSize()) {
+            sendDatagram(msg, group);
+            return;
+        }
 
-        DatagramPacket packet = new DatagramPacket(
-                msg,
-                msg.length,
-                group,
-                multicastIPPort);
+        // Receivers only read MAX_MSG_SIZE bytes per datagram, so bigger messages are fragmented
+        for (byte[] fragment : FragmentAssembler.split(msg, multicastBuffers.getBufferSize()))
+            sendDatagram(fragment, group);
+    }
 
-        socket.send(packet);
+    private static void sendDatagram(byte[] msg, InetSocketAddress group) throws IOException {
+        ByteBuffer buffer = multicastBuffers.acquire();
+        try {
+            buffer.put(msg).flip();
+            getMulticastChannel().send(buffer, group);
+        } finally {
+            multicastBuffers.release(buffer);
+        }
+    }
+
+    /**
+     * The channel is opened once and shared by every sender, DatagramChannel.send is thread-safe.
+     */
+    private static synchronized DatagramChannel getMulticastChannel() throws IOException {
+        if (multicastChannel == null || !multicastChannel.isOpen())
+            multicastChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        return multicastChannel;
     }
 
     public static byte[] sendTCPMessage(byte[] msg, String ipAddr, int ipPort) throws IOException {
-        Socket socket = new Socket();;
-        byte[] reply = new Message(MessageTypes.REPLY.getCode(), MessageTypes.TIMEOUT.getCode(), null).toBytes();
-        try {
-            socket.setSoTimeout(Constants.timeoutTime);
-            socket.connect(new InetSocketAddress(ipAddr, ipPort), Constants.timeoutTime);
-        } catch (IOException ioException) {
+        return sendTCPMessage(msg, ipAddr, ipPort, Constants.timeoutTime);
+    }
+
+    /**
+     * Sends a message and waits for the reply, blocking at most timeout ms on connect and on each read.
+     * @return the reply bytes, or a timeout reply if the node did not answer
+     */
+    public static byte[] sendTCPMessage(byte[] msg, String ipAddr, int ipPort, int timeout) throws IOException {
+        byte[] timeoutReply = new Message(MessageTypes.REPLY.getCode(), MessageTypes.TIMEOUT.getCode(), null).toBytes();
+        final long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            try {
+                socket.setSoTimeout(timeout);
+                socket.connect(new InetSocketAddress(ipAddr, ipPort), timeout);
+            } catch (IOException ioException) {
+                Metrics.increment("sender.timeout");
+                return timeoutReply;
+            }
+
+            DataOutputStream ostream = new DataOutputStream(socket.getOutputStream());
+            DataInputStream istream = new DataInputStream(socket.getInputStream());
+
+            ostream.write(msg);
+            socket.shutdownOutput();
+
+            // Blocks until the node closes the connection, the socket timeout bounds each read
+            byte[] reply = istream.readAllBytes();
+            if (reply.length == 0) {
+                Metrics.increment("sender.timeout");
+                return timeoutReply;
+            }
+
+            Metrics.recordSince("sender.tcp", start);
             return reply;
+        } catch (SocketTimeoutException e) {
+            Metrics.increment("sender.timeout");
+            return timeoutReply;
         }
+    }
 
-        DataOutputStream ostream = new DataOutputStream(socket.getOutputStream());
-        DataInputStream istream = new DataInputStream(socket.getInputStream());
+    /**
+     * Non-blocking version of sendTCPMessage, no thread waits while the message and the reply are in transit
+     * @return future with the reply bytes, or a timeout reply if the node did not answer in time
+     */
+    public static CompletableFuture<byte[]> sendTCPMessageAsync(byte[] msg, String ipAddr, int ipPort) {
+        return sendTCPMessageAsync(msg, ipAddr, ipPort, null);
+    }
 
-        ostream.write(msg);
-        socket.shutdownOutput();
+    /**
+     * @param group channel group whose threads run the completion handlers, or null for the default group
+     */
+    public static CompletableFuture<byte[]> sendTCPMessageAsync(byte[] msg, String ipAddr, int ipPort,
+                                                                AsynchronousChannelGroup group) {
+        final byte[] timeoutReply;
+        final AsynchronousSocketChannel channel;
+        try {
+            timeoutReply = new Message(MessageTypes.REPLY.getCode(), MessageTypes.TIMEOUT.getCode(), null).toBytes();
+            channel = AsynchronousSocketChannel.open(group);
+        } catch (IOException | ShutdownChannelGroupException e) {
+            return CompletableFuture.failedFuture(e);
+        }
 
-        long maxResponseTime = System.currentTimeMillis() + Constants.timeoutTime;
-        while (System.currentTimeMillis() < maxResponseTime) {
-            // Node sent some data so it's alive
-            if (istream.available() > 0) {
-                reply = istream.readAllBytes();
-                break;
+        TCPExchange exchange = new TCPExchange(channel, ByteBuffer.wrap(msg), timeoutReply);
+        final long start = System.nanoTime();
+        channel.connect(new InetSocketAddress(ipAddr, ipPort), null, exchange.onConnect);
+
+        return exchange.reply
+                .completeOnTimeout(timeoutReply, Constants.timeoutTime, TimeUnit.MILLISECONDS)
+                .whenComplete((reply, e) -> {
+                    exchange.close();
+                    if (reply == timeoutReply) Metrics.increment("sender.timeout");
+                    else Metrics.recordSince("sender.tcpAsync", start);
+                });
+    }
+
+    /**
+     * Connect, write the whole message, shut down the output and read the reply until the node closes the connection
+     */
+    private static class TCPExchange {
+        private final AsynchronousSocketChannel channel;
+        private final ByteBuffer request;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private final ByteArrayOutputStream replyBytes = new ByteArrayOutputStream();
+        private final byte[] timeoutReply;
+        private final CompletableFuture<byte[]> reply = new CompletableFuture<>();
+
+        private final CompletionHandler<Void, Void> onConnect = new CompletionHandler<>() {
+            public void completed(Void result, Void attachment) {
+                channel.write(request, null, onWrite);
             }
 
-            // Otherwise, try again later
-            try {
-                Thread.sleep(Constants.tcpStepTime);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+            public void failed(Throwable e, Void attachment) {
+                reply.complete(timeoutReply);
             }
-        }
+        };
+
+        private final CompletionHandler<Integer, Void> onWrite = new CompletionHandler<>() {
+            public void completed(Integer written, Void attachment) {
+                if (request.hasRemaining()) {
+                    channel.write(request, null, this);
+                    return;
+                }
+
+                try {
+                    channel.shutdownOutput();
+                    channel.read(readBuffer, null, onRead);
+                } catch (IOException e) {
+                    reply.complete(timeoutReply);
+                }
+            }
+
+            public void failed(Throwable e, Void attachment) {
+                reply.complete(timeoutReply);
+            }
+        };
+
+        private final CompletionHandler<Integer, Void> onRead = new CompletionHandler<>() {
+            public void completed(Integer read, Void attachment) {
+                if (read < 0) {
+                    reply.complete(replyBytes.size() > 0 ? replyBytes.toByteArray() : timeoutReply);
+                    return;
+                }
+
+                replyBytes.write(readBuffer.array(), 0, readBuffer.position());
+                readBuffer.clear();
+                channel.read(readBuffer, null, this);
+            }
+
+            public void failed(Throwable e, Void attachment) {
+                reply.complete(timeoutReply);
+            }
+        };
 
-        istream.close();
-        socket.close();
+        TCPExchange(AsynchronousSocketChannel channel, ByteBuffer request, byte[] timeoutReply) {
+            this.channel = channel;
+            this.request = request;
+            this.timeoutReply = timeoutReply;
+        }
 
-        return reply;
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 }
@@ -1,9 +1,14 @@
 package common;
 
 import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 
 public class Utils {
     public static final String newLine = "\r\n";
@@ -26,4 +31,24 @@ public class Utils {
     public static String generateFolderPath(String nodeId) {
         return "database/" + Utils.generateKey(nodeId) + "/";
     }
+
+    /**
+     * Chooses the interface used to join the multicast group. Prefers the interface that owns the node's
+     * address and falls back to the first active interface that supports multicast.
+     */
+    public static NetworkInterface getMulticastInterface(String nodeId) throws SocketException {
+        try {
+            NetworkInterface nodeInterface = NetworkInterface.getByInetAddress(InetAddress.getByName(nodeId));
+            if (nodeInterface != null && nodeInterface.isUp() && nodeInterface.supportsMulticast())
+                return nodeInterface;
+        } catch (UnknownHostException ignored) {
+        }
+
+        for (NetworkInterface netInf : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (netInf.isUp() && netInf.supportsMulticast())
+                return netInf;
+        }
+
+        throw new SocketException("No network interface supports multicast");
+    }
 }
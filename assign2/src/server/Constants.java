@@ -4,15 +4,65 @@ public class Constants {
     public static final String membershipLogFileName = "membership.log";
     public static final String membershipCounterFileName = "membershipCounter.txt";
     public static final int numLogEvents = 32;
-    public static final int maxResponseTime = 1000;    // TODO: CHECK THIS VALUES
+    public static final int maxJoinReplyJitter = 50;
+    public static final int joinReplySlotTime = 100;
+    public static final int joinRetransmissionTime = 1000;
     public static final int timeoutTime = 3000;
-    public static final int multicastStepTime = 500;
-    public static final int tcpStepTime = 100;
     public static final int numMembershipMessages = 3;
     public static final int replicationFactor = 3;
     public static final long tombstoneCheckIntervalMS = 200;
     public static final long tombstoneExpirationMS = 10000;
     public static final int electionPingTime = 1000;
     public static final long electionPingTimeout = 5000;
+    public static final int electionProbeTimeout = 300;
+    public static final int electionProbeWidth = 3;
+    public static final long electionSuspicionTime = 10000;
     public static final int invalidPort = -1;
+    public static final int requestThreads = 16;
+    public static final int requestQueueLimit = 256;
+    public static final int replicationThreads = 4;
+    public static final int maxPendingReplications = 512;
+    public static final int rebalanceQueueLimit = 16;
+    public static final int housekeepingQueueLimit = 1024;
+    public static final int busyDrainTimeout = 100;
+    public static final String defaultDurabilityMode = "periodic";
+    public static final long durabilityIntervalMs = 1000;
+    public static final String defaultCompression = "deflate";
+    public static final int compressionThreshold = 1024;
+    public static final int chunkingThreshold = 64 * 1024;
+    public static final int minChunkSize = 8 * 1024;
+    public static final int maxChunkSize = 64 * 1024;
+    public static final int chunkMaskBits = 14; // Chunks average minChunkSize + 16 KiB
+    public static final long scrubBytesPerSecond = 4 * 1024 * 1024;
+    public static final long scrubIntervalMs = 60000; // Between the end of a scrub pass and the start of the next
+    public static final long scrubCheckIntervalMs = 1000;
+    public static final int keyFilterMinCapacity = 64 * 1024;
+    public static final long defaultCapacity = 64L * 1024 * 1024 * 1024;
+    public static final long bytesPerToken = 4L * 1024 * 1024 * 1024;
+    public static final int defaultWeight = (int) (defaultCapacity / bytesPerToken);
+    public static final int maxWeight = 256;
+    public static final double diskHighWatermark = 0.9; // Above it, a node gives up tokens as its disk fills
+    public static final long loadReportIntervalMs = 2000;
+    public static final long weightChangeIntervalMs = 30000;
+    public static final long rebalanceCheckIntervalMs = 1000;
+    public static final long rebalanceDelayMs = 3000; // Lets the ring settle and joining nodes fetch their files first
+    public static final long rebalanceRetryMs = 30000;
+    public static final long rebalanceBytesPerSecond = 16 * 1024 * 1024;
+    public static final long hotKeyWindowMs = 1000;
+    public static final int hotKeyThreshold = 100; // Reads of a key within a window that make it hot
+    public static final long hotKeyTtlMs = 10000;
+    public static final int hotKeyCopies = 2; // Nodes past the replicas that get a copy of a hot key
+    // Reads within a window that keep a hot key hot. Its reads are spread over the replicas and the copies, so the
+    // owner only sees its share of them.
+    public static final int hotKeyKeepThreshold = hotKeyThreshold / (replicationFactor + hotKeyCopies);
+    public static final int maxHotKeys = 64;
+    public static final int maxHotValueSize = 1024 * 1024;
+    public static final long hotCacheBytes = 32 * 1024 * 1024;
+    public static final long coldAfterMs = 60 * 60 * 1000; // Without reads or writes, after which a value moves to the cold folder
+    public static final long tierCheckIntervalMs = 60000;
+    public static final long tierBytesPerSecond = 8 * 1024 * 1024;
+    public static final int erasureThreshold = 1024 * 1024; // Smaller values are replicated even with an erasure code
+    public static final int maxErasureWidth = 16;
+    public static final long expiryBucketMs = 1000; // Values that expire within the same bucket are deleted together
+    public static final long expiryCheckIntervalMs = 1000;
 }
@@ -6,4 +6,9 @@ import java.rmi.RemoteException;
 public interface Server extends Remote {
     void join() throws RemoteException;
     void leave() throws RemoteException;
+
+    /**
+     * @return latency histograms, counters and gauges of the node, one metric per line
+     */
+    String getMetrics() throws RemoteException;
 }
@@ -2,11 +2,18 @@ package server;
 
 import common.Message;
 import common.Utils;
+import server.cluster.LoadReporter;
 import server.cluster.MembershipService;
 import server.cluster.Node;
+import server.logging.Logger;
+import server.metrics.Metrics;
 import server.network.MySocketFactory;
 import server.network.TCPListener;
 import server.network.UDPListener;
+import server.storage.ExpiryManager;
+import server.storage.Rebalancer;
+import server.storage.Scrubber;
+import server.storage.TierMover;
 import server.storage.StorageService;
 import server.storage.TombstoneManager;
 import server.storage.TransferService;
@@ -14,6 +21,7 @@ import server.storage.TransferService;
 import java.io.File;
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.rmi.AlreadyBoundException;
@@ -21,11 +29,11 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class Store implements Server{
+    private static final Logger log = Logger.get("store");
+
     private final String multicastIPAddr;
     private final int multicastIPPort;
     private final String nodeId;
@@ -34,10 +42,10 @@ public class Store implements Server{
     private final StorageService storageService;
     private final TransferService transferService;
 
-    private ExecutorService executorService;
+    private WorkerPools workerPools;
 
     private ServerSocket serverSocket = null;
-    private MulticastSocket multicastSocket = null;
+    private DatagramChannel multicastChannel = null;
     private boolean hasCrashed = false;
 
     public Store(String multicastIPAddr, int multicastIPPort, String nodeId, int storePort) throws RemoteException {
@@ -46,12 +54,13 @@ public class Store implements Server{
         this.nodeId = nodeId;
         this.storePort = storePort;
 
-        executorService = Executors.newCachedThreadPool();
+        workerPools = new WorkerPools();
 
         this.membershipService = new MembershipService(multicastIPAddr, multicastIPPort, nodeId, storePort);
-        this.storageService = new StorageService(membershipService.getNodeMap(), nodeId);
-        this.storageService.setExecutorService(executorService);
-        this.transferService = new TransferService(storageService, new Node(nodeId, storePort));
+        this.storageService = new StorageService(membershipService::getView, nodeId);
+        this.storageService.setWorkerPools(workerPools);
+        this.transferService = new TransferService(storageService, membershipService::getLoads, new Node(nodeId, storePort));
+        this.registerGauges();
 
         // CHECK IF CRASHED (IF membershipCounter is EVEN - i.e part of the Cluster)
         this.checkNodeCrash();
@@ -80,7 +89,7 @@ public class Store implements Server{
             Registry registry = LocateRegistry.getRegistry(nodeId, 1099, sf);
             registry.bind("Server", stub);
 
-            System.out.println("Server ready");
+            log.info("Server ready", "node", nodeId, "port", storePort);
         } catch (RemoteException | AlreadyBoundException e) {
             System.err.println("Server exception: " + e.toString());
             e.printStackTrace();
@@ -91,14 +100,18 @@ public class Store implements Server{
 
     @Override
     public void join() throws RemoteException {
-        executorService = Executors.newCachedThreadPool();
-        this.storageService.setExecutorService(executorService);
+        // The pools are shut down when the node leaves
+        if (workerPools.isShutdown()) {
+            workerPools = new WorkerPools();
+            this.storageService.setWorkerPools(workerPools);
+        }
 
-        executorService.submit(() -> {
+        // Joining and leaving run on the rebalance pool, so their transfers never overlap
+        workerPools.getRebalance().submit(() -> {
             // Checking serverSocket == null since when membershipCounter=0 it can be a member or not
             if ( (MembershipService.isClusterMember(this.membershipService.getMembershipCounter()) &&
                     this.membershipService.getMembershipCounter() != 0)  || (serverSocket != null)) {
-                System.err.println("Attempting to join a cluster while being a member.");
+                log.warn("Attempting to join a cluster while being a member");
                 return;
             }
 
@@ -110,7 +123,7 @@ public class Store implements Server{
                     throw new RuntimeException(e);
                 }
 
-                executorService.submit(new TCPListener(storageService, membershipService, transferService, executorService, serverSocket));
+                workerPools.getListeners().submit(new TCPListener(storageService, membershipService, transferService, workerPools, serverSocket));
 
                 this.membershipService.join();
                 if (!this.hasCrashed)
@@ -119,14 +132,22 @@ public class Store implements Server{
                     this.transferService.recoverFromCrash();
 
                 try {
-                    multicastSocket = new MulticastSocket(multicastIPPort);
-                    executorService.submit(new UDPListener(storageService, membershipService, transferService, executorService, multicastSocket));
-                    executorService.submit(new TombstoneManager(storageService.getDbFolder()));
+                    multicastChannel = DatagramChannel.open(StandardProtocolFamily.INET)
+                            .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                            .bind(new InetSocketAddress(multicastIPPort));
+                    workerPools.getListeners().submit(new UDPListener(storageService, membershipService, transferService, workerPools, multicastChannel));
+                    workerPools.getListeners().submit(new TombstoneManager(storageService));
+                    workerPools.getListeners().submit(new Scrubber(storageService, transferService));
+                    workerPools.getListeners().submit(new TierMover(storageService));
+                    workerPools.getListeners().submit(new ExpiryManager(storageService));
+                    workerPools.getListeners().submit(new Rebalancer(storageService, transferService, workerPools));
+                    workerPools.getListeners().submit(new LoadReporter(membershipService, storageService::getDiskUsage,
+                            () -> Metrics.getCount("tcp.requests")));
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
             } catch(RuntimeException re) {
-                System.err.println(re.getMessage());
+                log.error("Membership operation failed", re);
                 // Clear ExecutorService threads?
             }
         });
@@ -134,10 +155,10 @@ public class Store implements Server{
 
     @Override
     public void leave() throws RemoteException {
-        executorService.submit(() -> {
+        workerPools.getRebalance().submit(() -> {
             // Checking serverSocket == null since when membershipCounter=0 it can be a member or not
             if (!MembershipService.isClusterMember(this.membershipService.getMembershipCounter()) || (serverSocket == null)) {
-                System.err.println("Attempting to leave the cluster while not being a member.");
+                log.warn("Attempting to leave the cluster while not being a member");
                 return;
             }
 
@@ -146,16 +167,14 @@ public class Store implements Server{
                     serverSocket.close();
                     serverSocket = null;
 
-                    InetSocketAddress group = new InetSocketAddress(multicastIPAddr, multicastIPPort);
-                    NetworkInterface netInf = NetworkInterface.getByIndex(0);
-                    multicastSocket.leaveGroup(group, netInf);
-                    multicastSocket.close();
-                    multicastSocket = null;
+                    // Closing the channel also drops its multicast group membership
+                    multicastChannel.close();
+                    multicastChannel = null;
 
-                    if (executorService.awaitTermination(1, TimeUnit.SECONDS)) {
-                        System.out.println("Executor terminated.");
+                    if (workerPools.getRequests().awaitTermination(1, TimeUnit.SECONDS)) {
+                        log.debug("Request pool drained");
                     } else {
-                        System.out.println("Executor still running");
+                        log.debug("Request pool still running");
                     }
                 } catch (InterruptedException | IOException e) {
                     throw new RuntimeException(e);
@@ -163,17 +182,39 @@ public class Store implements Server{
                 transferService.leave();
                 membershipService.leave();
             } catch (RuntimeException re) {
-                System.err.println(re.getMessage());
+                log.error("Membership operation failed", re);
                 // Clear ExecutorService threads?
             }
-            executorService.shutdownNow();
+            workerPools.shutdownNow();
         });
     }
 
+    @Override
+    public String getMetrics() throws RemoteException {
+        return Metrics.report();
+    }
+
+    /**
+     * The pool gauges read the current pools, which are replaced when the node joins again after leaving
+     */
+    private void registerGauges() {
+        for (String name : workerPools.getQueueDepths().keySet())
+            Metrics.gauge("pool." + name, () -> workerPools.getQueueDepths().get(name));
+        Metrics.gauge("disk.bytes", storageService::getDiskUsage);
+        Metrics.gauge("disk.chunks", storageService::getChunkCount);
+        Metrics.gauge("disk.coldBytes", storageService::getColdBytes);
+        Metrics.gauge("ring.nodes", () -> membershipService.getView().size());
+        Metrics.gauge("ring.tokens", () -> membershipService.getView().tokens().size());
+        Metrics.gauge("ring.weight", () -> membershipService.getWeight(nodeId));
+        Metrics.gauge("hot.keys", storageService::getHotKeyCount);
+        Metrics.gauge("hot.cacheBytes", storageService::getCachedBytes);
+        Metrics.gauge("expiry.keys", storageService::getExpiringKeyCount);
+    }
+
     private void checkNodeCrash() throws RemoteException {
         if (this.membershipService.hasCrashed()) {
             this.hasCrashed = true;
-            System.out.println("Restoring the Store state after crash...");
+            log.info("Restoring the Store state after crash");
             // This means the node crashed while being a part
             this.membershipService.leave();
             this.join();
@@ -0,0 +1,135 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread pools of a Store, one per kind of work, so a burst of clients cannot starve the membership
+ * protocol and rebalancing does not compete with foreground requests.
+ * - listeners: long-running loops (TCP accept, UDP receive, tombstone manager, scrubber, rebalancer, load reports,
+ *   election timers), a fixed number of them
+ * - requests: client and peer requests, bounded queue; a full queue is reported as a busy reply
+ * - replication: channel group of the asynchronous replica sends, with a bounded number of sends in flight
+ * - rebalance: join, leave, crash recovery and rebalancing transfers, one at a time
+ * - housekeeping: multicast membership events
+ */
+public class WorkerPools {
+    private final ExecutorService listeners;
+    private final ThreadPoolExecutor requests;
+    private final ThreadPoolExecutor rebalance;
+    private final ThreadPoolExecutor housekeeping;
+    private final AsynchronousChannelGroup replicationGroup;
+
+    private final AtomicInteger pendingReplications = new AtomicInteger();
+    private final LongAdder rejectedRequests = new LongAdder();
+    private final LongAdder rejectedReplications = new LongAdder();
+
+    public WorkerPools() {
+        this.listeners = Executors.newCachedThreadPool(namedThreads("listener"));
+        this.requests = bounded("request", Constants.requestThreads, Constants.requestQueueLimit);
+        this.rebalance = bounded("rebalance", 1, Constants.rebalanceQueueLimit);
+        this.housekeeping = bounded("housekeeping", 1, Constants.housekeepingQueueLimit);
+        try {
+            this.replicationGroup = AsynchronousChannelGroup.withFixedThreadPool(Constants.replicationThreads,
+                    namedThreads("replication"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public ExecutorService getListeners() {
+        return listeners;
+    }
+
+    /**
+     * Rejects tasks with a RejectedExecutionException once the queue is full
+     */
+    public ExecutorService getRequests() {
+        return requests;
+    }
+
+    public ExecutorService getRebalance() {
+        return rebalance;
+    }
+
+    public ExecutorService getHousekeeping() {
+        return housekeeping;
+    }
+
+    public AsynchronousChannelGroup getReplicationGroup() {
+        return replicationGroup;
+    }
+
+    public void recordRejectedRequest() {
+        rejectedRequests.increment();
+    }
+
+    /**
+     * Reserves one replica send, released with releaseReplication when the send completes
+     * @return false if too many replica sends are already in flight
+     */
+    public boolean tryAcquireReplication() {
+        if (pendingReplications.incrementAndGet() <= Constants.maxPendingReplications) return true;
+
+        pendingReplications.decrementAndGet();
+        rejectedReplications.increment();
+        return false;
+    }
+
+    public void releaseReplication() {
+        pendingReplications.decrementAndGet();
+    }
+
+    public boolean isReplicationSaturated() {
+        return pendingReplications.get() >= Constants.maxPendingReplications;
+    }
+
+    /**
+     * @return queued tasks, active threads and rejections of each pool, in a stable order
+     */
+    public Map<String, Long> getQueueDepths() {
+        Map<String, Long> depths = new LinkedHashMap<>();
+        depths.put("request.queued", (long) requests.getQueue().size());
+        depths.put("request.active", (long) requests.getActiveCount());
+        depths.put("request.rejected", rejectedRequests.sum());
+        depths.put("replication.pending", (long) pendingReplications.get());
+        depths.put("replication.rejected", rejectedReplications.sum());
+        depths.put("rebalance.queued", (long) rebalance.getQueue().size());
+        depths.put("housekeeping.queued", (long) housekeeping.getQueue().size());
+        return depths;
+    }
+
+    public boolean isShutdown() {
+        return requests.isShutdown();
+    }
+
+    public void shutdownNow() {
+        listeners.shutdownNow();
+        requests.shutdownNow();
+        rebalance.shutdownNow();
+        housekeeping.shutdownNow();
+        replicationGroup.shutdown();
+    }
+
+    private static ThreadPoolExecutor bounded(String name, int threads, int queueLimit) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueLimit), namedThreads(name), new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory namedThreads(String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, name + "-" + count.incrementAndGet());
+    }
+}
@@ -5,6 +5,8 @@ import common.MessageTypes;
 import common.Sender;
 import common.Utils;
 import server.Constants;
+import server.logging.Logger;
+import server.metrics.Metrics;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -12,20 +14,41 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 public class ElectionService implements Runnable{
+        private static final Logger log = Logger.get("election");
+        /**
+         * SEQUENTIAL tries each successor in turn, waiting a full timeout for dead ones.
+         * PARALLEL_PROBE pings a few successors at once with a short timeout and skips recently failed nodes.
+         */
+        public enum WalkMode {
+                SEQUENTIAL,
+                PARALLEL_PROBE
+        }
+
+        private static volatile WalkMode walkMode = WalkMode.PARALLEL_PROBE;
+        private static final ConcurrentHashMap<String, Long> suspectedNodes = new ConcurrentHashMap<>();
+        // One thread per probe of a window, concurrent walks queue their probes
+        private static volatile ExecutorService probeExecutor = newProbeExecutor();
+
         private final String folderPath;
         private final String multicastIPAddr;
         private final int multicastPort;
 
         private final String nodeId;
 
-        private final TreeMap<String, Node> nodeMap;
+        private final Supplier<NavigableMap<String, Node>> nodeMap;
 
-        public ElectionService(String nodeId, String folderPath, String multicastIPAddr, int multicastPort, TreeMap<String, Node> nodeMap) {
+        public ElectionService(String nodeId, String folderPath, String multicastIPAddr, int multicastPort, Supplier<NavigableMap<String, Node>> nodeMap) {
                 this.folderPath = folderPath;
                 this.multicastIPAddr = multicastIPAddr;
                 this.multicastPort = multicastPort;
@@ -33,7 +56,26 @@ public class ElectionService implements Runnable{
                 this.nodeMap = nodeMap;
         }
 
-        public static void sendRequest(String nodeId, TreeMap<String, Node> nodeMap) {
+        /**
+         * Starts the probe threads again after a leave shut them down
+         */
+        public static synchronized void startProbes() {
+                if (probeExecutor.isShutdown()) probeExecutor = newProbeExecutor();
+        }
+
+        public static void shutdownProbes() {
+                probeExecutor.shutdownNow();
+        }
+
+        private static ExecutorService newProbeExecutor() {
+                return Executors.newFixedThreadPool(Constants.electionProbeWidth, runnable -> {
+                        Thread thread = new Thread(runnable, "election-probe");
+                        thread.setDaemon(true);
+                        return thread;
+                });
+        }
+
+        public static void sendRequest(String nodeId, NavigableMap<String, Node> nodeMap) {
                 Path path = Paths.get(Utils.generateFolderPath(nodeId) + Constants.membershipLogFileName);
                 try {
                         byte[] fileData = Files.readAllBytes(path);
@@ -47,75 +89,136 @@ public class ElectionService implements Runnable{
 
                         sendSafeMessage(nodeId, nodeMap, electionMessage, "Request");
                 } catch (IOException e) {
-                        System.out.println("Error while starting election request");
+                        log.error("Error while starting election request", e);
                 }
         }
 
-        public static void propagateRequest(String nodeId, TreeMap<String, Node> nodeMap, Message message) {
+        public static void propagateRequest(String nodeId, NavigableMap<String, Node> nodeMap, Message message) {
                 try {
                         sendSafeMessage(nodeId, nodeMap, message, "Propagate");
                 } catch (IOException e) {
-                        System.out.println("Error while propagating election request");
+                        log.error("Error while propagating election request", e);
                 }
         }
 
         /**
          * If the leader leaves the cluster, it will send a leave request to the next Node so that it starts an election process.
          */
-        public static void sendLeave(TreeMap<String, Node> nodeMap, byte[] leaveBody) {
+        public static void sendLeave(NavigableMap<String, Node> nodeMap, byte[] leaveBody) {
                 try {
                         Message electionMessage = new Message(MessageTypes.REQUEST.getCode(), MessageTypes.ELECTION_LEAVE.getCode(), leaveBody);
                         sendSafeByFirst(nodeMap, electionMessage, "Leave");
                 } catch (IOException e) {
-                        System.out.println("Error while sending leave request");
+                        log.error("Error while sending leave request", e);
                 }
         }
 
         /**
-         *  Gets next node to node with key. If there is no node with higher key value,
-         *  then gets the first node, so it behaves like a circular map
-         * @return Next Node
+         * Walks the ring from the node after sourceNodeId until a node accepts the election message
          */
-        public static Node getNextNode(String nodeId, TreeMap<String, Node> nodeMap) {
-                if (nodeMap.size() == 0) return null;
-                String key = Utils.generateKey(nodeId);
+        private static void sendSafeMessage(String sourceNodeId, NavigableMap<String, Node> nodeMap, Message electionMessage, String label) throws IOException {
+                if (nodeMap.size() == 0) return;
+
+                // Ring order starting after the source. The source itself is the last one, as in a full turn of the ring
+                String sourceKey = Utils.generateKey(sourceNodeId);
+                List<Node> candidates = new ArrayList<>(nodeMap.tailMap(sourceKey, false).values());
+                candidates.addAll(nodeMap.headMap(sourceKey, true).values());
 
-                // Get the next node to store the files
-                Map.Entry<String, Node> nextEntry = nodeMap.higherEntry(key);
-                if (nextEntry == null) nextEntry = nodeMap.firstEntry();
-                Node nextNode = nextEntry.getValue();
-                return nextNode;
+                walkRing(candidates, electionMessage, label);
         }
 
-        private static void sendSafeMessage(String sourceNodeId, TreeMap<String, Node> nodeMap, Message electionMessage, String label) throws IOException {
-                String currNodeId = sourceNodeId;
-                while (true) {
-                        Node nextNode = getNextNode(currNodeId, nodeMap);
-                        if (nextNode == null) return;
-                        currNodeId = nextNode.getId();
+        /**
+         * Walks the ring from its first node until a node accepts the election message
+         */
+        private static void sendSafeByFirst(NavigableMap<String, Node> nodeMap, Message electionMessage, String label) throws IOException {
+                if (nodeMap.size() == 0) return;
 
-                        System.out.printf("Sending %s Election message to %s...\n", label, nextNode.getId());
+                walkRing(new ArrayList<>(nodeMap.values()), electionMessage, label);
+        }
 
-                        byte[] electionRes = Sender.sendTCPMessage(electionMessage.toBytes(), nextNode.getId(), nextNode.getPort());
+        private static void walkRing(List<Node> candidates, Message electionMessage, String label) throws IOException {
+                if (walkMode == WalkMode.SEQUENTIAL) {
+                        for (Node nextNode : candidates) {
+                                if (sendElectionMessage(nextNode, electionMessage, label)) return;
+                        }
+                        return;
+                }
 
-                        Message resMessage = new Message(electionRes);
-                        if (resMessage.getAction().equals(MessageTypes.OK.getCode()))
+                // Suspected nodes are only tried after every other node. The sort is stable, so ring order is kept
+                candidates.sort(Comparator.comparing(node -> isSuspected(node.getId())));
+
+                // Probes a window of successors in parallel, so a dead node costs one short probe instead of a full timeout
+                for (int i = 0; i < candidates.size(); i += Constants.electionProbeWidth) {
+                        List<Node> window = candidates.subList(i, Math.min(i + Constants.electionProbeWidth, candidates.size()));
+                        List<CompletableFuture<Boolean>> probes = new ArrayList<>(window.size());
+                        try {
+                                for (Node node : window)
+                                        probes.add(CompletableFuture.supplyAsync(() -> probe(node), probeExecutor));
+                        } catch (RejectedExecutionException e) {
+                                // The node left while walking the ring
                                 return;
+                        }
+
+                        for (int j = 0; j < window.size(); ++j) {
+                                Node nextNode = window.get(j);
+                                if (!probes.get(j).join()) {
+                                        suspect(nextNode.getId());
+                                        continue;
+                                }
+
+                                if (sendElectionMessage(nextNode, electionMessage, label)) return;
+                                suspect(nextNode.getId());
+                        }
                 }
         }
 
-        private static void sendSafeByFirst(TreeMap<String, Node> nodeMap, Message electionMessage, String label) throws IOException {
-                if (nodeMap.size() == 0) return;
-                Node firstNode = nodeMap.firstEntry().getValue();
-
-                System.out.printf("Sending %s Election message to %s...\n", label, firstNode.getId());
+        /**
+         * @return true if the node accepted the message
+         */
+        private static boolean sendElectionMessage(Node nextNode, Message electionMessage, String label) throws IOException {
+                log.info("Sending election message", "type", label, "node", nextNode.getId());
 
-                byte[] electionRes = Sender.sendTCPMessage(electionMessage.toBytes(), firstNode.getId(), firstNode.getPort());
+                long start = System.nanoTime();
+                byte[] electionRes = Sender.sendTCPMessage(electionMessage.toBytes(), nextNode.getId(), nextNode.getPort());
+                Metrics.recordSince("election.send", start);
                 Message resMessage = new Message(electionRes);
-                if (resMessage.getAction().equals(MessageTypes.OK.getCode()))
-                        return;
+                if (!resMessage.getAction().equals(MessageTypes.OK.getCode())) return false;
+
+                suspectedNodes.remove(nextNode.getId());
+                return true;
+        }
+
+        private static boolean probe(Node node) {
+                try {
+                        Message ping = new Message(MessageTypes.REQUEST.getCode(), MessageTypes.PING.getCode(), null);
+                        long start = System.nanoTime();
+                        byte[] reply = Sender.sendTCPMessage(ping.toBytes(), node.getId(), node.getPort(), Constants.electionProbeTimeout);
+                        Metrics.recordSince("election.probe", start);
+                        return new Message(reply).getAction().equals(MessageTypes.OK.getCode());
+                } catch (IOException e) {
+                        return false;
+                }
+        }
+
+        private static void suspect(String nodeId) {
+                Metrics.increment("election.suspected");
+                suspectedNodes.put(nodeId, System.currentTimeMillis() + Constants.electionSuspicionTime);
+        }
+
+        private static boolean isSuspected(String nodeId) {
+                Long suspectedUntil = suspectedNodes.get(nodeId);
+                return suspectedUntil != null && suspectedUntil > System.currentTimeMillis();
+        }
+
+        /**
+         * Forgets every suspected node, so the next election walks the ring from scratch
+         */
+        public static void clearSuspicions() {
+                suspectedNodes.clear();
+        }
 
-                sendSafeMessage(firstNode.getId(), nodeMap, electionMessage, label);
+        public static void setWalkMode(WalkMode mode) {
+                walkMode = mode;
         }
 
         @Override
@@ -126,7 +229,7 @@ public class ElectionService implements Runnable{
                                 String nodeIdLine = nodeId + Utils.newLine;
                                 byteOut.write(nodeIdLine.getBytes(StandardCharsets.UTF_8));
 
-                                byte[] electionBody = LogHandler.buildLogsBytes(this.folderPath, this.nodeMap);
+                                byte[] electionBody = LogHandler.buildLogsBytes(this.folderPath, this.nodeMap.get());
                                 byteOut.write(electionBody);
 
                                 Message msg = new Message(MessageTypes.REQUEST.getCode(), MessageTypes.ELECTION_PING.getCode(), byteOut.toByteArray());
@@ -137,9 +240,9 @@ public class ElectionService implements Runnable{
                                 // TODO: Check if needs to detect any exception to stop
                         }
                 } catch (InterruptedException e) {
-                        System.out.println("Node stopped being a leader.");
+                        log.info("Node stopped being a leader");
                 } catch (IOException e) {
-                        e.printStackTrace();
+                        log.error("Error sending election ping", e);
                 }
         }
 }
@@ -0,0 +1,79 @@
+package server.cluster;
+
+import server.Constants;
+import server.logging.Logger;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Multicasts the capacity and load of this node every loadReportIntervalMs, and adjusts its weight in the ring.
+ * The weight follows the capacity, read from the store.capacity system property in bytes, so every disk fills
+ * at the same pace. A node whose disk is fuller than diskHighWatermark gives up tokens until it is down to one
+ * when the disk is full, and takes them back once the disk has room again.
+ * The weight moves by at most a quarter of the capacity weight every weightChangeIntervalMs, so each change moves
+ * a bounded share of the keys and the rebalancing of one step is done before the next.
+ */
+public class LoadReporter implements Runnable {
+    private static final Logger log = Logger.get("membership");
+
+    private final MembershipService membershipService;
+    private final LongSupplier diskUsage;
+    private final LongSupplier requestCount;
+    private final int capacityWeight;
+
+    private long lastWeightChange = 0;
+    private long lastReport;
+    private long lastRequestCount;
+
+    /**
+     * @param requestCount number of requests served so far
+     */
+    public LoadReporter(MembershipService membershipService, LongSupplier diskUsage, LongSupplier requestCount) {
+        this.membershipService = membershipService;
+        this.diskUsage = diskUsage;
+        this.requestCount = requestCount;
+        this.capacityWeight = NodeLoad.weightOf(membershipService.getCapacity());
+    }
+
+    public void run() {
+        lastReport = System.currentTimeMillis();
+        lastRequestCount = requestCount.getAsLong();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(Constants.loadReportIntervalMs);
+                report();
+            }
+        } catch (InterruptedException ignored) {
+            // The node left the cluster
+        }
+    }
+
+    private void report() {
+        final long now = System.currentTimeMillis();
+        final long requests = requestCount.getAsLong();
+        final long requestRate = (requests - lastRequestCount) * 1000 / Math.max(1, now - lastReport);
+        lastReport = now;
+        lastRequestCount = requests;
+
+        final long diskBytes = diskUsage.getAsLong();
+        int weight = membershipService.getWeight(membershipService.getNodeId());
+        final int target = targetWeight(diskBytes);
+        if (target != weight && now - lastWeightChange >= Constants.weightChangeIntervalMs) {
+            final int step = Math.max(1, capacityWeight / 4);
+            final int newWeight = target > weight ? Math.min(target, weight + step) : Math.max(target, weight - step);
+            log.info("Changing the weight of the node", "weight", newWeight, "target", target, "diskBytes", diskBytes);
+            membershipService.setWeight(newWeight);
+            lastWeightChange = now;
+            weight = newWeight;
+        }
+
+        membershipService.multicastLoad(new NodeLoad(weight, diskBytes, membershipService.getCapacity(), requestRate));
+    }
+
+    private int targetWeight(long diskBytes) {
+        final double fill = (double) diskBytes / membershipService.getCapacity();
+        if (fill <= Constants.diskHighWatermark) return capacityWeight;
+
+        return (int) Math.max(1, Math.round(capacityWeight * (1 - fill) / (1 - Constants.diskHighWatermark)));
+    }
+}
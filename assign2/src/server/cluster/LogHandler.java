@@ -64,9 +64,7 @@ public class LogHandler {
         synchronized (logPath.intern()) {
             File file = new File(logPath);
 
-            try {
-                FileReader fr = new FileReader(file);
-                BufferedReader br = new BufferedReader(fr);
+            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
                 String line;
                 int logCounter = 0;
                 while ((line = br.readLine()) != null) {
@@ -90,7 +88,7 @@ public class LogHandler {
      * @param nodeMap if This is null, it will send the tcpPort of the node in the log line
      * @return byte array
      */
-    public static byte[] buildLogsBytes(String folderPath, TreeMap<String, Node> nodeMap) {
+    public static byte[] buildLogsBytes(String folderPath, Map<String, Node> nodeMap) {
         String logPath = folderPath + Constants.membershipLogFileName;
 
         ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
@@ -1,9 +1,11 @@
 package server.cluster;
 
 import common.Message;
+import common.MessageTypes;
 import common.Sender;
 import common.Utils;
 import server.Constants;
+import server.logging.Logger;
 import server.network.TCPListener;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -12,34 +14,58 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Membership state is kept lock-free: the ring is an immutable MembershipView replaced by compare-and-swap,
+ * and the remaining fields are atomics or concurrent collections, since UDP, TCP and election threads
+ * update it concurrently.
+ */
 public class MembershipService implements ClusterMembership {
-    private final TreeMap<String, Node> nodeMap;
+    private static final Logger log = Logger.get("membership");
+
+    private final AtomicReference<MembershipView> view;
+    private volatile RingDigest ringDigest = new RingDigest(null, null); // Of the last view a reply was sent with
     private final String multicastIpAddr;
     private final int multicastIPPort;
     private final String nodeId;
 
     private final int tcpPort;
     private final String folderPath;
-    private int membershipCounter = 0; // NEEDS TO BE STORED IN NON-VOLATILE MEMORY TO SURVIVE NODE CRASHES
+    private final AtomicInteger membershipCounter = new AtomicInteger(0); // Also stored in non-volatile memory to survive node crashes
     private static final int maxRetransmissions = 3;
-    private final HashSet<String> membershipReplyNodes;
-    private final HashSet<String> repliedNodes;
+    private final Set<String> membershipReplyNodes;
+    private final AtomicReference<String> lastRepliedNode;
+    private volatile ScheduledExecutorService scheduler; // Join retransmissions and replies, shut down on leave
+    private final ConcurrentHashMap<String, ScheduledFuture<?>> pendingJoinReplies;
+    private volatile CompletableFuture<Void> pendingJoin = null;
+
+    private final long capacity;
+    private final AtomicInteger weight;
+    private final ConcurrentHashMap<String, Integer> weights; // Advertised by the other nodes
+    private final ConcurrentHashMap<String, NodeLoad> loads;
 
-    private boolean isElected = false;
-    Future<?> electionPingThread = null;
+    private final AtomicBoolean isElected = new AtomicBoolean(false);
+    volatile Future<?> electionPingThread = null;
 
     public MembershipService(String multicastIPAddr, int multicastIPPort, String nodeId, int tcpPort) {
-        this.nodeMap = new TreeMap<>();
+        this.view = new AtomicReference<>(MembershipView.empty());
         this.multicastIpAddr = multicastIPAddr;
         this.multicastIPPort = multicastIPPort;
         this.nodeId = nodeId;
         this.tcpPort = tcpPort;
         this.folderPath = Utils.generateFolderPath(nodeId);
-        this.membershipReplyNodes = new HashSet<>();
-        this.repliedNodes = new HashSet<>();
+        this.membershipReplyNodes = ConcurrentHashMap.newKeySet();
+        this.lastRepliedNode = new AtomicReference<>(null);
+        this.scheduler = newScheduler();
+        this.pendingJoinReplies = new ConcurrentHashMap<>();
+        this.capacity = Long.getLong("store.capacity", Constants.defaultCapacity);
+        this.weight = new AtomicInteger(NodeLoad.weightOf(this.capacity));
+        this.weights = new ConcurrentHashMap<>();
+        this.loads = new ConcurrentHashMap<>();
         this.createNodeFolder();
     }
 
@@ -48,14 +74,17 @@ public class MembershipService implements ClusterMembership {
      */
     @Override
     public void join() {
-        if (this.membershipCounter == 0 || !isClusterMember(this.membershipCounter)) {
-            if (this.membershipCounter != 0) // Edge case for the first join
-                this.updateMembershipCounter(this.membershipCounter + 1);
+        final int counter = this.membershipCounter.get();
+        if (counter == 0 || !isClusterMember(counter)) {
+            if (counter != 0) // Edge case for the first join
+                this.updateMembershipCounter(counter + 1);
+            if (this.scheduler.isShutdown()) this.scheduler = newScheduler();
+            ElectionService.startProbes();
 
             this.multicastJoin();
 
             // Send election request
-            ElectionService.sendRequest(this.nodeId, this.nodeMap);
+            ElectionService.sendRequest(this.nodeId, this.getNodeMap());
         } else {
             throw new RuntimeException("Attempting to join the cluster while being already a member.");
         }
@@ -66,26 +95,36 @@ public class MembershipService implements ClusterMembership {
      */
     @Override
     public void leave() {
-        if (isClusterMember(this.membershipCounter)) {
+        if (isClusterMember(this.membershipCounter.get())) {
             this.removeNodeFromMap(this.nodeId);
-            this.updateMembershipCounter(this.membershipCounter + 1);
-            this.addLog(this.nodeId, this.membershipCounter, this.tcpPort);
+            this.updateMembershipCounter(this.membershipCounter.get() + 1);
+            this.addLog(this.nodeId, this.membershipCounter.get(), this.tcpPort);
             this.multicastLeave();
+            this.scheduler.shutdownNow();
+            this.pendingJoinReplies.clear();
 
-            if (this.isElected) {
-                ElectionService.sendLeave(this.nodeMap, this.buildMembershipMsgBody());
+            if (this.isElected.getAndSet(false)) {
+                ElectionService.sendLeave(this.getNodeMap(), this.buildMembershipMsgBody());
 
-                this.isElected = false;
                 if (this.electionPingThread != null) this.electionPingThread.cancel(true);
             }
+            ElectionService.shutdownProbes();
         }
     }
 
+    private static ScheduledExecutorService newScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "membership-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     /**
      * Updates the membershipCounter value and stores it in non-volatile memory
      */
     public void updateMembershipCounter(int newCounter) {
-        this.membershipCounter = newCounter;
+        this.membershipCounter.set(newCounter);
         String filePath = this.folderPath + Constants.membershipCounterFileName;
 
         synchronized (filePath.intern()) {
@@ -96,15 +135,30 @@ public class MembershipService implements ClusterMembership {
                 counterWriter.write(String.valueOf(newCounter));
                 counterWriter.close();
             } catch (IOException e) {
-                System.out.println("Failed to update membership counter.");
+                log.error("Failed to update membership counter", e);
             }
         }
     }
 
-    public TreeMap<String, Node> getNodeMap() {
-        return nodeMap;
+    /**
+     * @return read-only snapshot of the current ring
+     */
+    public NavigableMap<String, Node> getNodeMap() {
+        return view.get().nodes();
+    }
+
+    public MembershipView getView() {
+        return view.get();
     }
 
+    public long getMembershipVersion() {
+        return view.get().version();
+    }
+
+    /**
+     * Multicasts the join request and waits until enough nodes reply. The request is retransmitted by the
+     * scheduler, while the join completes as soon as the last expected reply arrives.
+     */
     private void multicastJoin() {
         byte[] joinBody;
         try {
@@ -116,31 +170,50 @@ public class MembershipService implements ClusterMembership {
 
         // Add this node information
         this.addNodeToMap(this.nodeId, this.tcpPort);
-        this.addLog(this.nodeId, this.membershipCounter, this.tcpPort);
-
-        int retransmissionCounter = 0;
-        while (retransmissionCounter < maxRetransmissions) {
-            int elapsedTime = 0;
-            try {
-                Sender.sendMulticast(msg.toBytes(), this.multicastIpAddr, this.multicastIPPort);
-                while (elapsedTime < Constants.timeoutTime) {
-                    Thread.sleep(Constants.multicastStepTime);
-                    if (this.membershipReplyNodes.size() >= Constants.numMembershipMessages) {
-                        this.membershipReplyNodes.clear();
-                        System.out.println("New Node joined the distributed store");
-                        return;
-                    }
-
-                    elapsedTime += Constants.multicastStepTime;
+        this.addLog(this.nodeId, this.membershipCounter.get(), this.tcpPort);
+
+        final CompletableFuture<Void> joinFuture = new CompletableFuture<>();
+        this.pendingJoin = joinFuture;
+
+        List<ScheduledFuture<?>> retransmissions = new ArrayList<>();
+        for (int i = 0; i < maxRetransmissions; ++i) {
+            retransmissions.add(this.scheduler.schedule(() -> {
+                try {
+                    Sender.sendMulticast(msg.toBytes(), this.multicastIpAddr, this.multicastIPPort);
+                } catch (IOException e) {
+                    joinFuture.completeExceptionally(e);
                 }
-            } catch (InterruptedException | IOException e) {
-                throw new RuntimeException(e);
-            }
+            }, (long) i * Constants.joinRetransmissionTime, TimeUnit.MILLISECONDS));
+        }
 
-            retransmissionCounter++;
+        try {
+            joinFuture.get((long) maxRetransmissions * Constants.joinRetransmissionTime, TimeUnit.MILLISECONDS);
+            log.info("New node joined the distributed store", "node", this.nodeId, "nodes", this.getView().size());
+            this.multicastJoinAck();
+        } catch (TimeoutException e) {
+            log.info("Prime node joined the distributed store", "node", this.nodeId);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (ScheduledFuture<?> retransmission : retransmissions)
+                retransmission.cancel(false);
+            this.pendingJoin = null;
+            this.membershipReplyNodes.clear();
         }
+    }
 
-        System.out.println("Prime Node joined the distributed store.");
+    /**
+     * Tells the cluster that this node has enough replies, so nodes still waiting to reply can skip it
+     */
+    private void multicastJoinAck() {
+        String body = this.nodeId + Utils.newLine;
+        Message msg = new Message("REQ", MessageTypes.JOIN_ACK.getCode(), body.getBytes(StandardCharsets.UTF_8));
+
+        try {
+            Sender.sendMulticast(msg.toBytes(), this.multicastIpAddr, this.multicastIPPort);
+        } catch (IOException e) {
+            log.warn("Failed to send join acknowledgment", "error", e.getMessage());
+        }
     }
 
     private void multicastLeave() {
@@ -158,17 +231,18 @@ public class MembershipService implements ClusterMembership {
             throw new RuntimeException(e);
         }
 
-        System.out.println("Node left the distributed store.");
+        log.info("Node left the distributed store", "node", this.nodeId);
     }
 
     /**
-     * Body has nodeId, tcp port and membership Counter
+     * Body has nodeId, tcp port, membership Counter and weight
      */
     private byte[] buildMembershipBody() throws IOException {
         StringBuilder sb = new StringBuilder();
         sb.append(this.nodeId).append(Utils.newLine);
         sb.append(this.tcpPort).append(Utils.newLine);
-        sb.append(this.membershipCounter).append(Utils.newLine);
+        sb.append(this.membershipCounter.get()).append(Utils.newLine);
+        sb.append(this.weight.get()).append(Utils.newLine);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
         return out.toByteArray();
@@ -192,31 +266,96 @@ public class MembershipService implements ClusterMembership {
     }
 
     /**
-     * Adds a new node to the nodeMap.
+     * Adds a new node to the nodeMap, with the last weight it advertised
      */
     public void addNodeToMap(String newNodeId, int newNodePort) {
-        String key = Utils.generateKey(newNodeId);
-        if (!this.nodeMap.containsKey(key)) {
-            Node newNode = new Node(newNodeId, newNodePort);
-            this.nodeMap.put(key, newNode);
+        final Node newNode = new Node(newNodeId, newNodePort, this.getWeight(newNodeId));
+        this.view.updateAndGet(currView -> currView.withNode(newNode));
+    }
+
+    /**
+     * Adds a new node to the nodeMap, or updates its weight if it is already there
+     */
+    public void addNodeToMap(String newNodeId, int newNodePort, int newNodeWeight) {
+        if (!newNodeId.equals(this.nodeId)) this.weights.put(newNodeId, newNodeWeight);
+        this.addNodeToMap(newNodeId, newNodePort);
+    }
+
+    /**
+     * @return the weight of a node, the default weight if it did not advertise one yet
+     */
+    public int getWeight(String id) {
+        if (id.equals(this.nodeId)) return this.weight.get();
+        return this.weights.getOrDefault(id, Constants.defaultWeight);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Changes the weight of this node. The other nodes learn it from the next load report.
+     */
+    public void setWeight(int newWeight) {
+        this.weight.set(newWeight);
+        this.view.updateAndGet(currView -> currView.contains(this.nodeId) ?
+                currView.withNode(new Node(this.nodeId, this.tcpPort, newWeight)) : currView);
+    }
+
+    /**
+     * @return the last load advertised by each node
+     */
+    public Map<String, NodeLoad> getLoads() {
+        return Collections.unmodifiableMap(loads);
+    }
+
+    /**
+     * Body has nodeId, tcp port, weight, stored bytes, capacity and request rate
+     */
+    public void multicastLoad(NodeLoad load) {
+        this.loads.put(this.nodeId, load);
+        String body = this.nodeId + Utils.newLine + this.tcpPort + Utils.newLine + load.weight() + Utils.newLine +
+                load.diskBytes() + Utils.newLine + load.capacityBytes() + Utils.newLine + load.requestRate() + Utils.newLine;
+        Message msg = new Message("REQ", MessageTypes.LOAD.getCode(), body.getBytes(StandardCharsets.UTF_8));
+
+        try {
+            Sender.sendMulticast(msg.toBytes(), this.multicastIpAddr, this.multicastIPPort);
+        } catch (IOException e) {
+            log.warn("Failed to send load report", "error", e.getMessage());
         }
     }
 
+    /**
+     * Records the load of another node and applies its weight if it changed. Nodes only join the ring
+     * through the membership protocol, so reports of nodes outside the ring only keep their weight for later.
+     */
+    public void handleLoad(String loadNodeId, int loadNodePort, NodeLoad load) {
+        this.loads.put(loadNodeId, load);
+        this.weights.put(loadNodeId, load.weight());
+
+        final Node current = this.getView().getNode(loadNodeId);
+        if (current == null || current.getWeight() == load.weight()) return;
+
+        final Node node = new Node(loadNodeId, loadNodePort, load.weight());
+        MembershipView newView = this.view.updateAndGet(currView ->
+                currView.contains(loadNodeId) ? currView.withNode(node) : currView);
+        log.info("Node weight changed", "node", loadNodeId, "weight", load.weight(), "version", newView.version());
+    }
+
     /***
      * Removes a node from the map with a specific id
      * 
      * @param oldNodeId nodeId
      */
     public void removeNodeFromMap(String oldNodeId) {
-        String key = Utils.generateKey(oldNodeId);
-        this.nodeMap.remove(key);
+        this.view.updateAndGet(currView -> currView.withoutNode(oldNodeId));
     }
 
     private void createNodeFolder() {
         File folder = new File(this.folderPath);
 
         if (!folder.mkdirs() && !folder.isDirectory()) {
-            System.out.println("Error creating the node's folder: " + this.folderPath);
+            log.error("Error creating the node's folder", "folder", this.folderPath);
         } else {
             // The membership log should be updated with the one received by other nodes
             // already belonging to the system
@@ -235,7 +374,7 @@ public class MembershipService implements ClusterMembership {
                     // Recover membership counter
                     Scanner counterScanner = new Scanner(memberCounter);
                     if (counterScanner.hasNextInt()) {
-                        this.membershipCounter = counterScanner.nextInt();
+                        this.membershipCounter.set(counterScanner.nextInt());
                         foundCounter = true;
                     }
 
@@ -244,7 +383,7 @@ public class MembershipService implements ClusterMembership {
                 if (!foundCounter) {
                     // Create file and store membership counter
                     FileWriter counterWriter = new FileWriter(memberCounter, false);
-                    counterWriter.write(String.valueOf(this.membershipCounter));
+                    counterWriter.write(String.valueOf(this.membershipCounter.get()));
                     counterWriter.close();
                 }
             }
@@ -256,7 +395,7 @@ public class MembershipService implements ClusterMembership {
                 if (!memberLog.exists()) {
                     // Set initial log to be the current node
                     FileWriter writer = new FileWriter(memberLog, false);
-                    writer.write(String.format("%s %d", this.nodeId, this.membershipCounter));
+                    writer.write(String.format("%s %d", this.nodeId, this.membershipCounter.get()));
                     writer.close();
                 }
             }
@@ -311,17 +450,14 @@ public class MembershipService implements ClusterMembership {
 
             if (isClusterMember(newMemberCounter)) {
                 // if the nodeMap does not contain this node
-                if ((newNodePort != Constants.invalidPort) && !this.nodeMap.containsKey(Utils.generateKey(newNodeId)))
-                    this.nodeMap.put(Utils.generateKey(newNodeId), new Node(newNodeId, newNodePort));
+                if (newNodePort != Constants.invalidPort)
+                    this.addNodeToMap(newNodeId, newNodePort);
             } else {
                 // Remove the node from the nodeMap
                 this.removeNodeFromMap(newNodeId);
             }
-        } catch (FileNotFoundException e) {
-            System.out.println("An error occurred.");
-            e.printStackTrace();
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Error updating the membership log", e);
         }
     }
 
@@ -338,60 +474,121 @@ public class MembershipService implements ClusterMembership {
             byteOut.write(Utils.newLine.getBytes(StandardCharsets.UTF_8));
 
             for (Node node : this.getNodeMap().values()) {
-                String entryLine = node.getId() + " " + node.getPort() + Utils.newLine;
+                String entryLine = node.getId() + " " + node.getPort() + " " + node.getWeight() + Utils.newLine;
                 byteOut.write(entryLine.getBytes(StandardCharsets.UTF_8));
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Error building membership message", e);
         }
 
         return byteOut.toByteArray();
     }
 
-    public HashSet<String> getMembershipReplyNodes() {
+    /**
+     * @return digest of the current ring, computed once per view
+     */
+    public String getRingDigest() {
+        final MembershipView currView = this.getView();
+        RingDigest cached = this.ringDigest;
+        if (cached.view() != currView) {
+            cached = new RingDigest(currView, currView.digest());
+            this.ringDigest = cached;
+        }
+        return cached.digest();
+    }
+
+    private record RingDigest(MembershipView view, String digest) {
+    }
+
+    /**
+     * Body has the ring version followed by one "nodeId port weight" line per node
+     */
+    public byte[] buildRingMsgBody() {
+        final MembershipView currView = this.getView();
+        StringBuilder sb = new StringBuilder();
+        sb.append(currView.version()).append(Utils.newLine);
+        for (Node node : currView.nodes().values())
+            sb.append(node.getId()).append(" ").append(node.getPort()).append(" ").append(node.getWeight())
+                    .append(Utils.newLine);
+
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public Set<String> getMembershipReplyNodes() {
         return membershipReplyNodes;
     }
 
-    public void handleJoinRequest(String nodeId, int tcpPort, int membershipCounter) {
-        if (this.repliedNodes.contains(Utils.generateKey(nodeId))) {
-            System.out.println("Received join from node that was already replied.");
+    public void handleJoinRequest(String nodeId, int tcpPort, int membershipCounter, int nodeWeight) {
+        final String nodeKey = Utils.generateKey(nodeId);
+        if (nodeKey.equals(this.lastRepliedNode.getAndSet(nodeKey))) {
+            log.debug("Received join from node that was already replied", "node", nodeId);
             return;
         }
 
         // Updates view of the cluster membership and adds the log
-        this.addNodeToMap(nodeId, tcpPort);
+        this.addNodeToMap(nodeId, tcpPort, nodeWeight);
         this.addLog(nodeId, membershipCounter, tcpPort);
 
-        this.repliedNodes.clear();
-        this.repliedNodes.add(Utils.generateKey(nodeId));
-
-        final int randomWait = new Random().nextInt(Constants.maxResponseTime);
+        final long replyDelay = this.getJoinReplyDelay(nodeKey);
         try {
-            Thread.sleep(randomWait);
-
-            final byte[] body = this.buildMembershipMsgBody();
-            Message msg = new Message("REQ", "join", body);
-            Sender.sendTCPMessage(msg.toBytes(), nodeId, tcpPort);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            this.pendingJoinReplies.put(nodeKey, this.scheduler.schedule(() -> {
+                this.pendingJoinReplies.remove(nodeKey);
+                final byte[] msg;
+                try {
+                    msg = new Message("REQ", "join", this.buildMembershipMsgBody()).toBytes();
+                } catch (IOException e) {
+                    log.warn("Failed to reply to the join", "node", nodeId);
+                    return;
+                }
+                // The scheduler thread only builds the reply, a slow joining node does not delay the other replies
+                Sender.sendTCPMessageAsync(msg, nodeId, tcpPort).whenComplete((reply, e) -> {
+                    if (e != null) log.warn("Failed to reply to the join", "node", nodeId);
+                });
+            }, replyDelay, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            log.debug("Not replying to the join, node left the cluster", "node", nodeId);
         }
     }
 
+    /**
+     * The joining node acknowledged enough replies, so a reply that is still waiting is not needed
+     */
+    public void handleJoinAck(String nodeId) {
+        ScheduledFuture<?> pendingReply = this.pendingJoinReplies.remove(Utils.generateKey(nodeId));
+        if (pendingReply != null) pendingReply.cancel(false);
+    }
+
+    /**
+     * The first numMembershipMessages successors of the joining node reply after a short jitter.
+     * Nodes further away in the ring wait one slot per position, so they are usually suppressed by the
+     * join acknowledgment.
+     */
+    private long getJoinReplyDelay(String joiningNodeKey) {
+        final String ownKey = Utils.generateKey(this.nodeId);
+        final NavigableMap<String, Node> nodeMap = this.getNodeMap();
+        int rank = ownKey.compareTo(joiningNodeKey) > 0 ?
+                nodeMap.subMap(joiningNodeKey, false, ownKey, true).size() :
+                nodeMap.tailMap(joiningNodeKey, false).size() + nodeMap.headMap(ownKey, true).size();
+
+        long jitter = ThreadLocalRandom.current().nextLong(Constants.maxJoinReplyJitter);
+        if (rank <= Constants.numMembershipMessages) return jitter;
+
+        return (long) (rank - Constants.numMembershipMessages) * Constants.joinReplySlotTime + jitter;
+    }
+
     public void handleLeaveRequest(String nodeId,  int membershipCounter, int tcpPort) {
         // Updates view of the cluster membership and adds the log
         this.removeNodeFromMap(nodeId);
         this.addLog(nodeId, membershipCounter, tcpPort);
 
-        this.repliedNodes.clear();
+        this.lastRepliedNode.set(null);
     }
 
     public void handleMembershipResponse(Message message) {
         if (this.getMembershipReplyNodes().size() >= Constants.numMembershipMessages)
             return;
 
-        System.out.println("Received tcp reply to join");
+        log.debug("Received TCP reply to join");
         InputStream is = new ByteArrayInputStream(message.getBody());
         BufferedReader br = new BufferedReader(new InputStreamReader(is));
 
@@ -411,21 +608,29 @@ public class MembershipService implements ClusterMembership {
                 String[] data = line.split(" ");
                 String newNodeId = data[0];
                 int newNodePort = Integer.parseInt(data[1]);
-                this.addNodeToMap(newNodeId, newNodePort); // Check what happens when adding node that already exists
+                // Nodes that do not send weights list only the id and port
+                if (data.length > 2) this.addNodeToMap(newNodeId, newNodePort, Integer.parseInt(data[2]));
+                else this.addNodeToMap(newNodeId, newNodePort); // Check what happens when adding node that already exists
             }
         } catch (IOException e) {
-            System.out.println("Error while handling membership response:");
-            e.printStackTrace();
+            log.error("Error while handling membership response", e);
             return;
         }
 
         updateMembershipInfo(membershipLogs);
 
-        System.out.println("Received membership Logs: " + membershipLogs + "\nnodeMap: " + this.getNodeMap());
+        if (log.isDebugEnabled())
+            log.debug("Received membership logs", "logs", membershipLogs, "nodes", this.getNodeMap().values());
+
+        // Every node except this one can reply, so small clusters do not wait for the full timeout
+        final int expectedReplies = Math.min(Constants.numMembershipMessages, this.getView().size() - 1);
+        final CompletableFuture<Void> joinFuture = this.pendingJoin;
+        if (joinFuture != null && this.getMembershipReplyNodes().size() >= expectedReplies)
+            joinFuture.complete(null);
     }
 
     public int getMembershipCounter() {
-        return membershipCounter;
+        return membershipCounter.get();
     }
 
     /**
@@ -433,10 +638,11 @@ public class MembershipService implements ClusterMembership {
      * @return true if node crashed while being a member of the cluster
      */
     public boolean hasCrashed() {
-        if (!isClusterMember(this.membershipCounter)) return false;
+        final int counter = this.membershipCounter.get();
+        if (!isClusterMember(counter)) return false;
 
         // In case a cluster is composed by only 1 node joining and leaving
-        if (this.membershipCounter != 0) return true;
+        if (counter != 0) return true;
 
         try {
             Path path = Paths.get(this.folderPath + Constants.membershipLogFileName);
@@ -460,16 +666,15 @@ public class MembershipService implements ClusterMembership {
         try {
             newNodeId = br.readLine();
             // Verify if newNodeId received is this node (meaning this node was elected)
-            if (newNodeId.equals(this.nodeId) && !this.isElected) {
-                 if (executorService != null) {
-                     this.electionPingThread = executorService.submit(new ElectionService(this.nodeId, this.folderPath, this.multicastIpAddr, this.multicastIPPort, this.nodeMap));
-                     this.isElected = true;
-                     System.out.println("THIS NODE WAS ELECTED");
+            if (newNodeId.equals(this.nodeId) && !this.isElected.get()) {
+                 if (executorService != null && this.isElected.compareAndSet(false, true)) {
+                     this.electionPingThread = executorService.submit(new ElectionService(this.nodeId, this.folderPath, this.multicastIpAddr, this.multicastIPPort, this::getNodeMap));
+                     log.info("This node was elected leader", "node", this.nodeId);
                  }
                 return;
             }
 
-            System.out.printf("Received election request from %s\n", newNodeId);
+            log.info("Received election request", "from", newNodeId);
             while ((line = br.readLine()) != null) {
                 String[] logData = line.split(" ");
                 membershipLogs.put(logData[0], Integer.parseInt(logData[1]));
@@ -480,16 +685,16 @@ public class MembershipService implements ClusterMembership {
 
         if (LogHandler.shouldPropagate(membershipLogs, newNodeId, this.folderPath, this.nodeId)) {
             // Propagate the message to the next node?
-            System.out.println("Log is more recent! propagate to next node");
+            log.info("Log is more recent, propagating election request", "from", newNodeId);
 
             // Check if this node was the previous leader
-            if (this.isElected) {
-                this.isElected = false;
+            if (this.isElected.getAndSet(false)) {
                 if (this.electionPingThread != null) this.electionPingThread.cancel(true);
             }
+            ElectionService.shutdownProbes();
 
             // Send election request
-            ElectionService.propagateRequest(this.nodeId, this.nodeMap, message);
+            ElectionService.propagateRequest(this.nodeId, this.getNodeMap(), message);
         }
     }
 
@@ -527,14 +732,14 @@ public class MembershipService implements ClusterMembership {
 
         if (LogHandler.shouldBeElected(newParsedLogs, this.folderPath)) {
             // Propagate the message to the next node?
-            System.out.println("Node is more recent than the current leader. Starting an election request...");
+            log.info("Node is more recent than the current leader, starting an election request");
 
             // Send election request
-            ElectionService.sendRequest(this.nodeId, this.nodeMap);
+            ElectionService.sendRequest(this.nodeId, this.getNodeMap());
         }
     }
     public void handleElectionLeave(Message message) {
-        System.out.println("Received election leave.");
+        log.info("Received election leave");
 
         InputStream is = new ByteArrayInputStream(message.getBody());
         BufferedReader br = new BufferedReader(new InputStreamReader(is));
@@ -554,23 +759,24 @@ public class MembershipService implements ClusterMembership {
                 String[] data = line.split(" ");
                 String newNodeId = data[0];
                 int newNodePort = Integer.parseInt(data[1]);
-                this.addNodeToMap(newNodeId, newNodePort); // Check what happens when adding node that already exists
+                // Nodes that do not send weights list only the id and port
+                if (data.length > 2) this.addNodeToMap(newNodeId, newNodePort, Integer.parseInt(data[2]));
+                else this.addNodeToMap(newNodeId, newNodePort); // Check what happens when adding node that already exists
             }
         } catch (IOException e) {
-            System.out.println("Error while handling election leave:");
-            e.printStackTrace();
+            log.error("Error while handling election leave", e);
             return;
         }
 
         updateMembershipInfo(newMembershipLogs);
 
         // Send election request to become the new leader
-        ElectionService.sendRequest(this.nodeId, this.nodeMap);
+        ElectionService.sendRequest(this.nodeId, this.getNodeMap());
     }
 
     public void handleElectionTimeout() {
-        System.out.println("Election Ping timeout detected! Sending an election request...");
-        ElectionService.sendRequest(this.nodeId, this.nodeMap);
+        log.warn("Election ping timeout detected, sending an election request");
+        ElectionService.sendRequest(this.nodeId, this.getNodeMap());
     }
 
     /**
@@ -595,6 +801,6 @@ public class MembershipService implements ClusterMembership {
     }
 
     public boolean getIsElected() {
-        return this.isElected;
+        return this.isElected.get();
     }
 }
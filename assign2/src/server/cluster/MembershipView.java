@@ -0,0 +1,191 @@
+package server.cluster;
+
+import common.Utils;
+import server.Constants;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable snapshot of the cluster ring, keyed by the hash of each node id.
+ * Every change creates a new view with a higher version, so readers always see a consistent ring
+ * and writers can publish changes with a compare-and-swap.
+ * Keys are placed on the tokens of the nodes, each node having as many tokens as its weight. The first token of a
+ * node is the hash of its id, the others the hash of the id followed by the token number, so a node keeps its
+ * tokens when its weight changes and only the keys of the tokens added or removed move.
+ * @param nodes one entry per node, in the order used by elections and membership replies
+ * @param tokens every token of every node, used to place keys
+ */
+public record MembershipView(long version, NavigableMap<String, Node> nodes, NavigableMap<String, Node> tokens) {
+    /**
+     * Header of replies with the digest of the ring of the node, so clients know when their cached ring is stale
+     */
+    public static final String ringHeader = "ring";
+
+    public static MembershipView empty() {
+        return new MembershipView(0, Collections.unmodifiableNavigableMap(new TreeMap<>()),
+                Collections.unmodifiableNavigableMap(new TreeMap<>()));
+    }
+
+    /**
+     * Builds a view from a list of nodes, e.g. the ring sent by another node
+     */
+    public static MembershipView of(long version, Collection<Node> nodeList) {
+        TreeMap<String, Node> newNodes = new TreeMap<>();
+        TreeMap<String, Node> newTokens = new TreeMap<>();
+        for (Node node : nodeList) {
+            newNodes.put(Utils.generateKey(node.getId()), node);
+            addTokens(newTokens, node);
+        }
+        return new MembershipView(version, Collections.unmodifiableNavigableMap(newNodes),
+                Collections.unmodifiableNavigableMap(newTokens));
+    }
+
+    /**
+     * @return a view with the node added or its weight and port replaced, or this view if it is already present as is
+     */
+    public MembershipView withNode(Node node) {
+        String key = Utils.generateKey(node.getId());
+        Node current = nodes.get(key);
+        if (node.equals(current)) return this;
+
+        TreeMap<String, Node> newNodes = new TreeMap<>(nodes);
+        newNodes.put(key, node);
+        TreeMap<String, Node> newTokens = new TreeMap<>(tokens);
+        if (current != null) removeTokens(newTokens, current);
+        addTokens(newTokens, node);
+        return new MembershipView(version + 1, Collections.unmodifiableNavigableMap(newNodes),
+                Collections.unmodifiableNavigableMap(newTokens));
+    }
+
+    /**
+     * @return a view without the node, or this view if the node is not present
+     */
+    public MembershipView withoutNode(String nodeId) {
+        String key = Utils.generateKey(nodeId);
+        Node current = nodes.get(key);
+        if (current == null) return this;
+
+        TreeMap<String, Node> newNodes = new TreeMap<>(nodes);
+        newNodes.remove(key);
+        TreeMap<String, Node> newTokens = new TreeMap<>(tokens);
+        removeTokens(newTokens, current);
+        return new MembershipView(version + 1, Collections.unmodifiableNavigableMap(newNodes),
+                Collections.unmodifiableNavigableMap(newTokens));
+    }
+
+    /**
+     * The version is local to each node, so views are compared by their nodes instead: two views with the same
+     * nodes, ports and weights place every key on the same nodes and have the same digest
+     * @return digest of the nodes of the ring, as a hexadecimal string
+     */
+    public String digest() {
+        long digest = 1125899906842597L;
+        for (Node node : nodes.values()) {
+            digest = 31 * digest + node.getId().hashCode();
+            digest = 31 * digest + node.getPort();
+            digest = 31 * digest + node.getWeight();
+        }
+        return Long.toHexString(digest);
+    }
+
+    public boolean contains(String nodeId) {
+        return nodes.containsKey(Utils.generateKey(nodeId));
+    }
+
+    public Node getNode(String nodeId) {
+        return nodes.get(Utils.generateKey(nodeId));
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * This method ensures the binary search's O(log N) time complexity by using the
+     * TreeMap.ceilingKey() method, which takes advantage of a Red-Black BST.
+     */
+    public Node getResponsibleNode(String key) {
+        Map.Entry<String, Node> nodeEntry = tokens.ceilingEntry(key);
+
+        // No token with greater key -> Go to the start of the circle (first token)
+        if (nodeEntry == null) nodeEntry = tokens.firstEntry();
+
+        return nodeEntry.getValue();
+    }
+
+    /**
+     * @return the responsible node of the key followed by the next distinct nodes in token order, up to
+     * replicationFactor nodes
+     */
+    public List<Node> getReplicas(String key) {
+        return getReplicas(key, Constants.replicationFactor);
+    }
+
+    /**
+     * @return the first maxCount distinct nodes from the key in token order, all the nodes if there are fewer
+     */
+    public List<Node> getReplicas(String key, int maxCount) {
+        final int count = Math.min(maxCount, nodes.size());
+        final List<Node> replicas = new ArrayList<>(count);
+        addReplicas(replicas, tokens.tailMap(key, true).values(), count);
+        addReplicas(replicas, tokens.headMap(key, false).values(), count);
+        return replicas;
+    }
+
+    public boolean isReplica(String key, String nodeId) {
+        return containsNode(getReplicas(key), nodeId);
+    }
+
+    public static boolean containsNode(List<Node> nodeList, String nodeId) {
+        for (Node node : nodeList)
+            if (node.getId().equals(nodeId)) return true;
+        return false;
+    }
+
+    public Node getNextNode(Node prevNode) {
+        String prevKey = Utils.generateKey(prevNode.getId());
+        Map.Entry<String, Node> nodeEntry = nodes.higherEntry(prevKey);
+
+        // No node with greater key -> Go to the start of the circle (first node)
+        if (nodeEntry == null) nodeEntry = nodes.firstEntry();
+
+        return nodeEntry.getValue();
+    }
+
+    public Node getPreviousNode(Node node) {
+        String key = Utils.generateKey(node.getId());
+        Map.Entry<String, Node> nodeEntry = nodes.lowerEntry(key);
+
+        // No node with lower key -> Go to the end of the circle (last node)
+        if (nodeEntry == null) nodeEntry = nodes.lastEntry();
+
+        return nodeEntry.getValue();
+    }
+
+    private static void addReplicas(List<Node> replicas, Collection<Node> candidates, int count) {
+        for (Node candidate : candidates) {
+            if (replicas.size() >= count) return;
+            if (!containsNode(replicas, candidate.getId())) replicas.add(candidate);
+        }
+    }
+
+    private static String tokenKey(String nodeId, int token) {
+        return token == 0 ? Utils.generateKey(nodeId) : Utils.generateKey(nodeId + "#" + token);
+    }
+
+    private static void addTokens(TreeMap<String, Node> tokenMap, Node node) {
+        for (int token = 0; token < Math.max(1, node.getWeight()); ++token)
+            tokenMap.put(tokenKey(node.getId(), token), node);
+    }
+
+    private static void removeTokens(TreeMap<String, Node> tokenMap, Node node) {
+        for (int token = 0; token < Math.max(1, node.getWeight()); ++token)
+            tokenMap.remove(tokenKey(node.getId(), token));
+    }
+}
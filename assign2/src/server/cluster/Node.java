@@ -1,8 +1,20 @@
 package server.cluster;
 
+import server.Constants;
+
 import java.io.Serializable;
 
-public record Node(String id, int port) implements Serializable {
+/**
+ * @param weight number of tokens the node has in the ring, so its share of the keys is proportional to it
+ */
+public record Node(String id, int port, int weight) implements Serializable {
+
+    /**
+     * A node whose weight is not known yet, which has the weight of a node with the default capacity
+     */
+    public Node(String id, int port) {
+        this(id, port, Constants.defaultWeight);
+    }
 
     public String getId() {
         return id;
@@ -12,8 +24,12 @@ public record Node(String id, int port) implements Serializable {
         return port;
     }
 
+    public int getWeight() {
+        return weight;
+    }
+
     @Override
     public String toString() {
-        return String.format("Node #%s (port %d)", this.id, this.port);
+        return String.format("Node #%s (port %d, weight %d)", this.id, this.port, this.weight);
     }
 }
@@ -0,0 +1,19 @@
+package server.cluster;
+
+import server.Constants;
+
+/**
+ * Capacity and load advertised by a node
+ * @param weight number of tokens the node asks for in the ring
+ * @param diskBytes bytes stored by the node
+ * @param capacityBytes bytes the node can store
+ * @param requestRate requests per second served by the node
+ */
+public record NodeLoad(int weight, long diskBytes, long capacityBytes, long requestRate) {
+    /**
+     * @return the weight of a node with this capacity, before it starts giving up tokens as its disk fills
+     */
+    public static int weightOf(long capacityBytes) {
+        return (int) Math.max(1, Math.min(Constants.maxWeight, capacityBytes / Constants.bytesPerToken));
+    }
+}
@@ -0,0 +1,88 @@
+package server.logging;
+
+import server.metrics.Metrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded multi-producer ring buffer drained by a single writer thread, which formats the events and writes them
+ * to stdout in batches. Producers never block: when the buffer is full the event is dropped and counted.
+ */
+class AsyncLogWriter {
+    private static final int capacity = 8192; // Power of two, so the slot is the sequence masked
+    private static final long idleParkNanos = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final AsyncLogWriter instance = new AsyncLogWriter();
+
+    private final AtomicReferenceArray<LogEvent> slots = new AtomicReferenceArray<>(capacity);
+    private final AtomicLong tail = new AtomicLong(); // Next sequence to claim
+    private volatile long head = 0; // Next sequence to write, only advanced by the writer thread
+    private final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+    private final Thread writerThread;
+
+    private AsyncLogWriter() {
+        writerThread = new Thread(this::drainLoop, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "log-flush"));
+    }
+
+    static AsyncLogWriter getInstance() {
+        return instance;
+    }
+
+    void append(LogEvent event) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head >= capacity) {
+                Metrics.increment("log.dropped");
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        slots.set((int) (sequence & (capacity - 1)), event);
+    }
+
+    private void drainLoop() {
+        while (true) {
+            if (drain() == 0) LockSupport.parkNanos(idleParkNanos);
+        }
+    }
+
+    /**
+     * Writes every published event, stopping at a claimed slot whose event is not set yet
+     * @return number of events written
+     */
+    private synchronized int drain() {
+        final StringBuilder line = new StringBuilder(256);
+        int written = 0;
+        try {
+            while (head < tail.get()) {
+                int slot = (int) (head & (capacity - 1));
+                LogEvent event = slots.get(slot);
+                if (event == null) break; // Claimed but not published yet
+
+                slots.set(slot, null);
+                head = head + 1;
+
+                line.setLength(0);
+                event.format(line);
+                out.append(line);
+                ++written;
+            }
+            if (written > 0) out.flush();
+        } catch (IOException ignored) {
+            // Nowhere left to report it
+        }
+        return written;
+    }
+}
@@ -0,0 +1,31 @@
+package server.logging;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * One log line. It is only formatted by the writer thread.
+ * @param fields key-value pairs, or null
+ */
+record LogEvent(long timestamp, Logger.Level level, String component, String message, Throwable error,
+                Object[] fields, String thread) {
+    private static final DateTimeFormatter timeFormat =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    void format(StringBuilder line) {
+        line.append(timeFormat.format(Instant.ofEpochMilli(timestamp)))
+                .append(' ').append(String.format("%-5s", level))
+                .append(" [").append(component).append("] ")
+                .append(message);
+
+        if (fields != null) {
+            for (int i = 0; i + 1 < fields.length; i += 2)
+                line.append(' ').append(fields[i]).append('=').append(fields[i + 1]);
+        }
+        if (error != null)
+            line.append(" error=\"").append(error).append('"');
+
+        line.append(" thread=").append(thread).append(System.lineSeparator());
+    }
+}
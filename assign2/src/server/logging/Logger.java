@@ -0,0 +1,113 @@
+package server.logging;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Leveled logger of one component (storage, tcp, membership, ...). Lines are formatted and written by a
+ * background thread, so logging only costs the caller a level check and, when enabled, one ring buffer slot.
+ * Fields are given as key-value pairs after the message, e.g. log.info("Stored file", "key", key, "node", nodeId).
+ * The overloads with fixed arity avoid allocating a varargs array, so disabled debug calls cost nothing.
+ * Levels are read from the system properties log.level (every component) and log.<component>, e.g.
+ * -Dlog.level=warn -Dlog.storage=debug, and default to info.
+ */
+public class Logger {
+    public enum Level {DEBUG, INFO, WARN, ERROR, OFF}
+
+    private static final ConcurrentHashMap<String, Logger> loggers = new ConcurrentHashMap<>();
+
+    private final String component;
+    private volatile Level level;
+
+    private Logger(String component) {
+        this.component = component;
+        this.level = parseLevel(System.getProperty("log." + component, System.getProperty("log.level", "info")));
+    }
+
+    public static Logger get(String component) {
+        return loggers.computeIfAbsent(component, Logger::new);
+    }
+
+    /**
+     * Changes the level of a component at runtime, e.g. to debug a node without restarting it
+     */
+    public static void setLevel(String component, Level level) {
+        get(component).level = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= this.level.ordinal();
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String message) {
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, message, null, null);
+    }
+
+    public void debug(String message, String key, Object value) {
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, message, null, new Object[]{key, value});
+    }
+
+    public void debug(String message, String key1, Object value1, String key2, Object value2) {
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, message, null, new Object[]{key1, value1, key2, value2});
+    }
+
+    public void info(String message) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, message, null, null);
+    }
+
+    public void info(String message, String key, Object value) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, message, null, new Object[]{key, value});
+    }
+
+    public void info(String message, String key1, Object value1, String key2, Object value2) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, message, null, new Object[]{key1, value1, key2, value2});
+    }
+
+    public void info(String message, Object... fields) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, message, null, fields);
+    }
+
+    public void warn(String message) {
+        if (isEnabled(Level.WARN)) log(Level.WARN, message, null, null);
+    }
+
+    public void warn(String message, String key, Object value) {
+        if (isEnabled(Level.WARN)) log(Level.WARN, message, null, new Object[]{key, value});
+    }
+
+    public void warn(String message, String key1, Object value1, String key2, Object value2) {
+        if (isEnabled(Level.WARN)) log(Level.WARN, message, null, new Object[]{key1, value1, key2, value2});
+    }
+
+    public void error(String message) {
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, message, null, null);
+    }
+
+    public void error(String message, String key, Object value) {
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, message, null, new Object[]{key, value});
+    }
+
+    public void error(String message, Throwable error) {
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, message, error, null);
+    }
+
+    public void error(String message, Throwable error, String key, Object value) {
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, message, error, new Object[]{key, value});
+    }
+
+    private void log(Level level, String message, Throwable error, Object[] fields) {
+        AsyncLogWriter.getInstance().append(new LogEvent(System.currentTimeMillis(), level, component, message,
+                error, fields, Thread.currentThread().getName()));
+    }
+
+    private static Level parseLevel(String level) {
+        try {
+            return Level.valueOf(level.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
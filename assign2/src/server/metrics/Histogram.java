@@ -0,0 +1,85 @@
+package server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with log-linear buckets, like HdrHistogram: every power of two is split in 16 buckets,
+ * so percentiles are within about 6% of the real value from 1 us up to days, in a fixed 8 KB of counters.
+ * Recording is lock-free and safe from any thread.
+ */
+public class Histogram {
+    private static final int subBucketBits = 4;
+    private static final int subBuckets = 1 << subBucketBits;
+    private static final int numBuckets = (64 - subBucketBits) * subBuckets;
+
+    private final AtomicLongArray counts = new AtomicLongArray(numBuckets);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    /**
+     * @param micros value in microseconds
+     */
+    public void record(long micros) {
+        micros = Math.max(0, micros);
+        counts.incrementAndGet(bucketIndex(micros));
+        totalCount.increment();
+        totalMicros.add(micros);
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    public long getMeanMicros() {
+        long count = getCount();
+        return count == 0 ? 0 : totalMicros.sum() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound, in microseconds, of the bucket holding the percentile, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < numBuckets; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank) return bucketUpperBound(i);
+        }
+        return getMax();
+    }
+
+    public long getMax() {
+        for (int i = numBuckets - 1; i >= 0; --i)
+            if (counts.get(i) > 0) return bucketUpperBound(i);
+        return 0;
+    }
+
+    /**
+     * Values below 16 get a bucket each, above that the bucket is given by the highest bit and the next 4 bits
+     */
+    static int bucketIndex(long value) {
+        if (value < subBuckets) return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - subBucketBits)) & (subBuckets - 1);
+        return (exponent - subBucketBits + 1) * subBuckets + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < subBuckets) return index;
+
+        int exponent = index / subBuckets + subBucketBits - 1;
+        long subBucket = index % subBuckets;
+        long upperBound = ((subBuckets + subBucket + 1) << (exponent - subBucketBits)) - 1;
+        return upperBound < 0 ? Long.MAX_VALUE : upperBound;
+    }
+}
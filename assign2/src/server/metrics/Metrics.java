@@ -0,0 +1,71 @@
+package server.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics registry: latency histograms per operation, counters and gauges.
+ * Histograms and counters are created on first use, gauges are read only when a report is built.
+ */
+public class Metrics {
+    private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Records the time elapsed since startNanos, taken from System.nanoTime()
+     */
+    public static void recordSince(String name, long startNanos) {
+        histogram(name).recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public static void increment(String name) {
+        counters.computeIfAbsent(name, n -> new LongAdder()).increment();
+    }
+
+    public static void add(String name, long amount) {
+        counters.computeIfAbsent(name, n -> new LongAdder()).add(amount);
+    }
+
+    public static long getCount(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Registers or replaces a gauge
+     */
+    public static void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * @return one line per metric, sorted by name. Latencies are in microseconds.
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-28s %8s %8s %8s %8s %8s %8s%n",
+                "latency (us)", "count", "mean", "p50", "p99", "p99.9", "max"));
+        for (Map.Entry<String, Histogram> entry : new ConcurrentSkipListMap<>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            report.append(String.format("%-28s %8d %8d %8d %8d %8d %8d%n", entry.getKey(), histogram.getCount(),
+                    histogram.getMeanMicros(), histogram.getPercentile(50), histogram.getPercentile(99),
+                    histogram.getPercentile(99.9), histogram.getMax()));
+        }
+
+        for (Map.Entry<String, LongAdder> entry : new ConcurrentSkipListMap<>(counters).entrySet())
+            report.append(String.format("%-28s %8d%n", entry.getKey(), entry.getValue().sum()));
+
+        for (Map.Entry<String, LongSupplier> entry : new ConcurrentSkipListMap<>(gauges).entrySet())
+            report.append(String.format("%-28s %8d%n", entry.getKey(), entry.getValue().getAsLong()));
+
+        return report.toString();
+    }
+}
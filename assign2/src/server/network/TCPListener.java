@@ -1,11 +1,20 @@
 package server.network;
 
+import common.BatchCodec;
 import common.Message;
 import common.MessageTypes;
 import common.Utils;
+import server.Constants;
+import server.WorkerPools;
+import server.logging.Logger;
+import server.metrics.Metrics;
 import server.cluster.MembershipService;
+import server.cluster.MembershipView;
+import server.storage.ExpiryIndex;
+import server.storage.HybridClock;
 import server.storage.StorageService;
 import server.storage.TransferService;
+import server.storage.ValueCodec;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.ServerSocket;
@@ -14,65 +23,141 @@ import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 public class TCPListener implements Runnable {
+    private static final Logger log = Logger.get("tcp");
+
     private final StorageService storageService;
     private final MembershipService membershipService;
     private final TransferService transferService;
-    private final ExecutorService executorService;
+    private final WorkerPools workerPools;
 
     private final ServerSocket serverSocket;
 
     public TCPListener(StorageService storageService, MembershipService membershipService, TransferService transferService,
-                       ExecutorService executorService, ServerSocket serverSocket) {
+                       WorkerPools workerPools, ServerSocket serverSocket) {
         this.storageService = storageService;
         this.membershipService = membershipService;
         this.transferService = transferService;
-        this.executorService = executorService;
+        this.workerPools = workerPools;
         this.serverSocket = serverSocket;
     }
 
     public void run() {
         try {
-            System.out.println("Listening for TCP Messages in address " + serverSocket.getInetAddress() +
-                    " port " + serverSocket.getLocalPort());
+            log.info("Listening for TCP messages", "address", serverSocket.getInetAddress(),
+                    "port", serverSocket.getLocalPort());
             while (true) {
                 Socket socket = this.serverSocket.accept();
-                DataInputStream istream = new DataInputStream(socket.getInputStream());
-                DataOutputStream ostream = new DataOutputStream(socket.getOutputStream());
+                final long acceptedAt = System.nanoTime();
+                // The request is read by a worker, so a slow client does not hold the accept loop
+                try {
+                    workerPools.getRequests().submit(() -> handleConnection(socket, acceptedAt));
+                } catch (RejectedExecutionException e) {
+                    workerPools.recordRejectedRequest();
+                    Metrics.increment("reply." + MessageTypes.BUSY.getCode());
+                    replyBusy(socket);
+                }
+            }
+        } catch (SocketException se) {
+            log.info("TCP server closed");
+        } catch (IOException e) {
+            log.error("Error opening TCP server", e);
+            throw new RuntimeException(e);
+        }
+    }
 
-                Message message = new Message(istream.readAllBytes());
-                executorService.submit(() -> {
-                    try {
-                        processEvent(message, ostream);
-                        istream.close();
-                        ostream.close();
-                    } catch (IOException e) {
-                        Message errorMsg = new Message(MessageTypes.REPLY.getCode(), "error", null);
-                        try {
-                            ostream.write(errorMsg.toBytes());
-                            istream.close();
-                            ostream.close();
-                        } catch (IOException ioException) {
-                            System.out.println("Error sending error message");
-                        }
-                    }
+    /**
+     * Reads the request and writes the reply once it is ready. Storage operations complete asynchronously,
+     * so the worker does not wait for them.
+     * @param acceptedAt when the connection was accepted, so the recorded latency includes the time in the queue
+     */
+    private void handleConnection(Socket socket, long acceptedAt) {
+        final Message message;
+        try {
+            DataInputStream istream = new DataInputStream(socket.getInputStream());
+            message = new Message(istream.readAllBytes());
+        } catch (IOException e) {
+            replyAndClose(socket, new Message(MessageTypes.REPLY.getCode(), "error", null));
+            return;
+        }
+
+        if (message.getAction().equals("exit")) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                log.error("Error closing TCP server", e);
+            }
+        }
+
+        CompletableFuture<Message> reply;
+        try {
+            reply = processEvent(message);
+        } catch (IOException | RuntimeException e) {
+            reply = CompletableFuture.failedFuture(e);
+        }
+
+        reply.exceptionally(e -> new Message(MessageTypes.REPLY.getCode(),
+                        isRejected(e) ? MessageTypes.BUSY.getCode() : "error", null))
+                .thenAccept(replyMsg -> {
+                    replyAndClose(socket, replyMsg);
+                    if (replyMsg != null) recordReply(message.getAction(), replyMsg, acceptedAt);
                 });
+    }
+
+    /**
+     * Only valid actions are recorded, so the number of histograms stays bounded
+     */
+    private static void recordReply(String action, Message reply, long acceptedAt) {
+        Metrics.recordSince("tcp." + action, acceptedAt);
+        Metrics.increment("tcp.requests");
+        if (!reply.getAction().equals(MessageTypes.OK.getCode()))
+            Metrics.increment("reply." + reply.getAction());
+    }
+
+    private static boolean isRejected(Throwable e) {
+        return e instanceof RejectedExecutionException || e.getCause() instanceof RejectedExecutionException;
+    }
+
+    /**
+     * Drains the request before replying, closing a socket with unread data would reset the connection
+     * and the client would not see the reply. The drain is bounded so an overloaded node keeps accepting.
+     */
+    private void replyBusy(Socket socket) {
+        try {
+            socket.setSoTimeout(Constants.busyDrainTimeout);
+            socket.getInputStream().readAllBytes();
+        } catch (IOException ignored) {
+        }
+        replyAndClose(socket, new Message(MessageTypes.REPLY.getCode(), MessageTypes.BUSY.getCode(), null));
+    }
 
-                if (message.getAction().equals("exit"))
-                    break;
+    /**
+     * @param reply reply to send, or null to close the connection without replying
+     */
+    private void replyAndClose(Socket socket, Message reply) {
+        try (socket) {
+            if (reply != null) {
+                // Lets peers know which codecs they can send values with, and clients whether their ring is stale
+                reply.setHeader(ValueCodec.acceptHeader, ValueCodec.accepted);
+                if (this.membershipService.getView().size() > 0)
+                    reply.setHeader(MembershipView.ringHeader, this.membershipService.getRingDigest());
+                DataOutputStream ostream = new DataOutputStream(socket.getOutputStream());
+                ostream.write(reply.toBytes());
             }
-            serverSocket.close();
-        } catch (SocketException se) {
-            System.out.println("[TCPListener] Detected SocketException.");
         } catch (IOException e) {
-            System.out.println("Error opening TCP server");
-            throw new RuntimeException(e);
+            log.warn("Error sending reply message", "error", e.getMessage());
         }
     }
 
-    private void processEvent(Message message, DataOutputStream ostream) throws IOException {
+    private CompletableFuture<Message> processEvent(Message message) throws IOException {
+        final boolean isEncoded = ValueCodec.codecEncoding.equals(message.getHeader(ValueCodec.encodingHeader));
+        final String accept = message.getHeader(ValueCodec.acceptHeader);
+        final long version = HybridClock.fromHeader(message.getHeader(HybridClock.versionHeader));
+        final long expiresAt = ExpiryIndex.fromHeader(message.getHeader(ExpiryIndex.expiresHeader));
         final ByteArrayInputStream stream = new ByteArrayInputStream(message.getBody());
         final BufferedReader reader = new BufferedReader(new InputStreamReader(
                 new ByteArrayInputStream(message.getBody())));
@@ -80,9 +165,12 @@ public class TCPListener implements Runnable {
         Message reply;
         switch (message.getAction()) {
             case "electionRequest" -> {
-                this.membershipService.handleElectionRequest(message, this.executorService);
+                this.membershipService.handleElectionRequest(message, this.workerPools.getListeners());
                 reply = new Message(MessageTypes.REPLY.getCode(), MessageTypes.OK.getCode(), "".getBytes(StandardCharsets.UTF_8));
             }
+            case "ping" -> reply = new Message(MessageTypes.REPLY.getCode(), MessageTypes.OK.getCode(), null);
+            case "stats" -> reply = new Message(MessageTypes.REPLY.getCode(), MessageTypes.OK.getCode(),
+                    Metrics.report().getBytes(StandardCharsets.UTF_8));
             case "electionLeave" -> {
                 this.membershipService.handleElectionLeave(message);
                 reply = new Message(MessageTypes.REPLY.getCode(), MessageTypes.OK.getCode(), "".getBytes(StandardCharsets.UTF_8));
@@ -92,42 +180,73 @@ public class TCPListener implements Runnable {
 
                 reply = new Message(MessageTypes.REPLY.getCode(), MessageTypes.OK.getCode(), "".getBytes(StandardCharsets.UTF_8));
             }
-            case "get" -> reply = storageService.get(new String(message.getBody()));
+            case "get" -> {
+                return storageService.getAsync(new String(message.getBody()), accept);
+            }
             case "put" -> {
                 String key = reader.readLine();
                 byte[] file = readFileBytes(key, stream);
-                reply = storageService.put(key, file);
+                return storageService.putAsync(key, file, ExpiryIndex.fromHeader(message.getHeader(ExpiryIndex.ttlHeader)));
             }
             case "saveFile" -> {
                 String key = reader.readLine();
                 byte[] file = readFileBytes(key, stream);
-                reply = storageService.saveFile(key, file);
+                reply = storageService.saveFile(key, file, isEncoded, version, expiresAt);
             }
-            case "getAndDelete" -> {
+            case "cacheValue" -> {
                 String key = reader.readLine();
-                reply = storageService.getAndDelete(key);
+                byte[] file = readFileBytes(key, stream);
+                reply = storageService.cacheValue(key, file, isEncoded, version, expiresAt);
             }
+            case "uncacheValue" -> reply = storageService.uncacheValue(new String(message.getBody()));
+            case "getFragment" -> reply = storageService.getFragment(new String(message.getBody()));
+            case "getReplica" -> reply = storageService.getReplica(new String(message.getBody()), accept);
             case "getFiles" -> {
-                List<String> nodeFiles = storageService.getFiles();
+                // A body limits the listing to the keys it names, the ones the sender could not rule out
+                List<String> nodeFiles = message.getBody() == null || message.getBody().length == 0 ?
+                        storageService.getFiles() :
+                        BatchCodec.decodeKeys(message.getBody()).stream().filter(storageService::hasFile).toList();
                 StringBuilder sb = new StringBuilder();
 
                 if (nodeFiles != null) {
+                    // The versions let a recovering node fetch only the files it has an older write of, and the index
+                    // of the fragment tells it the key is erasure-coded
                     for (String fileName : nodeFiles) {
-                        sb.append(fileName).append("\r\n");
+                        sb.append(fileName).append(' ').append(storageService.getValueVersion(fileName))
+                                .append(' ').append(storageService.getTombstoneVersion(fileName));
+                        int fragment = storageService.getFragmentIndex(fileName);
+                        if (fragment >= 0) sb.append(' ').append(fragment);
+                        sb.append("\r\n");
                     }
                 }
 
                 reply = new Message(MessageTypes.REPLY.getCode(), MessageTypes.OK.getCode(), sb.toString().getBytes(StandardCharsets.UTF_8));
             }
-            case "delete" -> reply = storageService.delete(new String(message.getBody()));
-            case "safeDelete" -> reply = storageService.safeDelete(new String(message.getBody()));
+            case "getFilter" -> reply = storageService.getKeyFilter();
+            case "getRing" -> reply = new Message(MessageTypes.REPLY.getCode(), MessageTypes.OK.getCode(),
+                    this.membershipService.buildRingMsgBody());
+            case "mget" -> reply = batchReply(storageService.getBatch(BatchCodec.decodeKeys(message.getBody())));
+            case "mput" -> reply = batchReply(storageService.putBatch(BatchCodec.decodeValues(message.getBody())));
+            case "mdelete" -> reply = batchReply(storageService.deleteBatch(BatchCodec.decodeKeys(message.getBody())));
+            case "saveFiles" -> reply = batchReply(storageService.saveFiles(BatchCodec.decodeValues(message.getBody()), isEncoded, version));
+            case "getChunks" -> reply = storageService.getChunks(BatchCodec.decodeKeys(message.getBody()));
+            case "saveChunks" -> reply = storageService.saveChunks(BatchCodec.decodeValues(message.getBody()));
+            case "safeDeleteFiles" -> reply = batchReply(storageService.safeDeleteFiles(BatchCodec.decodeKeys(message.getBody()), version));
+            case "delete" -> {
+                return storageService.deleteAsync(new String(message.getBody()));
+            }
+            case "safeDelete" -> reply = storageService.safeDelete(new String(message.getBody()), version);
             default -> {
-                System.out.println("Invalid event received! - " + message.getAction());
-                return;
+                log.warn("Invalid event received", "action", message.getAction());
+                reply = null;
             }
         }
 
-        ostream.write(reply.toBytes());
+        return CompletableFuture.completedFuture(reply);
+    }
+
+    private Message batchReply(Map<String, Message> replies) throws IOException {
+        return new Message(MessageTypes.REPLY.getCode(), MessageTypes.OK.getCode(), BatchCodec.encodeReplies(replies));
     }
 
     private byte[] readFileBytes(String key, ByteArrayInputStream stream) {
@@ -1,74 +1,98 @@
 package server.network;
 
+import common.FragmentAssembler;
 import common.Message;
+import common.MessageTypes;
+import common.Utils;
 import server.Constants;
+import server.WorkerPools;
+import server.logging.Logger;
+import server.metrics.Metrics;
 import server.cluster.MembershipService;
+import server.cluster.NodeLoad;
 import server.storage.StorageService;
 import server.storage.TransferService;
 
 import java.io.*;
 import java.net.*;
-import java.util.concurrent.ExecutorService;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.concurrent.RejectedExecutionException;
 
 public class UDPListener implements Runnable {
+    private static final Logger log = Logger.get("udp");
+
     private final StorageService storageService;
     private final MembershipService membershipService;
     private final TransferService transferService;
-    private final ExecutorService executorService;
-    private final MulticastSocket multicastSocket;
+    private final WorkerPools workerPools;
+    private final DatagramChannel multicastChannel;
+    private final FragmentAssembler fragmentAssembler;
 
-    private long lastElectionPing;
+    private volatile long lastElectionPing;
 
     public UDPListener(StorageService storageService, MembershipService membershipService, TransferService transferService,
-                       ExecutorService executorService, MulticastSocket multicastSocket) {
+                       WorkerPools workerPools, DatagramChannel multicastChannel) {
         this.storageService = storageService;
         this.membershipService = membershipService;
         this.transferService = transferService;
-        this.executorService = executorService;
-        this.multicastSocket = multicastSocket;
+        this.workerPools = workerPools;
+        this.multicastChannel = multicastChannel;
+        this.fragmentAssembler = new FragmentAssembler();
         lastElectionPing = System.currentTimeMillis();
     }
 
     public void run() {
+        // The receive buffer is reused for every datagram since messages are parsed before the next receive
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(Message.MAX_MSG_SIZE);
         try {
-            InetSocketAddress group = new InetSocketAddress(
-                    this.membershipService.getMulticastIpAddr(),
-                    this.membershipService.getMulticastIPPort());
-            NetworkInterface netInf = NetworkInterface.getByIndex(0);
-            this.multicastSocket.joinGroup(group, netInf);
+            InetAddress group = InetAddress.getByName(this.membershipService.getMulticastIpAddr());
+            NetworkInterface netInf = Utils.getMulticastInterface(this.membershipService.getNodeId());
+            MembershipKey membershipKey = this.multicastChannel.join(group, netInf);
 
-            System.out.println("Listening UDP messages");
+            log.info("Listening for UDP messages", "group", group.getHostAddress(), "interface", netInf.getName());
 
-            executorService.submit(this::handleElectionTimeout);
+            workerPools.getListeners().submit(this::handleElectionTimeout);
 
             while (true) {
-                byte[] msg = new byte[Message.MAX_MSG_SIZE];
-                DatagramPacket packet = new DatagramPacket(msg, msg.length);
-
-                this.multicastSocket.receive(packet);
+                buffer.clear();
+                this.multicastChannel.receive(buffer);
+                buffer.flip();
 
-                // UDP packet always has the MAX_MSG_SIZE length so we need to prune it.
-                byte[] prunedData = new byte[packet.getLength()];
-                System.arraycopy(packet.getData(), packet.getOffset(), prunedData, 0, packet.getLength());
                 try {
-                    final Message message = new Message(prunedData);
-                    executorService.submit(() -> {
-                        processEvent(message);
-                    });
+                    Message received = new Message(buffer);
+                    if (received.getAction().equals(MessageTypes.FRAGMENT.getCode())) {
+                        byte[] reassembled = fragmentAssembler.accept(received);
+                        if (reassembled == null) continue; // Still waiting for other fragments
+                        received = new Message(reassembled);
+                    }
+
+                    final Message message = received;
+                    Metrics.increment("udp." + message.getAction());
+                    try {
+                        workerPools.getHousekeeping().submit(() -> {
+                            processEvent(message);
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // Membership messages are retransmitted, a dropped one is recovered later
+                        log.warn("Dropped message, housekeeping queue full", "action", message.getAction());
+                    }
 
                     if (message.getAction().equals("exit"))
                         break;
                 } catch (IOException e) {
-                    System.err.println(e.getMessage());
+                    log.warn("Malformed multicast message", "error", e.getMessage());
                 }
             }
 
-            this.multicastSocket.leaveGroup(group, netInf);
-            this.multicastSocket.close();
-        } catch (SocketException se) {
-            System.out.println("[UDPListener] Detected SocketException.");
+            membershipKey.drop();
+            this.multicastChannel.close();
+        } catch (ClosedChannelException ce) {
+            log.info("Multicast channel closed");
         } catch (IOException e) {
-            System.out.println("Error opening UDP server");
+            log.error("Error opening UDP server", e);
             throw new RuntimeException(e);
         }
     }
@@ -94,6 +118,8 @@ public class UDPListener implements Runnable {
                 case "leave" -> {
                     this.handleJoinLeave(nodeId, br, false);
                 }
+                case "joinAck" -> this.membershipService.handleJoinAck(nodeId);
+                case "load" -> this.handleLoad(nodeId, br);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -101,16 +127,24 @@ public class UDPListener implements Runnable {
     }
 
     private void handleJoinLeave(String nodeId, BufferedReader br, boolean isJoin) throws IOException {
-        int tcpPort, membershipCounter;
+        int tcpPort, membershipCounter, weight;
         tcpPort = Integer.parseInt(br.readLine());
         membershipCounter = Integer.parseInt(br.readLine());
-        System.out.printf("Received message from: %s (port %d). Membership Counter: %d%n", nodeId, tcpPort,
-                membershipCounter);
+        String weightLine = br.readLine(); // Missing in messages of nodes that do not advertise a weight
+        weight = weightLine == null ? this.membershipService.getWeight(nodeId) : Integer.parseInt(weightLine);
+        log.debug(isJoin ? "Received join" : "Received leave", "node", nodeId, "counter", membershipCounter);
 
-        if (isJoin) this.membershipService.handleJoinRequest(nodeId, tcpPort, membershipCounter);
+        if (isJoin) this.membershipService.handleJoinRequest(nodeId, tcpPort, membershipCounter, weight);
         else this.membershipService.handleLeaveRequest(nodeId, membershipCounter, tcpPort);
     }
 
+    private void handleLoad(String nodeId, BufferedReader br) throws IOException {
+        int tcpPort = Integer.parseInt(br.readLine());
+        NodeLoad load = new NodeLoad(Integer.parseInt(br.readLine()), Long.parseLong(br.readLine()),
+                Long.parseLong(br.readLine()), Long.parseLong(br.readLine()));
+        this.membershipService.handleLoad(nodeId, tcpPort, load);
+    }
+
     private void handleElectionTimeout() {
         try {
             while (true) {
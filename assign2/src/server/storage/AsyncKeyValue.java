@@ -0,0 +1,11 @@
+package server.storage;
+
+import common.Message;
+
+import java.util.concurrent.CompletableFuture;
+
+public interface AsyncKeyValue {
+    CompletableFuture<Message> putAsync(String key, byte[] value);
+    CompletableFuture<Message> getAsync(String key);
+    CompletableFuture<Message> deleteAsync(String key);
+}
@@ -0,0 +1,354 @@
+package server.storage;
+
+import common.Utils;
+import server.Constants;
+import server.logging.Logger;
+import server.metrics.Metrics;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores big values as content-defined chunks, each chunk once no matter how many values contain it.
+ * Chunk boundaries come from a rolling (gear) hash of the content, so an insertion or removal in a value only
+ * changes the chunks around it and the rest are shared with the previous version.
+ * The value file of a chunked value holds a manifest, the list of its chunk hashes and lengths. Chunks are files
+ * in the chunks folder named after their hash, with the same format as values. Reference counts are kept in
+ * memory and rebuilt from the manifests on startup.
+ * A chunk found corrupted is moved to the quarantine folder and keeps its references, so the values that contain
+ * it are complete again once a good copy is fetched from another node.
+ */
+public class ChunkStore {
+    /**
+     * One entry of a manifest
+     * @param length decoded length of the chunk
+     */
+    public record ChunkRef(String hash, int length) {}
+
+    private static final Logger log = Logger.get("storage");
+
+    private static final long[] gear = new long[256];
+    static {
+        final Random random = new Random(0x5EED); // Every node must cut values at the same places
+        for (int i = 0; i < gear.length; ++i) gear[i] = random.nextLong();
+    }
+
+    private final Path chunkFolder;
+    private final Path tempFolder;
+    private final Path quarantineFolder;
+    private final ValueCodec valueCodec;
+    private final GroupCommitter groupCommitter;
+    private final ConcurrentHashMap<String, Integer> references = new ConcurrentHashMap<>();
+
+    public ChunkStore(Path chunkFolder, Path tempFolder, Path quarantineFolder, ValueCodec valueCodec,
+                      GroupCommitter groupCommitter) {
+        this.chunkFolder = chunkFolder;
+        this.tempFolder = tempFolder;
+        this.quarantineFolder = quarantineFolder;
+        this.valueCodec = valueCodec;
+        this.groupCommitter = groupCommitter;
+    }
+
+    /**
+     * Splits a value where the rolling hash matches the boundary mask, keeping chunks between the minimum and
+     * maximum chunk sizes
+     * @return end offset (exclusive) of every chunk
+     */
+    static List<Integer> findBoundaries(byte[] value) {
+        final long mask = (1L << Constants.chunkMaskBits) - 1;
+        final List<Integer> boundaries = new ArrayList<>();
+        int start = 0;
+        while (start < value.length) {
+            int end = Math.min(start + Constants.maxChunkSize, value.length);
+            long hash = 0;
+            for (int i = start + Math.min(Constants.minChunkSize, end - start); i < end; ++i) {
+                hash = (hash << 1) + gear[value[i] & 0xFF];
+                if ((hash & mask) == 0) {
+                    end = i + 1;
+                    break;
+                }
+            }
+            boundaries.add(end);
+            start = end;
+        }
+        return boundaries;
+    }
+
+    /**
+     * Stores the chunks of a value that are not stored yet and takes a reference to every chunk
+     * @param commits receives the durability futures of the written chunks
+     * @return the manifest, as a value encoded with the CHUNKED codec
+     */
+    public ValueCodec.Encoded store(byte[] value, List<CompletableFuture<Void>> commits) throws IOException {
+        final List<ChunkRef> chunks = new ArrayList<>();
+        int start = 0;
+        try {
+            for (int end : findBoundaries(value)) {
+                final byte[] chunk = new byte[end - start];
+                System.arraycopy(value, start, chunk, 0, chunk.length);
+                final ChunkRef ref = new ChunkRef(Utils.generateKey(chunk), chunk.length);
+                retain(ref.hash(), chunk, commits);
+                chunks.add(ref);
+                start = end;
+            }
+        } catch (IOException e) {
+            release(chunks);
+            throw e;
+        }
+
+        return new ValueCodec.Encoded(ValueCodec.Codec.CHUNKED, value.length, encodeManifest(chunks));
+    }
+
+    /**
+     * Takes a reference to every chunk of a manifest received from another node
+     * @return hashes of the chunks that are not stored, in which case no reference is taken
+     */
+    public List<String> retainAll(List<ChunkRef> chunks) {
+        final List<ChunkRef> retained = new ArrayList<>();
+        final List<String> missing = new ArrayList<>();
+        for (ChunkRef chunk : chunks) {
+            if (retainStored(chunk.hash())) retained.add(chunk);
+            else missing.add(chunk.hash());
+        }
+
+        if (!missing.isEmpty()) release(retained);
+        return missing;
+    }
+
+    /**
+     * Drops a reference to every chunk of a manifest, deleting the chunks nothing refers to anymore
+     */
+    public void release(List<ChunkRef> chunks) {
+        for (ChunkRef chunk : chunks) {
+            final String chunkPath = chunkFolder.resolve(chunk.hash()).toString();
+            synchronized (chunkPath.intern()) {
+                Integer count = references.computeIfPresent(chunk.hash(), (hash, refs) -> refs > 1 ? refs - 1 : null);
+                if (count != null) continue;
+
+                if (!new File(chunkPath).delete()) log.warn("Failed to delete chunk", "chunk", chunk.hash());
+            }
+        }
+    }
+
+    /**
+     * @return stored chunks, as they are stored. Missing chunks are left out.
+     */
+    public Map<String, ValueCodec.Encoded> readChunks(List<String> hashes) {
+        final Map<String, ValueCodec.Encoded> chunks = new LinkedHashMap<>();
+        for (String hash : hashes) {
+            if (!isHash(hash)) continue;
+            final String chunkPath = chunkFolder.resolve(hash).toString();
+            synchronized (chunkPath.intern()) {
+                try {
+                    chunks.put(hash, ValueFile.readEncoded(Path.of(chunkPath)));
+                } catch (ValueFile.CorruptedException e) {
+                    quarantine(hash, e);
+                } catch (IOException e) {
+                    log.warn("Failed to read chunk", "chunk", hash, "error", e.getMessage());
+                }
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Stores chunks sent by another node ahead of the manifest that refers to them. They have no reference
+     * until the manifest is saved.
+     * @throws IOException if a chunk does not match its hash
+     */
+    public void saveChunks(Map<String, ValueCodec.Encoded> chunks, List<CompletableFuture<Void>> commits) throws IOException {
+        for (Map.Entry<String, ValueCodec.Encoded> chunk : chunks.entrySet()) {
+            if (chunk.getValue().codec() == ValueCodec.Codec.CHUNKED ||
+                    !Utils.generateKey(ValueCodec.decode(chunk.getValue())).equals(chunk.getKey()))
+                throw new IOException("Chunk does not match its hash: " + chunk.getKey());
+
+            final Path chunkPath = chunkFolder.resolve(chunk.getKey());
+            synchronized (chunkPath.toString().intern()) {
+                if (chunkPath.toFile().exists()) continue;
+                ValueFile.write(chunkPath, tempFolder, chunk.getValue());
+            }
+            commits.add(groupCommitter.commit(chunkPath));
+        }
+    }
+
+    /**
+     * @return the decoded value of a manifest
+     */
+    public byte[] assemble(ValueCodec.Encoded manifest) throws IOException {
+        final ByteArrayOutputStream value = new ByteArrayOutputStream(manifest.rawLength());
+        for (ChunkRef chunk : decodeManifest(manifest.bytes())) {
+            final String chunkPath = chunkFolder.resolve(chunk.hash()).toString();
+            synchronized (chunkPath.intern()) {
+                try {
+                    value.write(ValueCodec.decode(ValueFile.readEncoded(Path.of(chunkPath))));
+                } catch (ValueFile.CorruptedException e) {
+                    quarantine(chunk.hash(), e);
+                    throw e;
+                }
+            }
+        }
+        return value.toByteArray();
+    }
+
+    /**
+     * Checks that a stored chunk still hashes to its name, quarantining it otherwise
+     * @return stored length of the chunk, -1 if it is corrupted or no longer stored
+     */
+    long verify(String hash) {
+        final Path chunkPath = chunkFolder.resolve(hash);
+        synchronized (chunkPath.toString().intern()) {
+            try {
+                final ValueCodec.Encoded chunk = ValueFile.readEncoded(chunkPath);
+                if (chunk.codec() == ValueCodec.Codec.CHUNKED || !Utils.generateKey(ValueCodec.decode(chunk)).equals(hash))
+                    throw new ValueFile.CorruptedException(chunkPath, "content does not match its hash");
+                return chunk.bytes().length;
+            } catch (FileNotFoundException e) {
+                return -1;
+            } catch (IOException e) {
+                quarantine(hash, e);
+                return -1;
+            }
+        }
+    }
+
+    public boolean hasChunk(String hash) {
+        return isHash(hash) && chunkFolder.resolve(hash).toFile().exists();
+    }
+
+    /**
+     * @return hashes of the stored chunks
+     */
+    List<String> listChunks() {
+        return listHashes(chunkFolder);
+    }
+
+    /**
+     * @return hashes of the quarantined chunks
+     */
+    List<String> listQuarantined() {
+        return listHashes(quarantineFolder);
+    }
+
+    /**
+     * Deletes the quarantined copy of a chunk once a good copy is stored
+     */
+    void dropQuarantined(String hash) {
+        if (!quarantineFolder.resolve(hash).toFile().delete())
+            log.warn("Failed to delete quarantined chunk", "chunk", hash);
+    }
+
+    /**
+     * Moves a corrupted chunk out of the chunks folder. Its references are kept for the good copy.
+     */
+    private void quarantine(String hash, IOException reason) {
+        final Path chunkPath = chunkFolder.resolve(hash);
+        synchronized (chunkPath.toString().intern()) {
+            try {
+                Files.move(chunkPath, quarantineFolder.resolve(hash), StandardCopyOption.REPLACE_EXISTING);
+                log.warn("Quarantined corrupted chunk", "chunk", hash, "error", reason.getMessage());
+                Metrics.increment("storage.corruptions");
+            } catch (IOException e) {
+                log.warn("Failed to quarantine chunk", "chunk", hash, "error", e.getMessage());
+            }
+        }
+    }
+
+    private static List<String> listHashes(Path folder) {
+        final List<String> hashes = new ArrayList<>();
+        File[] files = folder.toFile().listFiles(File::isFile);
+        if (files == null) return hashes;
+        for (File file : files) if (isHash(file.getName())) hashes.add(file.getName());
+        return hashes;
+    }
+
+    /**
+     * Rebuilds the reference counts on startup, once invalid files were removed
+     * @param manifests manifest of every chunked value
+     * @return number of chunks deleted because no value refers to them
+     */
+    int rebuildReferences(List<List<ChunkRef>> manifests) {
+        references.clear();
+        for (List<ChunkRef> chunks : manifests)
+            for (ChunkRef chunk : chunks) references.merge(chunk.hash(), 1, Integer::sum);
+
+        int deleted = 0;
+        File[] files = chunkFolder.toFile().listFiles(File::isFile);
+        if (files == null) return deleted;
+        for (File file : files) {
+            if (references.containsKey(file.getName())) continue;
+            if (file.delete()) ++deleted;
+        }
+        return deleted;
+    }
+
+    /**
+     * Hashes come from other nodes and name files, so anything but a hash is rejected
+     */
+    private static boolean isHash(String hash) {
+        return hash.matches("[0-9a-f]{1,64}");
+    }
+
+    public int getChunkCount() {
+        return references.size();
+    }
+
+    public static byte[] encodeManifest(List<ChunkRef> chunks) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(chunks.size());
+        for (ChunkRef chunk : chunks) {
+            dos.writeUTF(chunk.hash());
+            dos.writeInt(chunk.length());
+        }
+        return out.toByteArray();
+    }
+
+    public static List<ChunkRef> decodeManifest(byte[] manifest) throws IOException {
+        final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(manifest));
+        final int count = dis.readInt();
+        final List<ChunkRef> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) chunks.add(new ChunkRef(dis.readUTF(), dis.readInt()));
+        return chunks;
+    }
+
+    /**
+     * References a chunk, writing it first if it is not stored
+     */
+    private void retain(String hash, byte[] chunk, List<CompletableFuture<Void>> commits) throws IOException {
+        final Path chunkPath = chunkFolder.resolve(hash);
+        synchronized (chunkPath.toString().intern()) {
+            if (chunkPath.toFile().exists()) {
+                references.merge(hash, 1, Integer::sum);
+                Metrics.add("chunks.dedupBytes", chunk.length);
+                return;
+            }
+
+            ValueFile.write(chunkPath, tempFolder, valueCodec.encode(chunk));
+            references.merge(hash, 1, Integer::sum);
+        }
+        Metrics.increment("chunks.stored");
+        commits.add(groupCommitter.commit(chunkPath));
+    }
+
+    /**
+     * References a chunk only if it is stored
+     */
+    private boolean retainStored(String hash) {
+        if (!isHash(hash)) return false;
+        final Path chunkPath = chunkFolder.resolve(hash);
+        synchronized (chunkPath.toString().intern()) {
+            if (!chunkPath.toFile().exists()) return false;
+            references.merge(hash, 1, Integer::sum);
+            return true;
+        }
+    }
+}
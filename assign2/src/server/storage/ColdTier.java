@@ -0,0 +1,98 @@
+package server.storage;
+
+import server.Constants;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Folder of the values that were neither read nor written for store.coldAfter milliseconds. The TierMover moves
+ * them there from the value folder, compressed again at the best deflate level, and a read moves them back.
+ * The folder is the cold folder of the value folder by default, or the folder of the node under store.coldDir,
+ * so the values that are read keep the fast disk and the others can go to a cheaper one.
+ * Access times are kept in memory, a value not accessed since the node started is as old as its file.
+ */
+class ColdTier {
+    private final Path folder;
+    private final Path tempFolder; // On the same disk as the folder, so values are renamed into it
+    private final long coldAfterMs;
+    private final ConcurrentHashMap<String, Long> lastAccess = new ConcurrentHashMap<>();
+
+    /**
+     * @param nodeFolder value folder of the node, e.g. database/(hash)/
+     */
+    ColdTier(String nodeFolder) {
+        final String coldDir = System.getProperty("store.coldDir");
+        this.folder = coldDir == null ? Paths.get(nodeFolder, "cold") :
+                Paths.get(coldDir, Paths.get(nodeFolder).getFileName().toString());
+        this.tempFolder = folder.resolve("tmp");
+        this.coldAfterMs = Long.getLong("store.coldAfter", Constants.coldAfterMs);
+    }
+
+    Path getFolder() {
+        return folder;
+    }
+
+    Path getTempFolder() {
+        return tempFolder;
+    }
+
+    /**
+     * @return false if values are never moved to the cold folder
+     */
+    boolean isEnabled() {
+        return coldAfterMs > 0;
+    }
+
+    Path path(String key) {
+        return folder.resolve(key);
+    }
+
+    boolean contains(String key) {
+        return path(key).toFile().exists();
+    }
+
+    /**
+     * Records a read or write of the key
+     */
+    void touch(String key) {
+        lastAccess.put(key, System.currentTimeMillis());
+    }
+
+    void forget(String key) {
+        lastAccess.remove(key);
+    }
+
+    /**
+     * @param file value file of the key in the value folder
+     * @return true if the value was not accessed for coldAfterMs
+     */
+    boolean isCold(String key, File file) {
+        final Long accessed = lastAccess.get(key);
+        final long last = accessed != null ? accessed : file.lastModified();
+        return System.currentTimeMillis() - last >= coldAfterMs;
+    }
+
+    /**
+     * @return keys of the values in the cold folder
+     */
+    List<String> keys() {
+        final List<String> keys = new ArrayList<>();
+        final File[] files = folder.toFile().listFiles(File::isFile);
+        if (files == null) return keys;
+        for (File file : files) keys.add(file.getName());
+        return keys;
+    }
+
+    long getBytes() {
+        long bytes = 0;
+        final File[] files = folder.toFile().listFiles(File::isFile);
+        if (files == null) return 0;
+        for (File file : files) bytes += file.length();
+        return bytes;
+    }
+}
@@ -0,0 +1,184 @@
+package server.storage;
+
+import server.Constants;
+import server.logging.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Erasure-coded storage of large values, instead of a full copy on each of the replicationFactor replicas.
+ * The value, compressed by the codec, is split into k data fragments and m parity fragments with Reed-Solomon, and
+ * fragment i is stored on the i-th of the k+m holders of the key: the first k+m distinct nodes from the key on the
+ * ring, which start with its replicas. Any k fragments give back the value, so it survives the loss of m holders
+ * for (k+m)/k times its size instead of replicationFactor times.
+ * Each fragment is stored like a value, with the FRAGMENT codec, and starts with a header: k, m, the index of the
+ * fragment, the codec of the coded value and its length.
+ * The code is read from the store.erasure system property, e.g. 4+2 (none by default), and only values of at least
+ * store.erasureThreshold bytes are coded, once the ring has at least k+m nodes.
+ */
+public class ErasureCode {
+    private static final Logger log = Logger.get("storage");
+
+    static final int headerSize = 8;
+
+    /**
+     * A stored fragment
+     * @param codec codec of the value that was coded
+     * @param length length of the coded value, the shards are padded to the same length
+     * @param rawLength decoded length of the value, kept in the header of the value file
+     */
+    record Fragment(int dataFragments, int parityFragments, int index, ValueCodec.Codec codec, int length,
+                    int rawLength, byte[] shard) {
+        int width() {
+            return dataFragments + parityFragments;
+        }
+    }
+
+    private final int dataFragments;
+    private final int parityFragments;
+    private final int threshold;
+
+    ErasureCode(int dataFragments, int parityFragments, int threshold) {
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
+        this.threshold = threshold;
+    }
+
+    static ErasureCode configured() {
+        final String code = System.getProperty("store.erasure", "none").trim();
+        final int threshold = Integer.getInteger("store.erasureThreshold", Constants.erasureThreshold);
+        if (code.equalsIgnoreCase("none")) return new ErasureCode(0, 0, threshold);
+
+        try {
+            final String[] counts = code.split("\\+");
+            final int data = Integer.parseInt(counts[0].trim());
+            final int parity = Integer.parseInt(counts[1].trim());
+            if (data > 0 && parity > 0 && data + parity <= Constants.maxErasureWidth)
+                return new ErasureCode(data, parity, threshold);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ignored) {
+        }
+        log.warn("Unknown erasure code, values are replicated", "code", code);
+        return new ErasureCode(0, 0, threshold);
+    }
+
+    boolean isEnabled() {
+        return dataFragments > 0;
+    }
+
+    int dataFragments() {
+        return dataFragments;
+    }
+
+    int width() {
+        return dataFragments + parityFragments;
+    }
+
+    /**
+     * @param nodes number of nodes in the ring
+     */
+    boolean shouldCode(int length, int nodes) {
+        return isEnabled() && length >= threshold && nodes >= width();
+    }
+
+    /**
+     * @return the k+m fragments of the value, by index
+     */
+    List<ValueCodec.Encoded> encode(ValueCodec.Encoded value) {
+        final int shardSize = (value.bytes().length + dataFragments - 1) / dataFragments;
+        final byte[][] shards = new byte[width()][shardSize];
+        for (int i = 0; i < dataFragments; ++i) {
+            final int offset = i * shardSize;
+            if (offset < value.bytes().length)
+                System.arraycopy(value.bytes(), offset, shards[i], 0, Math.min(shardSize, value.bytes().length - offset));
+        }
+        new ReedSolomon(dataFragments, parityFragments).encodeParity(shards);
+
+        final List<ValueCodec.Encoded> fragments = new ArrayList<>(width());
+        for (int i = 0; i < width(); ++i)
+            fragments.add(toEncoded(new Fragment(dataFragments, parityFragments, i, value.codec(),
+                    value.bytes().length, value.rawLength(), shards[i])));
+        return fragments;
+    }
+
+    static Fragment parse(ValueCodec.Encoded fragment) throws IOException {
+        if (fragment.codec() != ValueCodec.Codec.FRAGMENT || fragment.bytes().length < headerSize)
+            throw new IOException("Not a fragment");
+
+        final ByteBuffer buffer = ByteBuffer.wrap(fragment.bytes());
+        final int data = buffer.get() & 0xFF;
+        final int parity = buffer.get() & 0xFF;
+        final int index = buffer.get() & 0xFF;
+        final ValueCodec.Codec codec = ValueCodec.Codec.fromId(buffer.get());
+        final int length = buffer.getInt();
+        if (data == 0 || index >= data + parity) throw new IOException("Invalid fragment header");
+
+        final byte[] shard = new byte[buffer.remaining()];
+        buffer.get(shard);
+        return new Fragment(data, parity, index, codec, length, fragment.rawLength(), shard);
+    }
+
+    /**
+     * @param fragments at least k fragments of the same value, with distinct indexes
+     * @return the coded value, as the codec stored it
+     */
+    static ValueCodec.Encoded decode(Collection<Fragment> fragments) throws IOException {
+        final byte[][] shards = reconstruct(fragments);
+        final Fragment first = fragments.iterator().next();
+        final byte[] value = new byte[first.length()];
+        for (int i = 0, offset = 0; offset < value.length; ++i) {
+            final int length = Math.min(shards[i].length, value.length - offset);
+            System.arraycopy(shards[i], 0, value, offset, length);
+            offset += length;
+        }
+        return new ValueCodec.Encoded(first.codec(), first.rawLength(), value);
+    }
+
+    /**
+     * @param fragments at least k fragments of the same value, with distinct indexes
+     * @return the fragments with the given indexes, rebuilt from the others
+     */
+    static List<ValueCodec.Encoded> rebuild(Collection<Fragment> fragments, Collection<Integer> indexes)
+            throws IOException {
+        final byte[][] shards = reconstruct(fragments);
+        final Fragment first = fragments.iterator().next();
+        final List<ValueCodec.Encoded> rebuilt = new ArrayList<>();
+        for (int index : indexes)
+            rebuilt.add(toEncoded(new Fragment(first.dataFragments(), first.parityFragments(), index, first.codec(),
+                    first.length(), first.rawLength(), shards[index])));
+        return rebuilt;
+    }
+
+    private static byte[][] reconstruct(Collection<Fragment> fragments) throws IOException {
+        final Fragment first = fragments.iterator().next();
+        final byte[][] shards = new byte[first.width()][first.shard().length];
+        final boolean[] present = new boolean[first.width()];
+        for (Fragment fragment : fragments) {
+            if (fragment.width() != first.width() || fragment.shard().length != first.shard().length)
+                throw new IOException("Fragments of different values");
+            shards[fragment.index()] = fragment.shard();
+            present[fragment.index()] = true;
+        }
+
+        try {
+            new ReedSolomon(first.dataFragments(), first.parityFragments()).reconstruct(shards, present);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        return shards;
+    }
+
+    static ValueCodec.Encoded toEncoded(Fragment fragment) {
+        final ByteBuffer buffer = ByteBuffer.allocate(headerSize + fragment.shard().length)
+                .put((byte) fragment.dataFragments())
+                .put((byte) fragment.parityFragments())
+                .put((byte) fragment.index())
+                .put((byte) fragment.codec().getId())
+                .putInt(fragment.length())
+                .put(fragment.shard());
+        return new ValueCodec.Encoded(ValueCodec.Codec.FRAGMENT, fragment.rawLength(), buffer.array());
+    }
+}
@@ -0,0 +1,80 @@
+package server.storage;
+
+import common.Message;
+import server.Constants;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keys of the values that expire, grouped in buckets of expiryBucketMs by the time they expire at. Each pass of the
+ * ExpiryManager only takes the buckets that ended, instead of reading every value file, so a value outlives its
+ * expiry by at most a bucket and a pass, during which reads already treat it as gone.
+ * Entries are not removed when a value is replaced or deleted: a key is checked against its file when its bucket
+ * is taken, and entries of values that no longer expire then are dropped.
+ */
+public class ExpiryIndex {
+    /**
+     * Header of put requests with the time to live of the value in milliseconds
+     */
+    public static final String ttlHeader = "ttl";
+    /**
+     * Carries the time the value expires at in saveFile and cacheValue requests and in get replies
+     */
+    public static final String expiresHeader = "expires";
+
+    private final TreeMap<Long, Set<String>> buckets = new TreeMap<>();
+    private int size = 0;
+
+    synchronized void add(String key, long expiresAt) {
+        if (buckets.computeIfAbsent(expiresAt / Constants.expiryBucketMs, bucket -> new HashSet<>()).add(key)) ++size;
+    }
+
+    /**
+     * Removes the buckets that ended before now
+     * @return keys whose value may have expired
+     */
+    synchronized List<String> pollDue(long now) {
+        final List<String> due = new ArrayList<>();
+        final Map<Long, Set<String>> ended = buckets.headMap(now / Constants.expiryBucketMs, false);
+        for (Set<String> bucket : ended.values()) due.addAll(bucket);
+        ended.clear();
+        size -= due.size();
+        return due;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return time a value put now with the time to live expires at, 0 if it never expires
+     * @param version version of the put, which starts with the time of the put
+     */
+    static long expiresAt(long ttlMs, long version) {
+        return ttlMs > 0 ? HybridClock.physicalTime(version) + ttlMs : 0;
+    }
+
+    /**
+     * Sets the expires header of a message that carries a value, unless the value never expires
+     */
+    static Message withExpiry(Message message, long expiresAt) {
+        return expiresAt == 0 ? message : message.setHeader(expiresHeader, Long.toString(expiresAt));
+    }
+
+    /**
+     * @return the time in a ttl or expires header, 0 if there is none
+     */
+    public static long fromHeader(String header) {
+        if (header == null) return 0;
+        try {
+            return Math.max(0, Long.parseLong(header));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
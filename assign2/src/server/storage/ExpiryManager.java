@@ -0,0 +1,31 @@
+package server.storage;
+
+import server.Constants;
+import server.logging.Logger;
+
+/**
+ * Deletes the values whose time to live ran out, every expiryCheckIntervalMs. Only the keys of the ended buckets of
+ * the expiry index are checked, so a pass costs nothing when no value is due. Each replica expires its copy on its
+ * own, at the time stored with the value, so expiring a value sends no message.
+ */
+public class ExpiryManager implements Runnable {
+    private static final Logger log = Logger.get("storage");
+
+    private final StorageService storageService;
+
+    public ExpiryManager(StorageService storageService) {
+        this.storageService = storageService;
+    }
+
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(Constants.expiryCheckIntervalMs);
+                int expired = storageService.expireDueValues();
+                if (expired > 0) log.debug("Deleted expired values", "values", expired);
+            }
+        } catch (InterruptedException ignored) {
+            // The node left the cluster
+        }
+    }
+}
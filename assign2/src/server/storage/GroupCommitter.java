@@ -0,0 +1,137 @@
+package server.storage;
+
+import server.Constants;
+import server.logging.Logger;
+import server.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes written files durable according to the durability mode:
+ * - NONE: files are left in the page cache, a machine crash can lose any write not yet flushed by the OS
+ * - PERIODIC: files are forced every durabilityIntervalMs, so a crash loses at most that window of acknowledged writes
+ * - PER_WRITE: a write is only acknowledged once its file is forced, nothing acknowledged is lost
+ * Every file is a separate inode, so each dirty file needs its own force, but the committer thread takes all
+ * files written while the last batch was being forced at once: a file written twice is forced once, the folders
+ * of new files are forced once per batch, and every waiting writer is released together.
+ * The mode is read from the store.durability system property (none, periodic or per_write).
+ */
+public class GroupCommitter {
+    public enum DurabilityMode {NONE, PERIODIC, PER_WRITE}
+
+    private static final Logger log = Logger.get("storage");
+
+    private record Commit(Path file, CompletableFuture<Void> done) {}
+
+    private final DurabilityMode mode;
+    private final LinkedBlockingQueue<Commit> pending = new LinkedBlockingQueue<>();
+    private final Thread committerThread;
+
+    public GroupCommitter(DurabilityMode mode) {
+        this.mode = mode;
+        if (mode == DurabilityMode.NONE) {
+            this.committerThread = null;
+            return;
+        }
+
+        this.committerThread = new Thread(this::commitLoop, "group-commit");
+        this.committerThread.setDaemon(true);
+        this.committerThread.start();
+    }
+
+    public static DurabilityMode configuredMode() {
+        String mode = System.getProperty("store.durability", Constants.defaultDurabilityMode);
+        try {
+            return DurabilityMode.valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown durability mode, using the default", "mode", mode);
+            return DurabilityMode.valueOf(Constants.defaultDurabilityMode.toUpperCase());
+        }
+    }
+
+    public DurabilityMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Registers a written file
+     * @return future completed once the write is as durable as the mode promises: immediately for NONE and
+     *         PERIODIC, after the file is forced for PER_WRITE
+     */
+    public CompletableFuture<Void> commit(Path file) {
+        if (mode == DurabilityMode.NONE) return CompletableFuture.completedFuture(null);
+
+        Commit commit = new Commit(file, new CompletableFuture<>());
+        pending.add(commit);
+        return mode == DurabilityMode.PER_WRITE ? commit.done() : CompletableFuture.completedFuture(null);
+    }
+
+    private void commitLoop() {
+        final List<Commit> batch = new ArrayList<>();
+        while (true) {
+            try {
+                if (mode == DurabilityMode.PERIODIC) Thread.sleep(Constants.durabilityIntervalMs);
+
+                // Waits for the first write, then takes every write that arrived while the last batch was forced
+                Commit first = pending.poll(Constants.durabilityIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                pending.drainTo(batch);
+
+                forceBatch(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void forceBatch(List<Commit> batch) {
+        final long start = System.nanoTime();
+        final Map<Path, IOException> failures = new LinkedHashMap<>();
+        final Set<Path> files = new LinkedHashSet<>();
+        final Set<Path> folders = new LinkedHashSet<>();
+        for (Commit commit : batch) {
+            files.add(commit.file());
+            folders.add(commit.file().getParent());
+        }
+
+        for (Path file : files) force(file, failures);
+        // New files are only reachable after a crash if the folder entry is durable too. Not every platform can
+        // force a folder, so this is best effort
+        for (Path folder : folders) force(folder, new LinkedHashMap<>());
+
+        for (Commit commit : batch) {
+            IOException failure = failures.get(commit.file());
+            if (failure == null) commit.done().complete(null);
+            else commit.done().completeExceptionally(failure);
+        }
+
+        Metrics.recordSince("disk.groupCommit", start);
+        Metrics.increment("disk.groupCommits");
+        Metrics.add("disk.filesForced", files.size());
+    }
+
+    private static void force(Path path, Map<Path, IOException> failures) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // A file deleted after being written does not need to be durable
+            if (!path.toFile().exists()) return;
+            log.warn("Failed to force file to disk", "path", path, "error", e.getMessage());
+            failures.put(path, e);
+        }
+    }
+}
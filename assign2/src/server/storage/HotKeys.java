@@ -0,0 +1,124 @@
+package server.storage;
+
+import server.Constants;
+import server.cluster.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the keys that are read the most. Reads are counted in a count-min sketch that is cleared every
+ * hotKeyWindowMs, and a key read hotKeyThreshold times within a window is hot. The sketch takes the same memory
+ * however many keys are read; its counts can only be above the real ones, by the reads of keys sharing all their
+ * counters, which the sketch makes unlikely.
+ * Hot keys owned by this node are copied to extra nodes for hotKeyTtlMs, at most maxHotKeys of them at a time.
+ * Once copied, clients spread the reads of a key over its replicas and copies, so the owner keeps it hot at the lower
+ * hotKeyKeepThreshold; otherwise the copies would expire and the key would become hot again once every read is back
+ * on the owner.
+ */
+public class HotKeys {
+    /**
+     * Header of get replies from the owner of a hot key, lists the nodes with a copy as "id:port,id:port"
+     */
+    public static final String copiesHeader = "copies";
+
+    private static final int depth = 4;
+    private static final int width = 4096;
+
+    /**
+     * A key copied to extra nodes
+     * @param copiedAt when the copies were sent, they expire hotKeyTtlMs later
+     */
+    private record Promotion(List<Node> nodes, long copiedAt) {}
+
+    private final int[] counters = new int[depth * width];
+    private long windowEnd = 0;
+    private final ConcurrentHashMap<String, Promotion> promotions = new ConcurrentHashMap<>();
+
+    /**
+     * Counts a read of the key
+     * @return true if the key became hot with this read, or is still hot if it has copies, which happens at most
+     *         once per window
+     */
+    synchronized boolean record(String key) {
+        final long now = System.currentTimeMillis();
+        if (now >= windowEnd) {
+            Arrays.fill(counters, 0);
+            windowEnd = now + Constants.hotKeyWindowMs;
+        }
+
+        final long[] hash = KeyFilter.hash(key);
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; ++row) {
+            final int index = row * width + (int) Long.remainderUnsigned(hash[0] + row * hash[1], width);
+            estimate = Math.min(estimate, ++counters[index]);
+        }
+        return estimate == (promotions.containsKey(key) ? Constants.hotKeyKeepThreshold : Constants.hotKeyThreshold);
+    }
+
+    /**
+     * @return true if the key has no copies, or they are halfway to expiring and should be sent again
+     */
+    boolean shouldPromote(String key) {
+        final Promotion promotion = promotions.get(key);
+        if (promotion != null) return System.currentTimeMillis() - promotion.copiedAt() >= Constants.hotKeyTtlMs / 2;
+        return size() < Constants.maxHotKeys;
+    }
+
+    void promote(String key, List<Node> nodes) {
+        promotions.put(key, new Promotion(List.copyOf(nodes), System.currentTimeMillis()));
+    }
+
+    /**
+     * @return the nodes that had a copy of the key, null if none did
+     */
+    List<Node> demote(String key) {
+        final Promotion promotion = promotions.remove(key);
+        return promotion == null ? null : promotion.nodes();
+    }
+
+    /**
+     * @return the nodes with a copy of the key, null if it has none or they expired
+     */
+    List<Node> getCopies(String key) {
+        final Promotion promotion = promotions.get(key);
+        if (promotion == null) return null;
+        if (System.currentTimeMillis() - promotion.copiedAt() < Constants.hotKeyTtlMs) return promotion.nodes();
+
+        promotions.remove(key, promotion);
+        return null;
+    }
+
+    /**
+     * @return number of keys with copies, expired ones included until they are looked up again
+     */
+    int size() {
+        promotions.values().removeIf(promotion -> System.currentTimeMillis() - promotion.copiedAt() >= Constants.hotKeyTtlMs);
+        return promotions.size();
+    }
+
+    public static String formatCopies(List<Node> nodes) {
+        final StringBuilder sb = new StringBuilder();
+        for (Node node : nodes) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(node.getId()).append(':').append(node.getPort());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the nodes listed in a copies header, empty if there is none
+     */
+    public static List<Node> parseCopies(String header) {
+        final List<Node> nodes = new ArrayList<>();
+        if (header == null || header.isEmpty()) return nodes;
+
+        for (String entry : header.split(",")) {
+            final int separator = entry.lastIndexOf(':');
+            nodes.add(new Node(entry.substring(0, separator), Integer.parseInt(entry.substring(separator + 1))));
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,52 @@
+package server.storage;
+
+/**
+ * Hybrid logical clock that versions writes and deletes. A version packs the wall clock time in milliseconds in its
+ * high 48 bits and a counter in the low 16 bits. Versions this node creates are always greater than every version it
+ * created or saw before, so a write that follows another one wins over it even if the clock of its node is behind.
+ * Versions of unrelated writes are ordered by wall clock time, ties broken by the counter.
+ */
+public class HybridClock {
+    /**
+     * Carries the version of the value or of the deletes in saveFile, saveFiles, safeDelete and safeDeleteFiles
+     * requests and in get replies
+     */
+    public static final String versionHeader = "version";
+    private static final int counterBits = 16;
+
+    private long last;
+
+    /**
+     * @return a version greater than every version created or observed so far
+     */
+    public synchronized long now() {
+        last = Math.max(last + 1, System.currentTimeMillis() << counterBits);
+        return last;
+    }
+
+    /**
+     * Takes in a version created by another node or read from disk
+     */
+    public synchronized void observe(long version) {
+        last = Math.max(last, version);
+    }
+
+    /**
+     * @return the version in a version header, 0 if there is none
+     */
+    public static long fromHeader(String header) {
+        if (header == null) return 0;
+        try {
+            return Long.parseLong(header);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the wall clock time in milliseconds of the node that created the version
+     */
+    public static long physicalTime(long version) {
+        return version >>> counterBits;
+    }
+}
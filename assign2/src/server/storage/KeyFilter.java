@@ -0,0 +1,123 @@
+package server.storage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Counting Bloom filter of the keys a node stores. A key the filter does not contain is certainly not stored, so
+ * lookups of missing keys are answered from memory; a key it contains is stored, or one of the few false
+ * positives. Counters make keys removable, and a filter sent to another node is reduced to one bit per counter.
+ * Both hashes come from the key, so every node maps a key to the same positions.
+ */
+public class KeyFilter {
+    private static final int bitsPerKey = 10;
+    private static final int hashes = 7; // About 1% false positives at capacity
+
+    private final byte[] counters;
+    private final int capacity;
+    private int size;
+
+    /**
+     * @param capacity number of keys the filter holds before its false positive rate goes up
+     */
+    public KeyFilter(int capacity) {
+        this.capacity = capacity;
+        this.counters = new byte[Math.max(64, capacity * bitsPerKey)];
+    }
+
+    private KeyFilter(byte[] counters) {
+        this.counters = counters;
+        this.capacity = counters.length / bitsPerKey;
+    }
+
+    public void add(String key) {
+        final long[] hash = hash(key);
+        for (int i = 0; i < hashes; ++i) {
+            final int index = index(hash, i);
+            if (counters[index] != -1) ++counters[index]; // Saturated counters are never decremented
+        }
+        ++size;
+    }
+
+    public void remove(String key) {
+        final long[] hash = hash(key);
+        for (int i = 0; i < hashes; ++i) {
+            final int index = index(hash, i);
+            if (counters[index] != 0 && counters[index] != -1) --counters[index];
+        }
+        --size;
+    }
+
+    /**
+     * @return false if the key is certainly not in the filter
+     */
+    public boolean mightContain(String key) {
+        final long[] hash = hash(key);
+        for (int i = 0; i < hashes; ++i) {
+            if (counters[index(hash, i)] == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true once the filter holds more keys than it was sized for
+     */
+    public boolean isFull() {
+        return size > capacity;
+    }
+
+    /**
+     * @return the filter as it is sent to other nodes: the number of positions and one bit per position
+     */
+    public byte[] toBytes() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(counters.length / 8 + 4);
+        final DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(counters.length);
+        for (int i = 0; i < counters.length; i += 8) {
+            int bits = 0;
+            for (int j = 0; j < 8 && i + j < counters.length; ++j)
+                if (counters[i + j] != 0) bits |= 1 << j;
+            dos.writeByte(bits);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads a filter written by toBytes. It can be queried, but not updated.
+     */
+    public static KeyFilter fromBytes(byte[] bytes) throws IOException {
+        final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+        final int length = dis.readInt();
+        if (length <= 0 || (length + 7) / 8 != bytes.length - Integer.BYTES)
+            throw new IOException("Invalid key filter of " + length + " positions");
+
+        final byte[] counters = new byte[length];
+        for (int i = 0; i < length; i += 8) {
+            final int bits = dis.readUnsignedByte();
+            for (int j = 0; j < 8 && i + j < length; ++j)
+                if ((bits & (1 << j)) != 0) counters[i + j] = 1;
+        }
+        return new KeyFilter(counters);
+    }
+
+    private int index(long[] hash, int i) {
+        return (int) Long.remainderUnsigned(hash[0] + i * hash[1], counters.length);
+    }
+
+    /**
+     * FNV-1a of the key, and a second hash mixed from it, combined as h1 + i * h2 for the i-th position
+     */
+    static long[] hash(String key) {
+        long h1 = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h1 ^= b & 0xFF;
+            h1 *= 0x100000001b3L;
+        }
+
+        long h2 = h1;
+        h2 = (h2 ^ (h2 >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h2 = (h2 ^ (h2 >>> 27)) * 0x94d049bb133111ebL;
+        h2 ^= h2 >>> 31;
+        return new long[] {h1, h2 | 1};
+    }
+}
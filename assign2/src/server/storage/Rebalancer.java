@@ -0,0 +1,66 @@
+package server.storage;
+
+import server.Constants;
+import server.WorkerPools;
+import server.cluster.MembershipView;
+import server.logging.Logger;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Moves files between nodes when the placement of keys changes: a node joins or leaves, or a node changes its
+ * weight. A pass starts once the tokens of the ring did not change for rebalanceDelayMs, so a burst of changes
+ * is handled by one pass and joining nodes fetch their files before the other nodes send them. Passes run on the
+ * rebalance pool, so they never overlap with the transfers of a join or leave, and a pass that could not move
+ * every file, for instance to a node that is down, is retried every rebalanceRetryMs.
+ */
+public class Rebalancer implements Runnable {
+    private static final Logger log = Logger.get("transfer");
+
+    private final StorageService storageService;
+    private final TransferService transferService;
+    private final WorkerPools workerPools;
+
+    public Rebalancer(StorageService storageService, TransferService transferService, WorkerPools workerPools) {
+        this.storageService = storageService;
+        this.transferService = transferService;
+        this.workerPools = workerPools;
+    }
+
+    public void run() {
+        MembershipView balanced = storageService.getView();
+        MembershipView pending = balanced;
+        long nextPass = System.currentTimeMillis();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(Constants.rebalanceCheckIntervalMs);
+
+                final MembershipView current = storageService.getView();
+                if (!current.tokens().equals(pending.tokens())) {
+                    pending = current;
+                    nextPass = System.currentTimeMillis() + Constants.rebalanceDelayMs;
+                    continue;
+                }
+                if (pending.tokens().equals(balanced.tokens()) || System.currentTimeMillis() < nextPass) continue;
+
+                if (rebalance(balanced, pending)) balanced = pending;
+                else nextPass = System.currentTimeMillis() + Constants.rebalanceRetryMs;
+            }
+        } catch (InterruptedException | RejectedExecutionException ignored) {
+            // The node left the cluster
+        }
+    }
+
+    /**
+     * @return true if every file was moved
+     */
+    private boolean rebalance(MembershipView previous, MembershipView next) throws InterruptedException {
+        try {
+            return workerPools.getRebalance().submit(() -> transferService.rebalance(previous, next)).get();
+        } catch (ExecutionException e) {
+            log.error("Rebalancing failed", e);
+            return false;
+        }
+    }
+}
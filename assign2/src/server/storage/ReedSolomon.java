@@ -0,0 +1,153 @@
+package server.storage;
+
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8): k data shards are stored as they are and m parity shards are computed
+ * from them, so that any k of the k+m shards give back the data. The encoding matrix is a Vandermonde matrix
+ * multiplied by the inverse of its top k rows, which makes those rows the identity and keeps every k rows invertible.
+ * All the shards of a value have the same length.
+ */
+class ReedSolomon {
+    private static final int polynomial = 0x11D; // x^8 + x^4 + x^3 + x^2 + 1
+    private static final byte[][] products = new byte[256][256];
+    private static final int[] logs = new int[256];
+    private static final int[] exps = new int[510];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; ++i) {
+            exps[i] = x;
+            exps[i + 255] = x;
+            logs[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= polynomial;
+        }
+        for (int a = 1; a < 256; ++a)
+            for (int b = 1; b < 256; ++b)
+                products[a][b] = (byte) exps[logs[a] + logs[b]];
+    }
+
+    private final int dataShards;
+    private final int totalShards;
+    private final byte[][] matrix; // totalShards rows of dataShards coefficients
+
+    ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards <= 0 || parityShards < 0 || dataShards + parityShards > 255)
+            throw new IllegalArgumentException("Invalid shard counts " + dataShards + "+" + parityShards);
+        this.dataShards = dataShards;
+        this.totalShards = dataShards + parityShards;
+
+        final byte[][] vandermonde = new byte[totalShards][dataShards];
+        for (int row = 0; row < totalShards; ++row)
+            for (int column = 0; column < dataShards; ++column)
+                vandermonde[row][column] = (byte) power(row, column);
+
+        final byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    /**
+     * Computes the parity shards from the data shards
+     * @param shards totalShards arrays of the same length, the first dataShards holding the data
+     */
+    void encodeParity(byte[][] shards) {
+        for (int row = dataShards; row < totalShards; ++row)
+            combine(matrix[row], shards, shards[row]);
+    }
+
+    /**
+     * Computes the shards that are missing from any dataShards present ones
+     * @param shards totalShards arrays of the same length, the missing ones included
+     * @param present which shards hold their data
+     * @throws IllegalArgumentException if fewer than dataShards shards are present
+     */
+    void reconstruct(byte[][] shards, boolean[] present) {
+        final byte[][] rows = new byte[dataShards][];
+        final byte[][] inputs = new byte[dataShards][];
+        int count = 0;
+        for (int shard = 0; shard < totalShards && count < dataShards; ++shard) {
+            if (!present[shard]) continue;
+            rows[count] = matrix[shard];
+            inputs[count] = shards[shard];
+            ++count;
+        }
+        if (count < dataShards)
+            throw new IllegalArgumentException("Only " + count + " of the " + dataShards + " shards needed");
+
+        final byte[][] decoding = invert(rows);
+        for (int shard = 0; shard < dataShards; ++shard)
+            if (!present[shard]) combine(decoding[shard], inputs, shards[shard]);
+        for (int shard = dataShards; shard < totalShards; ++shard)
+            if (!present[shard]) combine(matrix[shard], shards, shards[shard]);
+    }
+
+    /**
+     * output = sum of coefficients[i] * inputs[i], over the first coefficients.length inputs
+     */
+    private static void combine(byte[] coefficients, byte[][] inputs, byte[] output) {
+        Arrays.fill(output, (byte) 0);
+        for (int i = 0; i < coefficients.length; ++i) {
+            final byte[] product = products[coefficients[i] & 0xFF];
+            final byte[] input = inputs[i];
+            for (int b = 0; b < output.length; ++b) output[b] ^= product[input[b] & 0xFF];
+        }
+    }
+
+    private static int power(int base, int exponent) {
+        if (exponent == 0) return 1;
+        if (base == 0) return 0;
+        return exps[(logs[base] * exponent) % 255];
+    }
+
+    private static int inverse(int value) {
+        return exps[255 - logs[value]];
+    }
+
+    private static byte[][] multiply(byte[][] left, byte[][] right) {
+        final byte[][] result = new byte[left.length][right[0].length];
+        for (int row = 0; row < left.length; ++row)
+            for (int column = 0; column < right[0].length; ++column) {
+                int value = 0;
+                for (int i = 0; i < right.length; ++i)
+                    value ^= products[left[row][i] & 0xFF][right[i][column] & 0xFF];
+                result[row][column] = (byte) value;
+            }
+        return result;
+    }
+
+    /**
+     * Gauss-Jordan elimination of a square matrix
+     */
+    private static byte[][] invert(byte[][] square) {
+        final int size = square.length;
+        final byte[][] work = new byte[size][2 * size];
+        for (int row = 0; row < size; ++row) {
+            System.arraycopy(square[row], 0, work[row], 0, size);
+            work[row][size + row] = 1;
+        }
+
+        for (int column = 0; column < size; ++column) {
+            int pivot = column;
+            while (pivot < size && work[pivot][column] == 0) ++pivot;
+            if (pivot == size) throw new IllegalArgumentException("Singular matrix");
+            final byte[] swap = work[pivot];
+            work[pivot] = work[column];
+            work[column] = swap;
+
+            final byte[] scale = products[inverse(work[column][column] & 0xFF)];
+            for (int i = 0; i < 2 * size; ++i) work[column][i] = scale[work[column][i] & 0xFF];
+
+            for (int row = 0; row < size; ++row) {
+                if (row == column || work[row][column] == 0) continue;
+                final byte[] factor = products[work[row][column] & 0xFF];
+                for (int i = 0; i < 2 * size; ++i) work[row][i] ^= factor[work[column][i] & 0xFF];
+            }
+        }
+
+        final byte[][] result = new byte[size][size];
+        for (int row = 0; row < size; ++row) System.arraycopy(work[row], size, result[row], 0, size);
+        return result;
+    }
+}
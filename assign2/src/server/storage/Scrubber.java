@@ -0,0 +1,146 @@
+package server.storage;
+
+import server.Constants;
+import server.logging.Logger;
+import server.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads every stored value and chunk in the background to find the ones that rotted on disk. Values are checked
+ * against the checksum in their header, chunks are hashed again and compared to their name. Corrupted files are
+ * moved to the quarantine folder, by the scrubber or by a read that found them, and replaced with the copy of
+ * another node.
+ * Passes are rate limited to store.scrubRate bytes per second (0 disables them), so they do not compete with
+ * requests for the disk. Quarantined files are repaired as soon as they show up, and retried on every pass until
+ * a node has a good copy.
+ */
+public class Scrubber implements Runnable {
+    private static final Logger log = Logger.get("storage");
+
+    private final StorageService storageService;
+    private final TransferService transferService;
+    private final ChunkStore chunkStore;
+    private final long bytesPerSecond;
+    private final Set<String> failedRepairs = new HashSet<>(); // Retried on the next pass
+
+    private long nextPass;
+    private long passStart;
+    private long passBytes;
+
+    public Scrubber(StorageService storageService, TransferService transferService) {
+        this.storageService = storageService;
+        this.transferService = transferService;
+        this.chunkStore = storageService.getChunkStore();
+        this.bytesPerSecond = Long.getLong("store.scrubRate", Constants.scrubBytesPerSecond);
+    }
+
+    public void run() {
+        nextPass = System.currentTimeMillis() + Constants.scrubIntervalMs;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(Constants.scrubCheckIntervalMs);
+                repairQuarantined();
+
+                if (bytesPerSecond <= 0 || System.currentTimeMillis() < nextPass) continue;
+                scrub();
+                nextPass = System.currentTimeMillis() + Constants.scrubIntervalMs;
+            }
+        } catch (InterruptedException ignored) {
+            // The node left the cluster
+        }
+    }
+
+    private void scrub() throws InterruptedException {
+        final long start = System.nanoTime();
+        failedRepairs.clear();
+        passStart = System.currentTimeMillis();
+        passBytes = 0;
+
+        int files = 0;
+        for (String key : storageService.getFiles()) {
+            ValueCodec.Encoded value = storageService.verifyValue(key);
+            if (value == null) continue;
+            if (value.codec() == ValueCodec.Codec.CHUNKED) fetchMissingChunks(key, value);
+            ++files;
+            throttle(value.bytes().length);
+        }
+        for (String hash : chunkStore.listChunks()) {
+            long length = chunkStore.verify(hash);
+            if (length < 0) continue;
+            ++files;
+            throttle(length);
+        }
+
+        Metrics.add("scrub.files", files);
+        Metrics.recordSince("scrub.pass", start);
+        log.debug("Scrub pass done", "files", files, "bytes", passBytes);
+    }
+
+    /**
+     * Chunks that are missing without being quarantined, such as the ones deleted by hand
+     */
+    private void fetchMissingChunks(String key, ValueCodec.Encoded manifest) {
+        try {
+            for (ChunkStore.ChunkRef chunk : ChunkStore.decodeManifest(manifest.bytes())) {
+                if (chunkStore.hasChunk(chunk.hash()) || failedRepairs.contains("chunk " + chunk.hash())) continue;
+                if (transferService.fetchChunk(chunk.hash())) repaired("chunk", chunk.hash());
+                else unrepaired("chunk", chunk.hash());
+            }
+        } catch (IOException e) {
+            log.warn("Unreadable manifest", "key", key, "error", e.getMessage());
+        }
+    }
+
+    /**
+     * Sleeps until the bytes read so far in the pass fit in the rate, repairing what was quarantined meanwhile
+     */
+    private void throttle(long bytes) throws InterruptedException {
+        passBytes += bytes;
+        Metrics.add("scrub.bytes", bytes);
+
+        long ahead = passStart + passBytes * 1000 / bytesPerSecond - System.currentTimeMillis();
+        if (ahead < Constants.scrubCheckIntervalMs / 10) return;
+
+        repairQuarantined();
+        ahead = passStart + passBytes * 1000 / bytesPerSecond - System.currentTimeMillis();
+        if (ahead > 0) Thread.sleep(ahead);
+    }
+
+    /**
+     * Chunks first, since a value fetched again may refer to them
+     */
+    private void repairQuarantined() {
+        for (String hash : chunkStore.listQuarantined()) {
+            if (failedRepairs.contains("chunk " + hash)) continue;
+            if (chunkStore.hasChunk(hash) || transferService.fetchChunk(hash)) {
+                chunkStore.dropQuarantined(hash);
+                repaired("chunk", hash);
+            } else {
+                unrepaired("chunk", hash);
+            }
+        }
+
+        for (String key : storageService.getQuarantinedValues()) {
+            if (failedRepairs.contains("key " + key)) continue;
+            if (storageService.hasFile(key) || transferService.fetchFile(key)) {
+                storageService.dropQuarantinedValue(key);
+                repaired("key", key);
+            } else {
+                unrepaired("key", key);
+            }
+        }
+    }
+
+    private void repaired(String kind, String name) {
+        log.info("Replaced corrupted file with a good copy", kind, name);
+        Metrics.increment("scrub.repaired");
+    }
+
+    private void unrepaired(String kind, String name) {
+        log.warn("No node has a good copy of a corrupted file", kind, name);
+        failedRepairs.add(kind + " " + name);
+    }
+}
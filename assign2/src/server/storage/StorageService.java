@@ -1,320 +1,1850 @@
 package server.storage;
 
+import common.BatchCodec;
 import common.Message;
+import common.MessageTypes;
 import common.Sender;
 import common.Utils;
 import server.Constants;
+import server.WorkerPools;
+import server.cluster.MembershipView;
 import server.cluster.Node;
+import server.logging.Logger;
+import server.metrics.Metrics;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.ExecutorService;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
-public class StorageService implements KeyValue {
-    private final TreeMap<String, Node> nodeMap;
+public class StorageService implements KeyValue, AsyncKeyValue {
+    private static final Logger log = Logger.get("storage");
+
+    private final Supplier<MembershipView> membershipView;
     private final String ownID;
     private final String dbFolder;
     private final String tombstoneFolder;
-    private ExecutorService executorService;
+    private final Path tempFolder;
+    private final Path chunkFolder;
+    private final Path quarantineFolder; // Corrupted values, until a good copy is fetched
+    private final ColdTier coldTier; // Values that are rarely accessed
+    private final GroupCommitter groupCommitter;
+    private final ValueCodec valueCodec;
+    private final ErasureCode erasureCode = ErasureCode.configured(); // Large values are stored as fragments
+    private final ChunkStore chunkStore;
+    private final HybridClock clock = new HybridClock(); // Versions of writes and deletes
+    private KeyFilter keyFilter; // Stored keys, guarded by keyFilterLock
+    private final Object keyFilterLock = new Object();
+    private final HotKeys hotKeys = new HotKeys(); // Reads per key, and the hot keys copied to other nodes
+    private final ValueCache valueCache = new ValueCache(); // Copies of hot keys owned by other nodes
+    private final ExpiryIndex expiryIndex = new ExpiryIndex(); // Values with a time to live, by when they expire
+    private final ConcurrentHashMap<String, String> peerAccepts = new ConcurrentHashMap<>(); // Accept header of each node
+    private WorkerPools workerPools;
+
+    public StorageService(Supplier<MembershipView> membershipView, String ownID) {
+        this(membershipView, ownID, GroupCommitter.configuredMode());
+    }
 
-    public StorageService(TreeMap<String, Node> nodeMap, String ownID) {
-        this.nodeMap = nodeMap;
+    public StorageService(Supplier<MembershipView> membershipView, String ownID, GroupCommitter.DurabilityMode durability) {
+        this.membershipView = membershipView;
         this.ownID = ownID;
-        this.executorService = null;
+        this.workerPools = null;
         this.dbFolder = Utils.generateFolderPath(ownID);
         this.tombstoneFolder = dbFolder + "tombstones/";
-        createTombstoneFolder();
+        this.tempFolder = Paths.get(dbFolder, "tmp");
+        this.chunkFolder = Paths.get(dbFolder, "chunks");
+        this.quarantineFolder = Paths.get(dbFolder, "quarantine");
+        this.coldTier = new ColdTier(dbFolder);
+        this.groupCommitter = new GroupCommitter(durability);
+        this.valueCodec = new ValueCodec(ValueCodec.configuredCodec());
+        this.chunkStore = new ChunkStore(chunkFolder, tempFolder, quarantineFolder.resolve("chunks"), valueCodec,
+                groupCommitter);
+        createFolders();
+        recoverFiles();
+        rebuildKeyFilter();
     }
 
     @Override
     public Message put(String key, byte[] value) {
-        Node node = getResponsibleNode(key);
+        return put(key, value, 0);
+    }
+
+    /**
+     * @param ttlMs time to live of the value in milliseconds, 0 if it never expires. The replicas store the time it
+     *              expires at, so they all expire it at the same time.
+     */
+    public Message put(String key, byte[] value, long ttlMs) {
+        return startPut(key, value, ttlMs).join();
+    }
+
+    /**
+     * Writes the value and sends it to the other replicas
+     * @return future completed with the reply once the write is durable and every replica acknowledged or timed out
+     */
+    private CompletableFuture<Message> startPut(String key, byte[] value, long ttlMs) {
+        // A single snapshot of the ring is used for the whole operation
+        final MembershipView view = membershipView.get();
+        Node node = view.getResponsibleNode(key);
         if (!node.getId().equals(ownID))
-            return buildRedirectMessage(node);
+            return CompletableFuture.completedFuture(buildRedirectMessage(node));
 
-        if (hasFile(key)) return new Message("REP", "ok", null);
+        // A deleted key can be put again, the new value is a newer write than the delete
+        if (isLive(key)) return CompletableFuture.completedFuture(new Message("REP", "ok", null));
+        if (workerPools.isReplicationSaturated()) return CompletableFuture.completedFuture(buildBusyMessage());
+        if (erasureCode.shouldCode(value.length, view.size())) return putFragments(view, key, value, ttlMs);
 
-        String filePath = dbFolder + key;
-        synchronized (filePath.intern()) {
-            try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                fos.write(value);
-            } catch (IOException e) {
-                String error = "Error opening file in put operation: " + filePath;
-                System.out.println(error);
-                return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
-            }
+        final List<CompletableFuture<Void>> commits = new ArrayList<>();
+        final ValueCodec.Encoded encoded;
+        try {
+            encoded = encodeValue(value, commits);
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(buildWriteErrorMessage(key, e));
         }
+        final long version = clock.now();
+        final long expiresAt = ExpiryIndex.expiresAt(ttlMs, version);
+        Message error = writeFile(key, encoded, version, expiresAt, commits);
+        if (error != null) return CompletableFuture.completedFuture(error);
+        dropStaleTombstone(key, version);
+        dropHotCopies(key);
 
-        // Send the file to the following nodes (Replication)
-        for (int i = 1; i < Constants.replicationFactor; ++i) {
-            final Node nextNode = getNextNode(node);
-            if (nextNode.getId().equals(ownID)) break; // Not enough nodes available
+        // Send the file to the other replicas of the key (Replication)
+        final CompletableFuture<Void> replicas = replicate(getPeerReplicas(view, key), accept ->
+                ExpiryIndex.withExpiry(buildSaveFileMessage(key, 0, encoded, version, accept), expiresAt));
 
-            final ByteArrayOutputStream out = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(out);
-            try {
-                dos.write(key.getBytes(StandardCharsets.UTF_8));
-                dos.write(Utils.newLine.getBytes(StandardCharsets.UTF_8));
-                dos.writeLong(0);
-                dos.write(value);
+        // The replicas are written while the local file is being forced
+        return afterCommits(commits).thenCombine(replicas, (commitError, ignored) ->
+                commitError != null ? commitError : new Message("REP", "ok", null));
+    }
+
+    /**
+     * Stores a value as erasure-coded fragments: this node, the first holder of the key, keeps the first fragment
+     * and sends each other holder its own. The put succeeds once k fragments are stored, enough to read the value.
+     */
+    private CompletableFuture<Message> putFragments(MembershipView view, String key, byte[] value, long ttlMs) {
+        final List<ValueCodec.Encoded> fragments = erasureCode.encode(valueCodec.encode(value));
+        final List<Node> holders = view.getReplicas(key, erasureCode.width());
+        final List<CompletableFuture<Void>> commits = new ArrayList<>();
+        final long version = clock.now();
+        final long expiresAt = ExpiryIndex.expiresAt(ttlMs, version);
+        Message error = writeFile(key, fragments.get(0), version, expiresAt, commits);
+        if (error != null) return CompletableFuture.completedFuture(error);
+        dropStaleTombstone(key, version);
+        dropHotCopies(key);
+
+        final List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+        for (int i = 1; i < holders.size(); ++i) {
+            final ValueCodec.Encoded fragment = fragments.get(i);
+            // Fragments cannot be decoded on their own, so they are always sent as they are stored
+            acks.addAll(replicateAcks(List.of(holders.get(i)), accept -> ExpiryIndex.withExpiry(
+                    buildSaveFileMessage(key, 0, fragment, version, ValueCodec.accepted), expiresAt)));
+        }
+
+        final CompletableFuture<Void> holderAcks = CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0]));
+        return afterCommits(commits).thenCombine(holderAcks, (commitError, ignored) -> {
+            if (commitError != null) return commitError;
+            final long stored = 1 + acks.stream().filter(CompletableFuture::join).count();
+            Metrics.increment("erasure.puts");
+            if (stored < erasureCode.dataFragments()) {
+                String reason = "Only " + stored + " fragments stored in put operation: " + key;
+                log.warn(reason);
+                return new Message("REP", "error", reason.getBytes(StandardCharsets.UTF_8));
+            }
+            if (stored < holders.size())
+                log.warn("Some holders did not store their fragment", "key", key, "stored", stored);
+            return new Message("REP", "ok", null);
+        });
+    }
+
+    /**
+     * Stores every value this node is responsible for in one pass, then replicates all of them with a single
+     * saveFiles message per replica. Keys have replicas of their own, so each replica gets the values it holds.
+     * @return one reply per key, in the same order as the values
+     */
+    public LinkedHashMap<String, Message> putBatch(Map<String, byte[]> values) {
+        final MembershipView view = membershipView.get();
+        final LinkedHashMap<String, Message> replies = new LinkedHashMap<>();
+        final LinkedHashMap<String, ValueCodec.Encoded> savedFiles = new LinkedHashMap<>();
+        final boolean isBusy = workerPools.isReplicationSaturated();
+        final List<CompletableFuture<Void>> commits = new ArrayList<>();
+        final long version = clock.now(); // One version for the batch, sent once to each replica
 
-                Message msg = new Message("REQ", "saveFile", out.toByteArray());
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            final String key = entry.getKey();
+            Node node = view.getResponsibleNode(key);
+            if (!node.getId().equals(ownID)) {
+                replies.put(key, buildRedirectMessage(node));
+                continue;
+            }
+            if (isBusy) {
+                replies.put(key, buildBusyMessage());
+                continue;
+            }
+
+            if (isLive(key)) {
+                replies.put(key, new Message("REP", "ok", null));
+                continue;
+            }
 
-                // If the node is down, the node should recover when it gets back up
-                executorService.submit(() -> Sender.sendTCPMessage(msg.toBytes(), nextNode.getId(), nextNode.getPort()));
+            ValueCodec.Encoded encoded = null;
+            Message error;
+            try {
+                encoded = encodeValue(entry.getValue(), commits);
+                error = writeFile(key, encoded, version, 0, commits);
             } catch (IOException e) {
-                System.out.println("Error sending saveFile message to " + node.getId());
-                e.printStackTrace();
+                error = buildWriteErrorMessage(key, e);
+            }
+            replies.put(key, error != null ? error : new Message("REP", "ok", null));
+            if (error == null) {
+                dropStaleTombstone(key, version);
+                dropHotCopies(key);
+                savedFiles.put(key, encoded);
             }
+        }
 
-            node = nextNode;
+        for (Map.Entry<Node, List<String>> group : groupByPeerReplica(view, savedFiles.keySet()).entrySet()) {
+            final LinkedHashMap<String, ValueCodec.Encoded> replicaFiles = new LinkedHashMap<>();
+            for (String key : group.getValue()) replicaFiles.put(key, savedFiles.get(key));
+            replicate(List.of(group.getKey()), accept -> buildSaveFilesMessage(replicaFiles, version, accept));
         }
 
-        return new Message("REP", "ok", null);
+        Message commitError = awaitCommits(commits);
+        if (commitError != null) for (String key : savedFiles.keySet()) replies.put(key, commitError);
+
+        return replies;
+    }
+
+    /**
+     * The disk work runs on the request executor, which is released once the file is written: the reply is built
+     * when the commit and the replicas complete, so no thread waits for them.
+     */
+    @Override
+    public CompletableFuture<Message> putAsync(String key, byte[] value) {
+        return putAsync(key, value, 0);
+    }
+
+    public CompletableFuture<Message> putAsync(String key, byte[] value, long ttlMs) {
+        return CompletableFuture.supplyAsync(() -> startPut(key, value, ttlMs), workerPools.getRequests())
+                .thenCompose(reply -> reply);
+    }
+
+    @Override
+    public CompletableFuture<Message> getAsync(String key) {
+        return getAsync(key, null);
+    }
+
+    @Override
+    public CompletableFuture<Message> deleteAsync(String key) {
+        return CompletableFuture.supplyAsync(() -> startDelete(key), workerPools.getRequests())
+                .thenCompose(reply -> reply);
     }
 
     @Override
     public Message get(String key) {
+        return get(key, null);
+    }
+
+    /**
+     * Reads are counted per key. When the owner sees a key become hot, it copies the value to the nodes that follow
+     * its replicas, which serve it from memory instead of redirecting, and lists them in its replies so clients
+     * spread their reads.
+     * @param accept accept header of the requesting peer. Without one the value is decoded, as clients expect.
+     */
+    public Message get(String key, String accept) {
+        return startGet(key, accept, Runnable::run).join();
+    }
+
+    /**
+     * The file is read on the request executor, and a value stored as fragments is rebuilt once the fragments of the
+     * other holders arrive, without a thread waiting for them
+     */
+    public CompletableFuture<Message> getAsync(String key, String accept) {
+        return CompletableFuture.supplyAsync(() -> startGet(key, accept, workerPools.getRequests()),
+                workerPools.getRequests()).thenCompose(reply -> reply);
+    }
 
+    /**
+     * @param executor rebuilds a value stored as fragments and builds its reply
+     */
+    private CompletableFuture<Message> startGet(String key, String accept, Executor executor) {
         Node node = getResponsibleNode(key);
-        // The node can have the file due to replication
-        if (!node.getId().equals(ownID) && !hasFile(key))
-            return buildRedirectMessage(node);
+        // The node can have the file due to replication, or a copy of it if the key is hot
+        if (!node.getId().equals(ownID) && !hasFile(key)) {
+            Message cached = getCachedValue(key, accept);
+            return CompletableFuture.completedFuture(cached != null ? cached : buildRedirectMessage(node));
+        }
+        if (!mightHaveFile(key)) return CompletableFuture.completedFuture(buildMissingMessage(key));
 
         String filePath = dbFolder + key;
-        byte[] value;
+        ValueFile.Contents value;
 
         synchronized (filePath.intern()) {
-            try (FileInputStream fis = new FileInputStream(filePath)) {
-                value = fis.readAllBytes();
+            try {
+                Path path = getValuePath(key);
+                value = ValueFile.read(path);
+                // An expired value is gone even if the expiry manager has not deleted it yet
+                if (value.isExpired(System.currentTimeMillis())) {
+                    expireValue(key);
+                    return CompletableFuture.completedFuture(buildMissingMessage(key));
+                }
+                coldTier.touch(key);
+                if (!path.equals(Paths.get(filePath))) promoteValue(key, value);
             } catch (IOException e) {
-                String error = "Error opening file in get operation: " + key;
-                System.out.println(error);
-                return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
+                return CompletableFuture.completedFuture(buildReadErrorMessage(key, e));
             }
         }
 
-        return buildTombstoneMessage(key, value);
+        // Peers exchange fragments as they are, clients get the value rebuilt from the fragments of the holders
+        if (value.value().codec() == ValueCodec.Codec.FRAGMENT && !ValueCodec.accepts(accept, ValueCodec.Codec.FRAGMENT)) {
+            return decodeFragments(key, value, executor)
+                    .thenApply(decoded -> buildGetReply(key, node, decoded, accept))
+                    .exceptionally(e -> {
+                        if (!(e.getCause() instanceof IOException cause)) throw new CompletionException(e.getCause());
+                        return buildReadErrorMessage(key, cause);
+                    });
+        }
+        return CompletableFuture.completedFuture(buildGetReply(key, node, value, accept));
+    }
+
+    /**
+     * Counts the read of the key, and lists the nodes with a copy of it in the reply if it is hot
+     */
+    private Message buildGetReply(String key, Node node, ValueFile.Contents value, String accept) {
+        final Message reply = buildTombstoneMessage(key, value, accept);
+        if (!node.getId().equals(ownID)) {
+            hotKeys.record(key);
+            return reply;
+        }
+
+        if (hotKeys.record(key)) promoteHotKey(key, value);
+        final List<Node> copies = hotKeys.getCopies(key);
+        return copies == null ? reply : reply.setHeader(HotKeys.copiesHeader, HotKeys.formatCopies(copies));
     }
 
     @Override
     public Message delete(String key) {
-        Node node = getResponsibleNode(key);
+        return startDelete(key).join();
+    }
+
+    /**
+     * Deletes the value and tells the other replicas to delete it
+     * @return future completed with the reply once the tombstone is durable and every replica acknowledged or timed out
+     */
+    private CompletableFuture<Message> startDelete(String key) {
+        final MembershipView view = membershipView.get();
+        Node node = view.getResponsibleNode(key);
         if (!node.getId().equals(ownID))
-            return buildRedirectMessage(node);
+            return CompletableFuture.completedFuture(buildRedirectMessage(node));
 
         // File is not in the system
-        if (!hasFile(key)) return new Message("REP", "ok", null);
+        if (!hasFile(key)) return CompletableFuture.completedFuture(new Message("REP", "ok", null));
+        if (workerPools.isReplicationSaturated()) return CompletableFuture.completedFuture(buildBusyMessage());
 
-        this.safeDelete(key);
+        final List<CompletableFuture<Void>> commits = new ArrayList<>();
+        final long version = clock.now();
+        Message error = this.safeDelete(key, version, commits);
+        if (error != null) return CompletableFuture.completedFuture(error);
+        dropHotCopies(key);
 
-        // Tell the following nodes to delete the file (Replication)
-        for (int i = 1; i < Constants.replicationFactor; ++i) {
-            final Node nextNode = getNextNode(node);
-            if (nextNode.getId().equals(ownID)) break; // Not enough nodes available
+        // Tell the other replicas of the key to delete the file (Replication)
+        final CompletableFuture<Void> replicas = replicate(getPeerHolders(view, key),
+                new Message("REQ", "safeDelete", key.getBytes(StandardCharsets.UTF_8))
+                        .setHeader(HybridClock.versionHeader, Long.toString(version)));
 
-            Message msg = new Message("REQ", "safeDelete", key.getBytes(StandardCharsets.UTF_8));
+        return afterCommits(commits).thenCombine(replicas, (commitError, ignored) ->
+                commitError != null ? commitError : new Message("REP", "ok", null));
+    }
 
-            // If the node is down, the node should recover when it gets back up
-            executorService.submit(() -> Sender.sendTCPMessage(msg.toBytes(), nextNode.getId(), nextNode.getPort()));
-            node = nextNode;
-        }
+    public LinkedHashMap<String, Message> getBatch(List<String> keys) {
+        final LinkedHashMap<String, Message> replies = new LinkedHashMap<>();
+        for (String key : keys) replies.put(key, get(key));
 
-        return new Message("REP", "ok", null);
+        return replies;
     }
 
-    public Message getAndDelete(String key) {
-        String filePath = dbFolder + key;
-        byte[] value;
+    /**
+     * Deletes every key this node is responsible for and replicates the deletes with a single
+     * safeDeleteFiles message per replica.
+     */
+    public LinkedHashMap<String, Message> deleteBatch(List<String> keys) {
+        final MembershipView view = membershipView.get();
+        final LinkedHashMap<String, Message> replies = new LinkedHashMap<>();
+        final List<String> deletedKeys = new ArrayList<>();
+        final boolean isBusy = workerPools.isReplicationSaturated();
+        final List<CompletableFuture<Void>> commits = new ArrayList<>();
+        final long version = clock.now();
 
-        synchronized (filePath.intern()) {
-            try (FileInputStream fis = new FileInputStream(filePath)) {
-                value = fis.readAllBytes();
+        for (String key : keys) {
+            Node node = view.getResponsibleNode(key);
+            if (!node.getId().equals(ownID)) {
+                replies.put(key, buildRedirectMessage(node));
+                continue;
+            }
+            if (isBusy) {
+                replies.put(key, buildBusyMessage());
+                continue;
+            }
+
+            Message error = null;
+            if (hasFile(key)) {
+                error = this.safeDelete(key, version, commits);
+                if (error == null) {
+                    deletedKeys.add(key);
+                    dropHotCopies(key);
+                }
+            }
+            replies.put(key, error != null ? error : new Message("REP", "ok", null));
+        }
+
+        for (Map.Entry<Node, List<String>> group : groupByPeer(deletedKeys, key -> getPeerHolders(view, key)).entrySet()) {
+            try {
+                replicate(List.of(group.getKey()), new Message("REQ", "safeDeleteFiles",
+                        BatchCodec.encodeKeys(group.getValue()))
+                        .setHeader(HybridClock.versionHeader, Long.toString(version)));
             } catch (IOException e) {
-                String error = "Error opening file in get operation: " + key;
-                System.out.println(error);
-                return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
+                log.error("Error building safeDeleteFiles message", e);
             }
         }
 
-        Message reply = buildTombstoneMessage(key, value);
-        deleteFilePermanently(key);
+        Message commitError = awaitCommits(commits);
+        if (commitError != null) for (String key : deletedKeys) replies.put(key, commitError);
 
-        return reply;
+        return replies;
     }
 
-    public Message saveFile(String key, byte[] data) {
-        String filePath = dbFolder + key;
-        if (hasFile(key)) return new Message("REP", "ok", null);
+    /**
+     * @param version version of the writes, the same for every file of the batch
+     */
+    public LinkedHashMap<String, Message> saveFiles(Map<String, byte[]> files, boolean encoded, long version) {
+        final LinkedHashMap<String, Message> replies = new LinkedHashMap<>();
+        final List<CompletableFuture<Void>> commits = new ArrayList<>();
+        for (Map.Entry<String, byte[]> entry : files.entrySet())
+            replies.put(entry.getKey(), saveFile(entry.getKey(), entry.getValue(), encoded, version, 0, commits));
 
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-        try {
-            long tombTimestamp = dis.readLong();
-            byte[] file = dis.readAllBytes();
+        // One wait for the whole batch, the files are forced together
+        Message commitError = awaitCommits(commits);
+        if (commitError != null) replies.replaceAll((key, reply) -> commitError);
 
-            synchronized (filePath.intern()) {
-                try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                    fos.write(file);
-                }
+        return replies;
+    }
+
+    /**
+     * @param version version of the deletes, 0 if the sender did not send one
+     */
+    public LinkedHashMap<String, Message> safeDeleteFiles(List<String> keys, long version) {
+        final LinkedHashMap<String, Message> replies = new LinkedHashMap<>();
+        final List<CompletableFuture<Void>> commits = new ArrayList<>();
+        final long deleteVersion = version != 0 ? version : clock.now();
+        for (String key : keys) {
+            Message error = safeDelete(key, deleteVersion, commits);
+            replies.put(key, error != null ? error : new Message("REP", "ok", null));
+        }
+
+        Message commitError = awaitCommits(commits);
+        if (commitError != null) replies.replaceAll((key, reply) -> commitError);
+
+        return replies;
+    }
+
+    /**
+     * @return the replicas of the key other than this node
+     */
+    private List<Node> getPeerReplicas(MembershipView view, String key) {
+        final List<Node> replicas = new ArrayList<>(view.getReplicas(key));
+        replicas.removeIf(node -> node.getId().equals(ownID));
+        return replicas;
+    }
+
+    /**
+     * @return the replicas of the key other than this node, or the other holders if this node stores a fragment
+     */
+    List<Node> getPeerHolders(MembershipView view, String key) {
+        final ErasureCode.Fragment fragment = readFragmentHeader(key);
+        if (fragment == null) return getPeerReplicas(view, key);
+
+        final List<Node> holders = new ArrayList<>(view.getReplicas(key, fragment.width()));
+        holders.removeIf(node -> node.getId().equals(ownID));
+        return holders;
+    }
+
+    /**
+     * @return the keys each other replica holds, in the order of the keys
+     */
+    private Map<Node, List<String>> groupByPeerReplica(MembershipView view, Collection<String> keys) {
+        return groupByPeer(keys, key -> getPeerReplicas(view, key));
+    }
+
+    private Map<Node, List<String>> groupByPeer(Collection<String> keys, Function<String, List<Node>> peers) {
+        final Map<Node, List<String>> groups = new LinkedHashMap<>();
+        for (String key : keys)
+            for (Node replica : peers.apply(key))
+                groups.computeIfAbsent(replica, node -> new ArrayList<>()).add(key);
+        return groups;
+    }
+
+    private CompletableFuture<Void> replicate(List<Node> replicas, Message msg) {
+        return replicate(replicas, accept -> msg);
+    }
+
+    /**
+     * Sends a message to the other replicas of the keys it carries. If a node is down,
+     * it should recover when it gets back up.
+     * @param buildMessage builds the message for the accept header of a replica, it is built once per header
+     * @return future completed when every replica acknowledged or timed out
+     */
+    private CompletableFuture<Void> replicate(List<Node> replicas, MessageBuilder buildMessage) {
+        return CompletableFuture.allOf(replicateAcks(replicas, buildMessage).toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * @return one future per replica the message was sent to, true once the replica acknowledged it
+     */
+    private List<CompletableFuture<Boolean>> replicateAcks(List<Node> replicas, MessageBuilder buildMessage) {
+        final Map<String, Message> messages = new HashMap<>();
+        List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+        for (final Node nextNode : replicas) {
+            final String accept = getPeerAccept(nextNode.getId());
+            final Message msg;
+            final byte[] msgBytes;
+            try {
+                if (!messages.containsKey(accept)) messages.put(accept, buildMessage.build(accept));
+                msg = messages.get(accept);
+                msgBytes = msg.toBytes();
+            } catch (IOException e) {
+                log.error("Error building replication message", e, "node", nextNode.getId());
+                continue;
             }
 
-            if (tombTimestamp != 0)
-                this.saveTombstone(key, tombTimestamp);
+            if (!workerPools.tryAcquireReplication()) {
+                // The replica catches up when it rebalances, like a replica that was down
+                log.warn("Replication backlog full, skipping replica", "action", msg.getAction(), "node", nextNode.getId());
+                continue;
+            }
 
-            return new Message("REP", "ok", null);
-        } catch (IOException e) {
-            String error = "Error opening file in put operation: " + filePath;
-            System.out.println(error);
-            return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
+            acks.add(Sender.sendTCPMessageAsync(msgBytes, nextNode.getId(), nextNode.getPort(),
+                            workerPools.getReplicationGroup())
+                    .thenCompose(reply -> sendMissingChunksAsync(nextNode, msg.getAction(), msgBytes, reply))
+                    .whenComplete((reply, e) -> workerPools.releaseReplication())
+                    .thenApply(reply -> {
+                        learnPeerAccept(nextNode.getId(), reply);
+                        if (isOkReply(reply)) return true;
+                        log.warn("Replica did not acknowledge", "action", msg.getAction(), "node", nextNode.getId());
+                        return false;
+                    })
+                    .exceptionally(e -> false));
         }
+
+        return acks;
     }
 
-    public Message safeDelete(String key) {
+    /**
+     * When a replica is missing chunks of a value, sends them and then the original message again
+     * @return future with the reply to the last message sent
+     */
+    private CompletableFuture<byte[]> sendMissingChunksAsync(Node node, String action, byte[] msgBytes, byte[] reply) {
+        final byte[] chunksMsg;
         try {
-            saveTombstone(key, System.currentTimeMillis());
-            return new Message("REP", "ok", null);
+            List<String> missing = getMissingChunks(action, reply);
+            if (missing.isEmpty()) return CompletableFuture.completedFuture(reply);
+            chunksMsg = buildSaveChunksMessage(missing).toBytes();
         } catch (IOException e) {
-            String error = "Error creating tombstone file: " + key;
-            System.out.println(error);
-            return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
+            return CompletableFuture.completedFuture(reply);
         }
+
+        return Sender.sendTCPMessageAsync(chunksMsg, node.getId(), node.getPort(), workerPools.getReplicationGroup())
+                .thenCompose(chunksReply -> Sender.sendTCPMessageAsync(msgBytes, node.getId(), node.getPort(),
+                        workerPools.getReplicationGroup()));
     }
 
-    public void saveTombstone(String key, long timestamp) throws IOException {
-        String filePath = tombstoneFolder + key;
+    /**
+     * Blocking version of the replication exchange, for transfers
+     * @return the reply to the last message sent
+     */
+    public byte[] sendWithChunks(Node node, Message msg) throws IOException {
+        final byte[] msgBytes = msg.toBytes();
+        byte[] reply = Sender.sendTCPMessage(msgBytes, node.getId(), node.getPort());
+        learnPeerAccept(node.getId(), reply);
 
-        synchronized (filePath.intern()) {
-            FileOutputStream fos = new FileOutputStream(filePath);
-            DataOutputStream dos = new DataOutputStream(fos);
-            dos.writeLong(timestamp);
+        List<String> missing = getMissingChunks(msg.getAction(), reply);
+        if (missing.isEmpty()) return reply;
+
+        Sender.sendTCPMessage(buildSaveChunksMessage(missing).toBytes(), node.getId(), node.getPort());
+        return Sender.sendTCPMessage(msgBytes, node.getId(), node.getPort());
+    }
+
+    /**
+     * @param action action of the request, saveFile or saveFiles
+     * @return hashes of the chunks the node asked for in its reply
+     */
+    private static List<String> getMissingChunks(String action, byte[] replyBytes) throws IOException {
+        final Message reply = new Message(replyBytes);
+        final List<String> missing = new ArrayList<>();
+        if (reply.getAction().equals(MessageTypes.MISSING_CHUNKS.getCode())) {
+            missing.addAll(BatchCodec.decodeKeys(reply.getBody()));
+        } else if (action.equals(MessageTypes.SAVE_FILES.getCode()) && reply.getAction().equals("ok")) {
+            for (Message keyReply : BatchCodec.decodeReplies(reply.getBody()).values()) {
+                if (keyReply.getAction().equals(MessageTypes.MISSING_CHUNKS.getCode()))
+                    missing.addAll(BatchCodec.decodeKeys(keyReply.getBody()));
+            }
         }
+        return missing;
     }
 
-    public List<String> getFiles() {
-        File folder = new File(dbFolder);
-        String[] folderArray = folder.list();
-        List<String> folderList = new ArrayList<>();
-        if (folderArray == null) return folderList;
+    private Message buildSaveChunksMessage(List<String> hashes) throws IOException {
+        final LinkedHashMap<String, byte[]> chunks = new LinkedHashMap<>();
+        for (Map.Entry<String, ValueCodec.Encoded> chunk : chunkStore.readChunks(hashes).entrySet()) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ValueCodec.write(new DataOutputStream(out), chunk.getValue());
+            chunks.put(chunk.getKey(), out.toByteArray());
+        }
+        return new Message("REQ", MessageTypes.SAVE_CHUNKS.getCode(), BatchCodec.encodeValues(chunks));
+    }
 
-        for (String file : folderArray) {
-            if (!file.equals("tombstones") && !file.equals("membership.log") &&
-                    !file.equals("membershipCounter.txt")) {
-                folderList.add(file);
-            }
+    /**
+     * Reply to getChunks: the requested chunks as they are stored, written by ValueCodec.write
+     */
+    public Message getChunks(List<String> hashes) {
+        try {
+            Message chunks = buildSaveChunksMessage(hashes);
+            return new Message("REP", "ok", chunks.getBody());
+        } catch (IOException e) {
+            String error = "Error reading chunks: " + e.getMessage();
+            log.warn(error);
+            return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
         }
+    }
 
-        return folderList;
+    /**
+     * @param chunks chunk hashes and chunks written by ValueCodec.write, as in a saveChunks body
+     */
+    public Message saveChunks(Map<String, byte[]> chunks) {
+        final List<CompletableFuture<Void>> commits = new ArrayList<>();
+        try {
+            final LinkedHashMap<String, ValueCodec.Encoded> decoded = new LinkedHashMap<>();
+            for (Map.Entry<String, byte[]> chunk : chunks.entrySet())
+                decoded.put(chunk.getKey(), ValueCodec.read(new DataInputStream(new ByteArrayInputStream(chunk.getValue()))));
+            chunkStore.saveChunks(decoded, commits);
+        } catch (IOException e) {
+            String error = "Error saving chunks: " + e.getMessage();
+            log.warn(error);
+            return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Message commitError = awaitCommits(commits);
+        return commitError != null ? commitError : new Message("REP", "ok", null);
     }
 
-    public String getDbFolder() {
-        return dbFolder;
+    /**
+     * Builds a message for a peer, given the accept header it announced
+     */
+    @FunctionalInterface
+    private interface MessageBuilder {
+        Message build(String accept) throws IOException;
     }
 
-    public String getTombstoneFolder() {
-        return tombstoneFolder;
+    /**
+     * Remembers the codecs a node accepts from the accept header of one of its replies.
+     * Until a node replied once it is only sent decoded values.
+     */
+    public void learnPeerAccept(String nodeId, byte[] reply) {
+        try {
+            String accept = new Message(reply).getHeader(ValueCodec.acceptHeader);
+            if (accept != null) peerAccepts.put(nodeId, accept);
+        } catch (IOException ignored) {
+        }
     }
 
-    public int getNumberOfNodes() {
-        return nodeMap.size();
+    public String getPeerAccept(String nodeId) {
+        return peerAccepts.get(nodeId);
     }
 
-    public Node getNextNode(Node prevNode) {
-        String prevKey = Utils.generateKey(prevNode.getId());
-        Map.Entry<String, Node> nodeEntry = nodeMap.higherEntry(prevKey);
+    /**
+     * Builds a saveFile request. Peers that sent an accept header get the stored bytes with their codec, any
+     * other node gets the decoded value.
+     */
+    public Message buildSaveFileMessage(String key, long tombstoneTimestamp, ValueCodec.Encoded value, long version,
+                                        String accept) throws IOException {
+        return buildValueMessage(MessageTypes.SAVE_FILE.getCode(), key, tombstoneTimestamp, value, version, accept);
+    }
 
-        // No node with greater key -> Go to the start of the circle (first node)
-        if (nodeEntry == null) nodeEntry = nodeMap.firstEntry();
+    /**
+     * Body of a saveFile or cacheValue message: the key, the tombstone timestamp and the value
+     */
+    private Message buildValueMessage(String action, String key, long tombstoneTimestamp, ValueCodec.Encoded value,
+                                      long version, String accept) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final DataOutputStream dos = new DataOutputStream(out);
+        dos.write(key.getBytes(StandardCharsets.UTF_8));
+        dos.write(Utils.newLine.getBytes(StandardCharsets.UTF_8));
+        dos.writeLong(tombstoneTimestamp);
+        writeValue(dos, value, accept);
 
-        return nodeEntry.getValue();
+        return withEncoding(new Message("REQ", action, out.toByteArray()), accept)
+                .setHeader(HybridClock.versionHeader, Long.toString(version));
     }
 
-    public Node getPreviousNode(Node node) {
-        String key = Utils.generateKey(node.getId());
-        Map.Entry<String, Node> nodeEntry = nodeMap.lowerEntry(key);
+    private Message buildSaveFilesMessage(Map<String, ValueCodec.Encoded> values, long version,
+                                          String accept) throws IOException {
+        final LinkedHashMap<String, byte[]> files = new LinkedHashMap<>();
+        for (Map.Entry<String, ValueCodec.Encoded> entry : values.entrySet()) {
+            // Same body as a saveFile message, without a tombstone
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final DataOutputStream dos = new DataOutputStream(out);
+            dos.writeLong(0);
+            writeValue(dos, entry.getValue(), accept);
+            files.put(entry.getKey(), out.toByteArray());
+        }
 
-        // No node with lower key -> Go to the end of the circle (last node)
-        if (nodeEntry == null) nodeEntry = nodeMap.lastEntry();
+        return withEncoding(new Message("REQ", "saveFiles", BatchCodec.encodeValues(files)), accept)
+                .setHeader(HybridClock.versionHeader, Long.toString(version));
+    }
+
+    private void writeValue(DataOutputStream dos, ValueCodec.Encoded value, String accept) throws IOException {
+        if (accept == null) {
+            dos.write(decodeValue(value));
+            return;
+        }
 
-        return nodeEntry.getValue();
+        ValueCodec.write(dos, ValueCodec.accepts(accept, value.codec()) ? value :
+                new ValueCodec.Encoded(ValueCodec.Codec.NONE, value.rawLength(), decodeValue(value)));
     }
 
-    private boolean hasFile(String key) {
-        String filePath = dbFolder + key;
-        File file = new File(filePath);
-        return file.exists();
+    private byte[] decodeValue(ValueCodec.Encoded value) throws IOException {
+        return value.codec() == ValueCodec.Codec.CHUNKED ? chunkStore.assemble(value) : ValueCodec.decode(value);
     }
 
     /**
-     * This method ensures the binary search's O(log N) time complexity by using the
-     * TreeMap.ceilingKey() method, which takes advantage of a Red-Black BST.
+     * Rebuilds a value from the fragment of this node and the fragments of the same write on the other holders
+     * @param executor decodes the value once the fragments arrive
+     * @return future completed with the value, or failed with an IOException if not enough fragments could be read
      */
-    public Node getResponsibleNode(String key) {
-        Map.Entry<String, Node> nodeEntry = nodeMap.ceilingEntry(key);
+    private CompletableFuture<ValueFile.Contents> decodeFragments(String key, ValueFile.Contents local,
+                                                                  Executor executor) {
+        final ErasureCode.Fragment own;
+        try {
+            own = ErasureCode.parse(local.value());
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
 
-        // No node with greater key -> Go to the start of the circle (first node)
-        if (nodeEntry == null) nodeEntry = nodeMap.firstEntry();
+        return collectFragmentsAsync(key, own, membershipView.get().getReplicas(key, own.width()), local.version(),
+                own.dataFragments()).thenApplyAsync(collected -> {
+            final List<ErasureCode.Fragment> fragments = collected.fragments();
+            try {
+                if (fragments.size() < own.dataFragments())
+                    throw new IOException("Only " + fragments.size() + " fragments of " + key + " could be read");
+                Metrics.increment("erasure.decodes");
+                return new ValueFile.Contents(ErasureCode.decode(fragments), local.version(), local.expiresAt());
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
 
-        return nodeEntry.getValue();
+    /**
+     * Fetches the fragments of a write from the nodes that may hold them, the first ones first, and asks the next
+     * ones only for the fragments that are still missing
+     * @param own fragment of this node, null if it has none
+     * @param holders nodes to ask, this node is skipped
+     * @param needed number of distinct fragments to collect, the one of this node included
+     * @return fragments of the write with distinct indexes, fewer than needed if the holders do not have them
+     */
+    CollectedFragments collectFragments(String key, ErasureCode.Fragment own, Collection<Node> holders, long version,
+                                        int needed) {
+        return collectFragmentsAsync(key, own, holders, version, needed).join();
     }
 
-    public void deleteFilePermanently(String key) {
-        String filePath = dbFolder + key;
+    /**
+     * Fragments of a write collected from its holders
+     * @param expiresAt time the write expires at as the holders that replied store it, 0 if it never expires or no
+     *                  holder replied with a fragment
+     */
+    record CollectedFragments(List<ErasureCode.Fragment> fragments, long expiresAt) {
+    }
 
-        synchronized (filePath.intern()) {
-            File file = new File(filePath);
-            if (!file.delete())
-                System.out.println("Failed to delete the file: " + key);
-        }
+    /**
+     * A fragment fetched from a peer, and the time its write expires at
+     */
+    private record FetchedFragment(ErasureCode.Fragment fragment, long expiresAt) {
+    }
 
-        String tombstonePath = tombstoneFolder + key;
+    private CompletableFuture<CollectedFragments> collectFragmentsAsync(String key, ErasureCode.Fragment own,
+                                                                        Collection<Node> holders, long version,
+                                                                        int needed) {
+        final Map<Integer, ErasureCode.Fragment> fragments = new LinkedHashMap<>();
+        if (own != null) fragments.put(own.index(), own);
 
-        synchronized (tombstonePath.intern()) {
-            File tombstoneFile = new File(tombstonePath);
-            if (tombstoneFile.exists()) {
-                if (!tombstoneFile.delete())
-                    System.out.println("Failed to delete the tombstone file: " + key);
-            }
-        }
+        final List<Node> peers = new ArrayList<>(holders);
+        peers.removeIf(node -> node.getId().equals(ownID));
+        return collectFragments(key, version, needed, fragments, 0, peers, 0);
     }
 
-    private Message buildRedirectMessage(Node newNode) {
-        String redirectInfo = newNode.getId() + Utils.newLine + newNode.getPort();
-        return new Message("REP", "redirect", redirectInfo.getBytes(StandardCharsets.UTF_8));
-    }
+    /**
+     * Asks the next peers for as many fragments as are missing, then the following ones once they replied
+     * @param fragments fragments collected so far, by index. Waves run one after the other, so it is not shared.
+     * @param expiresAt expiry of the write as the peers that replied so far store it
+     * @param next index of the first peer of the wave
+     */
+    private CompletableFuture<CollectedFragments> collectFragments(String key, long version, int needed,
+                                                                   Map<Integer, ErasureCode.Fragment> fragments,
+                                                                   long expiresAt, List<Node> peers, int next) {
+        if (fragments.size() >= needed || next >= peers.size())
+            return CompletableFuture.completedFuture(new CollectedFragments(new ArrayList<>(fragments.values()),
+                    expiresAt));
 
-    private void createTombstoneFolder() {
-        File folder = new File(tombstoneFolder);
-        if (!folder.exists()) {
-            if (!folder.mkdir()) {
-                System.out.println("Error creating tombstone folder");
+        final List<CompletableFuture<FetchedFragment>> replies = new ArrayList<>();
+        final int waveEnd = Math.min(peers.size(), next + needed - fragments.size());
+        for (int i = next; i < waveEnd; ++i) replies.add(fetchFragment(peers.get(i), key, version));
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenCompose(ignored -> {
+            long waveExpiresAt = expiresAt;
+            for (CompletableFuture<FetchedFragment> reply : replies) {
+                final FetchedFragment fetched = reply.join();
+                if (fetched == null) continue;
+                fragments.putIfAbsent(fetched.fragment().index(), fetched.fragment());
+                // Every holder stores the expiry of the write, so any of them gives it
+                waveExpiresAt = Math.max(waveExpiresAt, fetched.expiresAt());
             }
+            return collectFragments(key, version, needed, fragments, waveExpiresAt, peers, waveEnd);
+        });
+    }
+
+    /**
+     * @return future with the fragment of the write the peer stores, null if it has another write or no fragment
+     */
+    private CompletableFuture<FetchedFragment> fetchFragment(Node peer, String key, long version) {
+        final byte[] request;
+        try {
+            request = new Message("REQ", MessageTypes.GET_FRAGMENT.getCode(), key.getBytes(StandardCharsets.UTF_8))
+                    .toBytes();
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(null);
         }
+
+        return Sender.sendTCPMessageAsync(request, peer.getId(), peer.getPort(), workerPools.getReplicationGroup())
+                .thenApply(reply -> parseFragment(reply, version))
+                .exceptionally(e -> null);
     }
 
-    private Message buildTombstoneMessage(String key, byte[] value) {
-        String tombstonePath = tombstoneFolder + key;
-        File tombstoneFile = new File(tombstonePath);
+    private static FetchedFragment parseFragment(byte[] replyBytes, long version) {
+        try {
+            final Message reply = new Message(replyBytes);
+            if (!reply.getAction().equals("ok") ||
+                    HybridClock.fromHeader(reply.getHeader(HybridClock.versionHeader)) != version) return null;
 
-        synchronized (tombstonePath.intern()) {
-            try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-                DataOutputStream dos = new DataOutputStream(bos);
-                dos.writeLong(tombstoneFile.exists() ?
-                        TombstoneManager.getTimestamp(tombstonePath) : 0);
-                dos.write(value);
-                return new Message("REP", "ok", bos.toByteArray());
+            final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(reply.getBody()));
+            dis.readLong(); // Tombstone
+            final ValueCodec.Encoded value = ValueCodec.read(dis);
+            if (value.codec() != ValueCodec.Codec.FRAGMENT) return null;
+            return new FetchedFragment(ErasureCode.parse(value),
+                    ExpiryIndex.fromHeader(reply.getHeader(ExpiryIndex.expiresHeader)));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the header of the fragment stored for the key, without its shard
+     * @return null if the key is not stored as a fragment
+     */
+    ErasureCode.Fragment readFragmentHeader(String key) {
+        if (!hasFile(key)) return null;
+        try {
+            ValueCodec.Encoded start = ValueFile.readStart(getValuePath(key), ErasureCode.headerSize);
+            return start == null || start.codec() != ValueCodec.Codec.FRAGMENT ? null : ErasureCode.parse(start);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the fragment stored for the key and its version, null if the key is not stored as a fragment or the
+     *         fragment cannot be read
+     */
+    ValueFile.Contents readFragment(String key) {
+        if (readFragmentHeader(key) == null) return null;
+        synchronized ((dbFolder + key).intern()) {
+            try {
+                ValueFile.Contents contents = ValueFile.read(getValuePath(key));
+                return contents.value().codec() == ValueCodec.Codec.FRAGMENT ? contents : null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reply to a holder collecting the fragments of a value. Unlike a get, the read is not counted towards hot keys
+     * and does not move the fragment out of the cold folder: holders read fragments to rebuild values and stripes,
+     * which says nothing about how much the value is read.
+     * @return the fragment as it is stored, with the version and expiry of its write
+     */
+    public Message getFragment(String key) {
+        final ValueFile.Contents fragment = readFragment(key);
+        if (fragment == null || fragment.isExpired(System.currentTimeMillis())) return buildMissingMessage(key);
+        try {
+            return ExpiryIndex.withExpiry(buildValueReply(0, fragment.value(), fragment.version(), ValueCodec.accepted),
+                    fragment.expiresAt());
+        } catch (IOException e) {
+            return buildReadErrorMessage(key, e);
+        }
+    }
+
+    /**
+     * Reply to a replica fetching a value on join or crash recovery. Like getFragment, the read is not counted
+     * towards hot keys and leaves a cold value in the cold folder, since copying a value says nothing about how much
+     * it is read.
+     * @param accept accept header of the requesting peer
+     */
+    public Message getReplica(String key, String accept) {
+        if (!mightHaveFile(key)) return buildMissingMessage(key);
+        ValueFile.Contents value;
+
+        synchronized ((dbFolder + key).intern()) {
+            try {
+                value = ValueFile.read(getValuePath(key));
+            } catch (IOException e) {
+                return buildReadErrorMessage(key, e);
+            }
+        }
+        if (value.isExpired(System.currentTimeMillis())) {
+            expireValue(key);
+            return buildMissingMessage(key);
+        }
+
+        return buildTombstoneMessage(key, value, accept);
+    }
+
+    /**
+     * @return the erasure code of this node, the one of the cluster
+     */
+    ErasureCode getErasureCode() {
+        return erasureCode;
+    }
+
+    /**
+     * @return index of the fragment stored for the key, -1 if the key is not stored as a fragment
+     */
+    public int getFragmentIndex(String key) {
+        final ErasureCode.Fragment fragment = readFragmentHeader(key);
+        return fragment == null ? -1 : fragment.index();
+    }
+
+    /**
+     * Stores a fragment rebuilt by this node, in place of the fragment of the same write it may have
+     */
+    Message saveFragment(String key, ValueCodec.Encoded fragment, long version, long expiresAt) {
+        if (version < getValueVersion(key)) return new Message("REP", "ok", null);
+
+        final List<CompletableFuture<Void>> commits = new ArrayList<>();
+        Message error = writeFile(key, fragment, version, expiresAt, commits);
+        if (error != null) return error;
+        dropStaleTombstone(key, version);
+
+        Message commitError = awaitCommits(commits);
+        return commitError != null ? commitError : new Message("REP", "ok", null);
+    }
+
+    /**
+     * Values of at least chunkingThreshold bytes are split into chunks, smaller ones are compressed whole
+     * @param commits receives the durability futures of the written chunks
+     */
+    private ValueCodec.Encoded encodeValue(byte[] value, List<CompletableFuture<Void>> commits) throws IOException {
+        return value.length >= Constants.chunkingThreshold ? chunkStore.store(value, commits) : valueCodec.encode(value);
+    }
+
+    /**
+     * Drops the chunk references of a value that is being deleted or was not stored
+     */
+    private void releaseChunks(ValueCodec.Encoded value) {
+        if (value.codec() != ValueCodec.Codec.CHUNKED) return;
+        try {
+            chunkStore.release(ChunkStore.decodeManifest(value.bytes()));
+        } catch (IOException e) {
+            log.warn("Invalid chunk manifest", "error", e.getMessage());
+        }
+    }
+
+    /**
+     * Marks the values in the body as written by ValueCodec.write
+     */
+    private static Message withEncoding(Message message, String accept) {
+        return accept == null ? message : message.setHeader(ValueCodec.encodingHeader, ValueCodec.codecEncoding);
+    }
+
+    private static boolean isOkReply(byte[] reply) {
+        try {
+            return new Message(reply).getAction().equals("ok");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return future completed once the writes are as durable as the durability mode promises, with null if every
+     *         write is durable, otherwise with the error reply
+     */
+    private static CompletableFuture<Message> afterCommits(List<CompletableFuture<Void>> commits) {
+        if (commits.isEmpty()) return CompletableFuture.completedFuture(null);
+
+        final long start = System.nanoTime();
+        return CompletableFuture.allOf(commits.toArray(new CompletableFuture<?>[0])).handle((ignored, e) -> {
+            if (e != null) {
+                final Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                String error = "Error forcing file to disk: " + cause.getMessage();
+                return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
+            }
+            Metrics.recordSince("disk.commitWait", start);
+            return null;
+        });
+    }
+
+    /**
+     * Waits until the writes are as durable as the durability mode promises
+     * @return null if every write is durable, otherwise the error reply
+     */
+    private static Message awaitCommits(List<CompletableFuture<Void>> commits) {
+        return afterCommits(commits).join();
+    }
+
+    /**
+     * Writes a value file. The chunks of a chunked value are already referenced: the references are dropped if the
+     * file cannot be written, and the references of a value it replaces are dropped once it is written.
+     * @param version version of the write, stored with the value
+     * @param expiresAt time the value expires at, 0 if it never expires
+     * @param commits receives the durability future of the write
+     * @return null if the file was written, otherwise the error reply
+     */
+    private Message writeFile(String key, ValueCodec.Encoded value, long version, long expiresAt,
+                              List<CompletableFuture<Void>> commits) {
+        String filePath = dbFolder + key;
+        final long start = System.nanoTime();
+        synchronized (filePath.intern()) {
+            final Path replacedPath = getValuePath(key);
+            final boolean existed = replacedPath.toFile().exists();
+            final ValueCodec.Encoded replaced = existed ? readReplacedValue(replacedPath) : null;
+            try {
+                ValueFile.write(Paths.get(filePath), tempFolder, value, version, expiresAt);
+            } catch (IOException e) {
+                releaseChunks(value);
+                String error = "Error opening file in put operation: " + filePath;
+                log.warn(error);
+                return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
+            }
+            if (replaced != null) releaseChunks(replaced);
+            if (!existed) addToKeyFilter(key);
+            if (expiresAt != 0) expiryIndex.add(key, expiresAt);
+            coldTier.touch(key);
+            // The value replaces the one of the cold folder
+            if (!replacedPath.equals(Paths.get(filePath)) && !replacedPath.toFile().delete())
+                log.warn("Failed to delete the cold value", "key", key);
+        }
+
+        Metrics.recordSince("disk.write", start);
+        commits.add(groupCommitter.commit(Paths.get(filePath)));
+        return null;
+    }
+
+    /**
+     * Stores a value and tombstone sent by another node, keeping whichever write is the latest
+     * @param encoded true if the value in data was written by ValueCodec.write, false if it is the decoded value
+     * @param version version of the write that stored the value, 0 if the sender did not send one
+     * @param expiresAt time the value expires at, 0 if it never expires
+     */
+    public Message saveFile(String key, byte[] data, boolean encoded, long version, long expiresAt) {
+        final List<CompletableFuture<Void>> commits = new ArrayList<>();
+        Message reply = saveFile(key, data, encoded, version, expiresAt, commits);
+        Message commitError = awaitCommits(commits);
+        return commitError != null ? commitError : reply;
+    }
+
+    private Message saveFile(String key, byte[] data, boolean encoded, long version, long expiresAt,
+                             List<CompletableFuture<Void>> commits) {
+        String filePath = dbFolder + key;
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            long tombTimestamp = dis.readLong();
+            clock.observe(Math.max(version, tombTimestamp));
+
+            // Last writer wins: the stored value is only replaced by a newer write
+            long storedVersion = getValueVersion(key);
+            // Values from peers that use the codecs are stored as they were sent
+            ValueCodec.Encoded sent = encoded ? ValueCodec.read(dis) : null;
+            // A fragment of the same write replaces the stored one when the fragments of a value are placed again
+            boolean replacesFragment = sent != null && sent.codec() == ValueCodec.Codec.FRAGMENT && version == storedVersion;
+            // A value that expired on the way, or on the node that sent it, is not stored again
+            boolean expired = expiresAt != 0 && System.currentTimeMillis() >= expiresAt;
+            if ((version > storedVersion || replacesFragment) && !expired) {
+                ValueCodec.Encoded file = sent != null ? sent : encodeValue(dis.readAllBytes(), commits);
+                if (encoded && file.codec() == ValueCodec.Codec.CHUNKED) {
+                    List<String> missing = chunkStore.retainAll(ChunkStore.decodeManifest(file.bytes()));
+                    if (!missing.isEmpty())
+                        return new Message("REP", MessageTypes.MISSING_CHUNKS.getCode(), BatchCodec.encodeKeys(missing));
+                }
+
+                Message error = writeFile(key, file, version, expiresAt, commits);
+                if (error != null) return error;
+                storedVersion = version;
+            }
+
+            if (tombTimestamp != 0)
+                this.saveTombstone(key, tombTimestamp, commits);
+            dropStaleTombstone(key, storedVersion);
+
+            return new Message("REP", "ok", null);
+        } catch (IOException e) {
+            String error = "Error opening file in put operation: " + filePath;
+            log.warn(error);
+            return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * @param version version of the delete, 0 if the sender did not send one
+     */
+    public Message safeDelete(String key, long version) {
+        final List<CompletableFuture<Void>> commits = new ArrayList<>();
+        Message error = safeDelete(key, version != 0 ? version : clock.now(), commits);
+        if (error != null) return error;
+
+        Message commitError = awaitCommits(commits);
+        return commitError != null ? commitError : new Message("REP", "ok", null);
+    }
+
+    /**
+     * @return null if the tombstone was written, otherwise the error reply
+     */
+    private Message safeDelete(String key, long version, List<CompletableFuture<Void>> commits) {
+        try {
+            saveTombstone(key, version, commits);
+            return null;
+        } catch (IOException e) {
+            String error = "Error creating tombstone file: " + key;
+            log.warn(error);
+            return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Writes a tombstone, unless the key has a newer tombstone or a value written after the delete
+     * @param timestamp version of the delete
+     */
+    private void saveTombstone(String key, long timestamp, List<CompletableFuture<Void>> commits) throws IOException {
+        String filePath = tombstoneFolder + key;
+        clock.observe(timestamp);
+        if (getValueVersion(key) >= timestamp) return;
+
+        synchronized (filePath.intern()) {
+            if (getTombstoneVersion(key) >= timestamp) return;
+            ValueFile.writeAtomically(Paths.get(filePath), tempFolder, ByteBuffer.allocate(Long.BYTES).putLong(timestamp).array());
+        }
+        commits.add(groupCommitter.commit(Paths.get(filePath)));
+    }
+
+    /**
+     * Deletes a tombstone older than the value written after it
+     */
+    private void dropStaleTombstone(String key, long valueVersion) {
+        String filePath = tombstoneFolder + key;
+
+        synchronized (filePath.intern()) {
+            long tombstone = getTombstoneVersion(key);
+            if (tombstone == 0 || tombstone >= valueVersion) return;
+            if (!new File(filePath).delete()) log.warn("Failed to delete the tombstone file", "key", key);
+        }
+    }
+
+    /**
+     * A key is live when it has a value written after its last delete, that has not expired
+     */
+    private boolean isLive(String key) {
+        long valueVersion = getValueVersion(key);
+        return valueVersion >= 0 && getTombstoneVersion(key) <= valueVersion && !isExpired(key);
+    }
+
+    private boolean isExpired(String key) {
+        try {
+            long expiresAt = ValueFile.readExpiry(getValuePath(key));
+            return expiresAt != 0 && System.currentTimeMillis() >= expiresAt;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the values of the ended buckets of the expiry index that expired
+     * @return number of values deleted
+     */
+    public int expireDueValues() {
+        int expired = 0;
+        for (String key : expiryIndex.pollDue(System.currentTimeMillis())) {
+            if (expireValue(key)) ++expired;
+        }
+        return expired;
+    }
+
+    /**
+     * Deletes the value of the key if it expired, with its tombstone, which no longer outranks anything: every
+     * replica expires the value at the same time, and a new put of the key is newer than both
+     * @return true if the value was deleted
+     */
+    private boolean expireValue(String key) {
+        synchronized ((dbFolder + key).intern()) {
+            if (!hasFile(key) || !isExpired(key)) return false;
+            deleteFilePermanently(key);
+        }
+        Metrics.increment("expiry.expired");
+        return true;
+    }
+
+    public int getExpiringKeyCount() {
+        return expiryIndex.size();
+    }
+
+    /**
+     * @return version of the stored value, 0 if it was written before values had one, -1 if there is no value
+     */
+    public long getValueVersion(String key) {
+        if (!hasFile(key)) return -1;
+        try {
+            return ValueFile.readVersion(getValuePath(key));
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return version of the delete of a key, 0 if it has no tombstone
+     */
+    public long getTombstoneVersion(String key) {
+        String tombstonePath = tombstoneFolder + key;
+        if (!new File(tombstonePath).exists()) return 0;
+        try {
+            return TombstoneManager.getTimestamp(tombstonePath);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return keys of the stored values in both tiers, skipping the tombstone and temporary folders and the
+     * membership files
+     */
+    public List<String> getFiles() {
+        List<String> files = getHotFiles();
+        Set<String> hotFiles = new HashSet<>(files);
+        for (String key : coldTier.keys()) if (!hotFiles.contains(key)) files.add(key);
+        return files;
+    }
+
+    /**
+     * @return keys of the values in the value folder
+     */
+    List<String> getHotFiles() {
+        File folder = new File(dbFolder);
+        File[] folderArray = folder.listFiles(File::isFile);
+        List<String> folderList = new ArrayList<>();
+        if (folderArray == null) return folderList;
+
+        for (File file : folderArray) {
+            if (!file.getName().equals(Constants.membershipLogFileName) &&
+                    !file.getName().equals(Constants.membershipCounterFileName)) {
+                folderList.add(file.getName());
+            }
+        }
+
+        return folderList;
+    }
+
+    /**
+     * Cleans up after a crash: removes temporary files of interrupted writes, values, chunks or tombstones that
+     * were only partially written, and chunked values with missing chunks. Every other file is complete, so
+     * recovery only has to fetch what was removed here or written by other nodes while this one was down.
+     * Then rebuilds the chunk references and deletes the chunks no value refers to.
+     */
+    private void recoverFiles() {
+        int discarded = 0;
+        for (Path folder : List.of(tempFolder, coldTier.getTempFolder())) {
+            File[] tempFiles = folder.toFile().listFiles();
+            if (tempFiles == null) continue;
+            for (File file : tempFiles) if (file.delete()) ++discarded;
+        }
+
+        // A value in both folders was being moved between them, and the copy of the value folder is the one read
+        for (String key : coldTier.keys()) {
+            if (Paths.get(dbFolder, key).toFile().exists() && coldTier.path(key).toFile().delete()) ++discarded;
+        }
+
+        // Only the headers and lengths are checked, the checksums are checked when a value is read and by the scrubber
+        File[] chunks = chunkFolder.toFile().listFiles(File::isFile);
+        if (chunks != null) {
+            for (File chunk : chunks) {
+                if (ValueFile.hasValidLength(chunk.toPath())) continue;
+
+                log.warn("Discarding incomplete chunk", "chunk", chunk.getName());
+                if (chunk.delete()) ++discarded;
+            }
+        }
+
+        final List<List<ChunkStore.ChunkRef>> manifests = new ArrayList<>();
+        for (String key : getFiles()) {
+            try {
+                manifests.add(readRecoveredManifest(getValuePath(key)));
+            } catch (IOException e) {
+                // The scrubber fetches a good copy from a replica
+                quarantineValue(key, e);
+                ++discarded;
+            }
+        }
+        int unreferenced = chunkStore.rebuildReferences(manifests);
+        if (unreferenced > 0) log.info("Deleted unreferenced chunks", "chunks", unreferenced);
+
+        File[] tombstones = new File(tombstoneFolder).listFiles(File::isFile);
+        if (tombstones != null) {
+            for (File tombstone : tombstones) {
+                if (tombstone.length() == Long.BYTES) {
+                    clock.observe(getTombstoneVersion(tombstone.getName()));
+                    continue;
+                }
+
+                log.warn("Discarding incomplete tombstone", "key", tombstone.getName());
+                if (tombstone.delete()) ++discarded;
+            }
+        }
+
+        if (discarded > 0) log.info("Recovered storage", "discarded", discarded);
+        Metrics.add("storage.recoveryDiscarded", discarded);
+    }
+
+    /**
+     * Only the header of a value is read, except for a chunked value whose manifest is needed to count the
+     * references of its chunks
+     * @return the manifest of a complete value, empty if the value is not chunked
+     * @throws IOException if the value is incomplete or refers to a missing chunk
+     */
+    private List<ChunkStore.ChunkRef> readRecoveredManifest(Path filePath) throws IOException {
+        ValueFile.Header header = ValueFile.readCheckedHeader(filePath);
+        clock.observe(header.version());
+        if (header.expiresAt() != 0) expiryIndex.add(filePath.getFileName().toString(), header.expiresAt());
+        if (header.codec() != ValueCodec.Codec.CHUNKED) return List.of();
+
+        List<ChunkStore.ChunkRef> manifest = ChunkStore.decodeManifest(ValueFile.readEncoded(filePath).bytes());
+        for (ChunkStore.ChunkRef chunk : manifest) {
+            if (!chunkFolder.resolve(chunk.hash()).toFile().exists())
+                throw new ValueFile.CorruptedException(filePath, "missing chunk " + chunk.hash());
+        }
+        return manifest;
+    }
+
+    public String getDbFolder() {
+        return dbFolder;
+    }
+
+    public String getTombstoneFolder() {
+        return tombstoneFolder;
+    }
+
+    public int getNumberOfNodes() {
+        return membershipView.get().size();
+    }
+
+    public MembershipView getView() {
+        return membershipView.get();
+    }
+
+    public Node getNextNode(Node prevNode) {
+        return membershipView.get().getNextNode(prevNode);
+    }
+
+    public Node getPreviousNode(Node node) {
+        return membershipView.get().getPreviousNode(node);
+    }
+
+    /**
+     * Keys missing from the key filter are answered without touching the disk
+     */
+    public boolean hasFile(String key) {
+        if (!mightHaveFile(key)) return false;
+        String filePath = dbFolder + key;
+        File file = new File(filePath);
+        return file.exists() || coldTier.contains(key);
+    }
+
+    /**
+     * @return the file of the value in the value folder, or in the cold folder if it is only there
+     */
+    Path getValuePath(String key) {
+        Path hotPath = Paths.get(dbFolder, key);
+        return hotPath.toFile().exists() || !coldTier.contains(key) ? hotPath : coldTier.path(key);
+    }
+
+    /**
+     * @return false if the key is certainly not stored
+     */
+    public boolean mightHaveFile(String key) {
+        final boolean mightHave;
+        synchronized (keyFilterLock) {
+            mightHave = keyFilter.mightContain(key);
+        }
+        if (!mightHave) Metrics.increment("filter.negatives");
+        return mightHave;
+    }
+
+    /**
+     * Reply to getFilter: the key filter of this node, for a peer to skip the keys this node certainly lacks
+     */
+    public Message getKeyFilter() {
+        try {
+            final byte[] filter;
+            synchronized (keyFilterLock) {
+                filter = keyFilter.toBytes();
+            }
+            return new Message("REP", "ok", filter);
+        } catch (IOException e) {
+            String error = "Error building the key filter: " + e.getMessage();
+            log.warn(error);
+            return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Keys are added once their file is written
+     */
+    private void addToKeyFilter(String key) {
+        synchronized (keyFilterLock) {
+            if (keyFilter == null) return; // Built once the recovery is done
+            keyFilter.add(key);
+            if (keyFilter.isFull()) rebuildKeyFilter();
+        }
+    }
+
+    /**
+     * Keys are removed before their file is deleted, so a filter rebuilt in between still counts them.
+     * The caller adds the key back if the file is not deleted.
+     */
+    private void removeFromKeyFilter(String key) {
+        synchronized (keyFilterLock) {
+            if (keyFilter == null) return; // Built once the recovery is done, values may be quarantined before
+            keyFilter.remove(key);
+        }
+    }
+
+    /**
+     * Sizes the filter for twice the stored keys and fills it from the disk. Filters cannot grow, so this also
+     * runs when the filter is full.
+     */
+    private void rebuildKeyFilter() {
+        synchronized (keyFilterLock) {
+            final List<String> keys = getFiles();
+            final KeyFilter filter = new KeyFilter(Math.max(Constants.keyFilterMinCapacity, keys.size() * 2));
+            for (String key : keys) filter.add(key);
+            keyFilter = filter;
+            log.debug("Rebuilt key filter", "keys", keys.size());
+        }
+    }
+
+    public Node getResponsibleNode(String key) {
+        return membershipView.get().getResponsibleNode(key);
+    }
+
+    public void deleteFilePermanently(String key) {
+        if (!deleteValueFile(key))
+            log.warn("Failed to delete the file", "key", key);
+
+        String tombstonePath = tombstoneFolder + key;
+
+        synchronized (tombstonePath.intern()) {
+            File tombstoneFile = new File(tombstonePath);
+            if (tombstoneFile.exists()) {
+                if (!tombstoneFile.delete())
+                    log.warn("Failed to delete the tombstone file", "key", key);
+            }
+        }
+    }
+
+    /**
+     * Deletes a value file, and the chunks only that value referred to
+     * @return true if the file was deleted
+     */
+    public boolean deleteValueFile(String key) {
+        String filePath = dbFolder + key;
+
+        synchronized (filePath.intern()) {
+            final Path path = getValuePath(key);
+            final ValueCodec.Encoded value = readReplacedValue(path);
+            removeFromKeyFilter(key);
+            if (!path.toFile().delete()) {
+                addToKeyFilter(key);
+                return false;
+            }
+            if (value != null) releaseChunks(value);
+            coldTier.forget(key);
+            return true;
+        }
+    }
+
+    /**
+     * Moves a value that was not accessed for coldAfterMs to the cold folder, compressed again at the best deflate
+     * level. The value leaves the value folder once the cold copy is durable, unless it was accessed or written
+     * meanwhile, in which case the cold copy is the one dropped.
+     * @return bytes read from the value folder, 0 if the value is not cold or no longer stored
+     */
+    long demoteValue(String key) throws IOException {
+        String filePath = dbFolder + key;
+        final Path coldPath = coldTier.path(key);
+        final ValueFile.Contents value;
+
+        synchronized (filePath.intern()) {
+            final File file = new File(filePath);
+            if (!file.exists() || !coldTier.isCold(key, file)) return 0;
+            try {
+                value = ValueFile.read(file.toPath());
+            } catch (ValueFile.CorruptedException e) {
+                quarantineValue(key, e);
+                return 0;
+            }
+            ValueFile.write(coldPath, coldTier.getTempFolder(), ValueCodec.archive(value.value()), value.version(),
+                    value.expiresAt());
+        }
+
+        boolean durable = true;
+        try {
+            groupCommitter.commit(coldPath).join();
+        } catch (CompletionException e) {
+            log.warn("Failed to force the cold value", "key", key, "error", e.getCause().getMessage());
+            durable = false;
+        }
+
+        synchronized (filePath.intern()) {
+            final File file = new File(filePath);
+            final boolean unchanged = durable && file.exists() && coldTier.isCold(key, file) &&
+                    ValueFile.readVersion(file.toPath()) == value.version();
+            if (!(unchanged ? file : coldPath.toFile()).delete())
+                log.warn("Failed to delete the value after moving it", "key", key);
+            if (!unchanged) return 0;
+        }
+
+        Metrics.increment("tier.demoted");
+        return value.value().bytes().length;
+    }
+
+    /**
+     * Moves a value read from the cold folder back to the value folder. The cold copy is deleted once the value is
+     * as durable as any write, and until then the value is read from the value folder.
+     * Called with the lock of the value file held.
+     */
+    private void promoteValue(String key, ValueFile.Contents value) {
+        final Path hotPath = Paths.get(dbFolder, key);
+        try {
+            ValueFile.write(hotPath, tempFolder, value.value(), value.version(), value.expiresAt());
+        } catch (IOException e) {
+            log.warn("Failed to move the value out of the cold folder", "key", key, "error", e.getMessage());
+            return;
+        }
+
+        Metrics.increment("tier.promoted");
+        groupCommitter.commit(hotPath).thenRun(() -> {
+            synchronized ((dbFolder + key).intern()) {
+                if (hotPath.toFile().exists() && !coldTier.path(key).toFile().delete())
+                    log.warn("Failed to delete the cold value", "key", key);
+            }
+        });
+    }
+
+    /**
+     * Checks the checksum of a stored value, and that a compressed value still inflates, quarantining it otherwise.
+     * The chunks of a chunked value are verified on their own.
+     * @return the value as it is stored, null if it is corrupted or no longer stored
+     */
+    ValueCodec.Encoded verifyValue(String key) {
+        String filePath = dbFolder + key;
+
+        synchronized (filePath.intern()) {
+            try {
+                ValueCodec.Encoded value = ValueFile.readEncoded(getValuePath(key));
+                if (value.codec() == ValueCodec.Codec.DEFLATE) ValueCodec.decode(value);
+                return value;
+            } catch (FileNotFoundException e) {
+                return null;
+            } catch (IOException e) {
+                quarantineValue(key, e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Moves a corrupted value file to the quarantine folder. The chunks it may refer to cannot be read from it,
+     * so they keep their references until the next restart.
+     */
+    void quarantineValue(String key, IOException reason) {
+        String filePath = dbFolder + key;
+
+        synchronized (filePath.intern()) {
+            removeFromKeyFilter(key);
+            try {
+                Files.move(getValuePath(key), quarantineFolder.resolve(key), StandardCopyOption.REPLACE_EXISTING);
+                log.warn("Quarantined corrupted value", "key", key, "error", reason.getMessage());
+                Metrics.increment("storage.corruptions");
+            } catch (IOException e) {
+                addToKeyFilter(key);
+                log.warn("Failed to quarantine value", "key", key, "error", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return keys of the quarantined values
+     */
+    List<String> getQuarantinedValues() {
+        List<String> keys = new ArrayList<>();
+        File[] files = quarantineFolder.toFile().listFiles(File::isFile);
+        if (files == null) return keys;
+        for (File file : files) keys.add(file.getName());
+        return keys;
+    }
+
+    /**
+     * Deletes the quarantined copy of a value once a good copy is stored
+     */
+    void dropQuarantinedValue(String key) {
+        if (!quarantineFolder.resolve(key).toFile().delete())
+            log.warn("Failed to delete quarantined value", "key", key);
+    }
+
+    ChunkStore getChunkStore() {
+        return chunkStore;
+    }
+
+    /**
+     * @return the value stored in a file about to be replaced or deleted, null if there is none or it is unreadable
+     */
+    private static ValueCodec.Encoded readReplacedValue(Path file) {
+        if (!file.toFile().exists()) return null;
+        try {
+            return ValueFile.readEncoded(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Same reply as a read of a file that does not exist, without logging it: clients ask for missing keys a lot
+     */
+    private static Message buildMissingMessage(String key) {
+        String error = "Error opening file in get operation: " + key;
+        return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Message buildRedirectMessage(Node newNode) {
+        String redirectInfo = newNode.getId() + Utils.newLine + newNode.getPort();
+        return new Message("REP", "redirect", redirectInfo.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sent instead of accepting a write when the replication backlog is full, the client may retry later
+     */
+    private static Message buildBusyMessage() {
+        return new Message("REP", "busy", null);
+    }
+
+    private void createFolders() {
+        for (File folder : List.of(new File(tombstoneFolder), tempFolder.toFile(), chunkFolder.toFile(),
+                quarantineFolder.resolve("chunks").toFile(), coldTier.getTempFolder().toFile())) {
+            if (!folder.exists()) {
+                if (!folder.mkdirs()) {
+                    log.error("Error creating folder", "folder", folder.getPath());
+                }
+            }
+        }
+    }
+
+    private static Message buildWriteErrorMessage(String key, IOException e) {
+        String error = "Error storing value in put operation: " + key;
+        log.warn(error, "error", e.getMessage());
+        return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A corrupted file is quarantined, the scrubber then fetches a good copy from a replica
+     */
+    private Message buildReadErrorMessage(String key, IOException e) {
+        String error = e instanceof ValueFile.CorruptedException ?
+                "Corrupted file in get operation: " + e.getMessage() : "Error opening file in get operation: " + key;
+        log.warn(error);
+        if (e instanceof ValueFile.CorruptedException) quarantineValue(key, e);
+        return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The body has the version of the delete, 0 if the value was not deleted or was put again after it,
+     * followed by the value. The version of the value is sent in a header.
+     * @param accept accept header of the requesting peer, null for a client
+     */
+    private Message buildTombstoneMessage(String key, ValueFile.Contents value, String accept) {
+        String tombstonePath = tombstoneFolder + key;
+
+        synchronized (tombstonePath.intern()) {
+            try {
+                long tombstone = getTombstoneVersion(key);
+                return ExpiryIndex.withExpiry(buildValueReply(tombstone > value.version() ? tombstone : 0,
+                        value.value(), value.version(), accept), value.expiresAt());
             } catch (IOException e) {
                 String error = "Error opening tombstone file operation: " + key;
-                System.out.println(error);
+                log.warn(error);
                 return new Message("REP", "error", error.getBytes(StandardCharsets.UTF_8));
             }
         }
     }
 
-    public void setExecutorService(ExecutorService executorService) {
-        this.executorService = executorService;
+    /**
+     * Body of a get reply: the tombstone timestamp, 0 unless the delete is newer than the value, and the value
+     */
+    private Message buildValueReply(long tombstone, ValueCodec.Encoded value, long version, String accept)
+            throws IOException {
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeLong(tombstone);
+            writeValue(dos, value, accept);
+            return withEncoding(new Message("REP", "ok", bos.toByteArray()), accept)
+                    .setHeader(HybridClock.versionHeader, Long.toString(version));
+        }
+    }
+
+    /**
+     * @return codec of the value in the body of a reply built by buildValueReply for a peer, one with an accept header
+     */
+    public static ValueCodec.Codec getReplyCodec(byte[] body) throws IOException {
+        return ValueCodec.peekCodec(body, Long.BYTES);
+    }
+
+    /**
+     * Copies a hot value to the hotKeyCopies nodes that follow its replicas. Chunked values are sent decoded, since
+     * the copies are kept in memory without their chunks, and values above maxHotValueSize are not copied.
+     */
+    private void promoteHotKey(String key, ValueFile.Contents value) {
+        if (value.value().rawLength() > Constants.maxHotValueSize || !hotKeys.shouldPromote(key)) return;
+
+        final MembershipView view = membershipView.get();
+        final List<Node> replicas = view.getReplicas(key);
+        final List<Node> copies = new ArrayList<>(view.getReplicas(key, replicas.size() + Constants.hotKeyCopies));
+        copies.removeIf(node -> MembershipView.containsNode(replicas, node.getId()));
+        if (copies.isEmpty()) return;
+
+        final long tombstone = getTombstoneVersion(key);
+        hotKeys.promote(key, copies);
+        Metrics.increment("hot.promoted");
+        log.info("Copying hot key to more nodes", "key", key, "nodes", copies.size());
+        replicate(copies, accept -> ExpiryIndex.withExpiry(buildValueMessage(MessageTypes.CACHE_VALUE.getCode(), key,
+                tombstone > value.version() ? tombstone : 0, value.value(), value.version(),
+                ValueCodec.withoutCodec(accept, ValueCodec.Codec.CHUNKED)), value.expiresAt()));
+    }
+
+    /**
+     * Drops the copies of a key that was written or deleted, they are sent again if it is still hot
+     */
+    private void dropHotCopies(String key) {
+        final List<Node> copies = hotKeys.demote(key);
+        if (copies != null)
+            replicate(copies, new Message("REQ", MessageTypes.UNCACHE_VALUE.getCode(), key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Keeps a copy of a hot value of another node for hotKeyTtlMs, or until the value expires
+     * @param data same body as saveFile
+     */
+    public Message cacheValue(String key, byte[] data, boolean encoded, long version, long expiresAt) {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            long tombstone = dis.readLong();
+            byte[] bytes = encoded ? null : dis.readAllBytes();
+            ValueCodec.Encoded value = encoded ? ValueCodec.read(dis) :
+                    new ValueCodec.Encoded(ValueCodec.Codec.NONE, bytes.length, bytes);
+            if (value.codec() == ValueCodec.Codec.CHUNKED)
+                return new Message("REP", "error", "Chunked values are not cached".getBytes(StandardCharsets.UTF_8));
+
+            final long until = System.currentTimeMillis() + Constants.hotKeyTtlMs;
+            valueCache.put(key, new ValueCache.Entry(value, version, tombstone,
+                    expiresAt != 0 ? Math.min(until, expiresAt) : until));
+            return new Message("REP", "ok", null);
+        } catch (IOException e) {
+            log.warn("Invalid copy of a hot key", "key", key);
+            return new Message("REP", "error", e.getMessage().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public Message uncacheValue(String key) {
+        valueCache.remove(key);
+        return new Message("REP", "ok", null);
+    }
+
+    /**
+     * @return the reply with the copy of a hot key of another node, null if this node has no copy of it
+     */
+    private Message getCachedValue(String key, String accept) {
+        final ValueCache.Entry entry = valueCache.get(key);
+        if (entry == null) return null;
+
+        try {
+            Message reply = buildValueReply(entry.tombstone(), entry.value(), entry.version(), accept);
+            Metrics.increment("hot.cacheHits");
+            return reply;
+        } catch (IOException e) {
+            valueCache.remove(key);
+            return null;
+        }
+    }
+
+    public int getHotKeyCount() {
+        return hotKeys.size();
+    }
+
+    public long getCachedBytes() {
+        return valueCache.getBytes();
+    }
+
+    /**
+     * @return bytes used by values, in both tiers, and tombstones
+     */
+    public long getDiskUsage() {
+        long usage = coldTier.getBytes();
+        for (String folderPath : List.of(dbFolder, tombstoneFolder, chunkFolder.toString())) {
+            File[] files = new File(folderPath).listFiles(File::isFile);
+            if (files == null) continue;
+            for (File file : files) usage += file.length();
+        }
+        return usage;
+    }
+
+    public boolean isColdTierEnabled() {
+        return coldTier.isEnabled();
+    }
+
+    public long getColdBytes() {
+        return coldTier.getBytes();
+    }
+
+    public int getChunkCount() {
+        return chunkStore.getChunkCount();
+    }
+
+    public void setWorkerPools(WorkerPools workerPools) {
+        this.workerPools = workerPools;
     }
 }
@@ -0,0 +1,64 @@
+package server.storage;
+
+import server.Constants;
+import server.logging.Logger;
+import server.metrics.Metrics;
+
+import java.io.IOException;
+
+/**
+ * Moves the values that were neither read nor written for store.coldAfter milliseconds (0 disables it) to the cold
+ * folder, checking every value of the value folder every tierCheckIntervalMs. Passes are rate limited to
+ * store.tierRate bytes per second, so they do not compete with requests for the disk. A value read from the cold
+ * folder moves back on its own.
+ */
+public class TierMover implements Runnable {
+    private static final Logger log = Logger.get("storage");
+
+    private final StorageService storageService;
+    private final long bytesPerSecond;
+
+    public TierMover(StorageService storageService) {
+        this.storageService = storageService;
+        this.bytesPerSecond = Long.getLong("store.tierRate", Constants.tierBytesPerSecond);
+    }
+
+    public void run() {
+        if (!storageService.isColdTierEnabled()) return;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(Constants.tierCheckIntervalMs);
+                movePass();
+            }
+        } catch (InterruptedException ignored) {
+            // The node left the cluster
+        }
+    }
+
+    private void movePass() throws InterruptedException {
+        final long start = System.nanoTime();
+        final long passStart = System.currentTimeMillis();
+        long passBytes = 0;
+        int moved = 0;
+
+        for (String key : storageService.getHotFiles()) {
+            final long bytes;
+            try {
+                bytes = storageService.demoteValue(key);
+            } catch (IOException e) {
+                log.warn("Failed to move the value to the cold folder", "key", key, "error", e.getMessage());
+                continue;
+            }
+            if (bytes == 0) continue;
+
+            ++moved;
+            passBytes += bytes;
+            if (bytesPerSecond <= 0) continue;
+            final long ahead = passStart + passBytes * 1000 / bytesPerSecond - System.currentTimeMillis();
+            if (ahead > 0) Thread.sleep(ahead);
+        }
+
+        Metrics.recordSince("tier.pass", start);
+        if (moved > 0) log.info("Moved values to the cold folder", "values", moved, "bytes", passBytes);
+    }
+}
@@ -1,17 +1,22 @@
 package server.storage;
 
 import server.Constants;
+import server.logging.Logger;
 
 import java.io.*;
 
 public class TombstoneManager implements Runnable {
+    private static final Logger log = Logger.get("storage");
+
     private final File tombstoneFolder;
     private final String dbFolder;
     private final String tombstoneFolderPath;
+    private final StorageService storageService;
 
-    public TombstoneManager(String dbFolder) {
-        this.tombstoneFolderPath = dbFolder + "tombstones/";
-        this.dbFolder = dbFolder;
+    public TombstoneManager(StorageService storageService) {
+        this.storageService = storageService;
+        this.dbFolder = storageService.getDbFolder();
+        this.tombstoneFolderPath = storageService.getTombstoneFolder();
         this.tombstoneFolder = new File(tombstoneFolderPath);
     }
 
@@ -32,24 +37,29 @@ public class TombstoneManager implements Runnable {
                     String tombstonePath = tombstoneFolderPath + file.getName();
                     long timestamp = getTimestamp(tombstonePath);
 
-                    if (System.currentTimeMillis() - timestamp > Constants.tombstoneExpirationMS) {
+                    // Tombstones hold the version of the delete, which starts with the time of the delete
+                    if (System.currentTimeMillis() - HybridClock.physicalTime(timestamp) > Constants.tombstoneExpirationMS) {
 
                         String realFilePath = dbFolder + file.getName();
                         synchronized (realFilePath.intern()) {
-                            File realFile = new File(realFilePath);
+                            File realFile = storageService.getValuePath(file.getName()).toFile();
                             if (!realFile.exists()) {
-                                System.out.println("File corresponding to the tombstone does not exist: " + realFile.getName());
+                                log.warn("File corresponding to the tombstone does not exist", "key", realFile.getName());
                                 break; // It's possible to receive a delete request before the respective put request
                             }
-                            if (!realFile.delete()) System.out.println("Error deleting real file: "+ realFile.getName());
+                            // A value put again after the delete outlives the tombstone
+                            // Also releases the chunks of a chunked value
+                            if (storageService.getValueVersion(realFile.getName()) < timestamp &&
+                                    !storageService.deleteValueFile(realFile.getName()))
+                                log.warn("Error deleting real file", "key", realFile.getName());
                         }
 
                         synchronized (tombstonePath.intern()) {
-                            if (!file.delete()) System.out.println("Error deleting tombstone file: " + file.getName());
+                            if (!file.delete()) log.warn("Error deleting tombstone file", "key", file.getName());
                         }
                     }
                 } catch (IOException e) {
-                    System.out.println("Error opening tombstone file in manager: " + file.getName());
+                    log.warn("Error opening tombstone file in manager", "key", file.getName());
                 }
             }
         }
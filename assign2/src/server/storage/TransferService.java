@@ -1,190 +1,585 @@
 package server.storage;
 
+import common.BatchCodec;
 import common.Message;
+import common.MessageTypes;
 import common.Sender;
 import server.Constants;
+import server.logging.Logger;
+import server.metrics.Metrics;
 import common.Utils;
-import server.cluster.MembershipService;
+import server.cluster.MembershipView;
 import server.cluster.Node;
+import server.cluster.NodeLoad;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
 
 public class TransferService {
+    private static final Logger log = Logger.get("transfer");
+
+    /**
+     * Versions of a file listed by another node
+     * @param version version of the value, -1 if it could not be read
+     * @param tombstone version of the delete, 0 if the file has no tombstone
+     * @param fragment index of the fragment the node stores, -1 if the value is not erasure-coded
+     */
+    private record ListedFile(long version, long tombstone, int fragment) {}
+
     private final StorageService storageService;
+    private final Supplier<Map<String, NodeLoad>> loads;
     private final Node node;
-    public TransferService(StorageService storageService, Node node) {
+    private final long rebalanceBytesPerSecond;
+
+    /**
+     * @param loads last load advertised by each node, to fetch files from the least loaded ones
+     */
+    public TransferService(StorageService storageService, Supplier<Map<String, NodeLoad>> loads, Node node) {
         this.storageService = storageService;
+        this.loads = loads;
         this.node = node;
+        this.rebalanceBytesPerSecond = Long.getLong("store.rebalanceRate", Constants.rebalanceBytesPerSecond);
     }
 
+    /**
+     * Fetches the files this node is a replica of. The nodes that stop being replicas of them drop their copies
+     * when they rebalance, once this node has them.
+     */
     public void join() {
-        // Cluster is not fulfilling the replication factor -> replicate all files
-        if (Constants.replicationFactor >= storageService.getNumberOfNodes()) {
-            Node curNode = storageService.getNextNode(this.node);
-            boolean copyOwnFiles = true;
-            while (!curNode.getId().equals(this.node.getId())) {
-                ArrayList<String> curNodeFiles = this.getNodeFileNames(curNode);
-                if (copyOwnFiles) {
-                    ArrayList<String> filesToTransfer = filterResponsibleFiles(curNodeFiles, this.node);
-                    getFiles(filesToTransfer, curNode, false);
-                    copyOwnFiles = false;
-                }
-
-                ArrayList<String> filesToTransfer = filterResponsibleFiles(curNodeFiles, curNode);
-                getFiles(filesToTransfer, curNode, false);
-                curNode = storageService.getNextNode(curNode);
-            }
+        final long start = System.nanoTime();
+        joinTransfers();
+        Metrics.recordSince("transfer.join", start);
+    }
+
+    private void joinTransfers() {
+        // Files kept from before the node left are only fetched again if they changed since
+        fetchReplicatedFiles(storageService.getView());
+    }
+
+    public void leave() {
+        final long start = System.nanoTime();
+        leaveTransfers();
+        Metrics.recordSince("transfer.leave", start);
+    }
+
+    /**
+     * Sends each file to the replicas it has once this node is out of the ring
+     */
+    private void leaveTransfers() {
+        // If there are less than replicationFactor nodes left then the nodes already have all the files
+        if (Constants.replicationFactor >= storageService.getNumberOfNodes())
             return;
+
+        final MembershipView view = storageService.getView().withoutNode(this.node.getId());
+        final List<String> replicatedFiles = new ArrayList<>();
+        for (String fileName : storageService.getFiles()) {
+            // The fragment of this node goes to the holder that takes its place
+            if (storageService.getFragmentIndex(fileName) >= 0) repairStripe(fileName, view, storageService.getView());
+            else replicatedFiles.add(fileName);
+        }
+        for (Map.Entry<Node, ArrayList<String>> transfer : planTransfers(replicatedFiles, view).entrySet()) {
+            for (String fileName : filterUnsentFiles(transfer.getValue(), transfer.getKey()))
+                sendFile(fileName, transfer.getKey());
         }
+    }
+
+    /**
+     * Recovers from a crash by updating the node's files and deleting invalid ones. Incomplete writes were
+     * already discarded when the storage started, so only the files missing locally, or with writes or deletes
+     * newer than the local ones, are fetched.
+     */
+    public void recoverFromCrash() {
+        final long start = System.nanoTime();
+        recoverTransfers();
+        Metrics.recordSince("transfer.recover", start);
+    }
 
-        // Transfer replicas to the new node (including own files)
-        Node responsibleNode = this.node;
-        Node replicaNode = this.node;
-        for (int i = 0; i < Constants.replicationFactor; ++i)
-            replicaNode = this.storageService.getNextNode(replicaNode);
+    private void recoverTransfers() {
+        if (storageService.getNumberOfNodes() == 1) return;
 
-        for (int i = 0; i < Constants.replicationFactor; ++i) {
-            ArrayList<String> replicaNodeFiles = this.getNodeFileNames(replicaNode);
-            ArrayList<String> filesToReplicate = filterResponsibleFiles(replicaNodeFiles, responsibleNode);
-            getFiles(filesToReplicate, replicaNode, true);
+        Set<String> validFiles = fetchReplicatedFiles(storageService.getView());
 
-            replicaNode = this.storageService.getPreviousNode(replicaNode);
-            responsibleNode = this.storageService.getPreviousNode(responsibleNode);
+        // delete invalid files. Fragments are kept, their holders are not the replicas of the key
+        List<String> allFiles = storageService.getFiles();
+        for (String file : allFiles) {
+            if (!validFiles.contains(file) && storageService.getFragmentIndex(file) < 0)
+                storageService.deleteFilePermanently(file);
         }
     }
 
-    public void leave() {
-        // If there are less than replicationFactor nodes left then the nodes already have all the files
-        if (Constants.replicationFactor >= storageService.getNumberOfNodes())
-            return;
+    /**
+     * Moves the files whose replicas changed from one view of the ring to the next. The first replica of a key
+     * that is still in the ring sends it to the replicas that were added, and a node that is no longer a replica
+     * sends it to all of them, then drops its copy once they have it. Files are sent at store.rebalanceRate bytes
+     * per second (0 does not limit them), so rebalancing does not compete with requests.
+     * Erasure-coded keys are placed again when their holders change: a node that is no longer a holder hands its
+     * fragment to a new one, and the first old holder still in the ring rebuilds the fragments of the holders
+     * that left.
+     * @return true if every file was moved, false if the pass should be retried
+     */
+    public boolean rebalance(MembershipView previous, MembershipView current) throws InterruptedException {
+        final long start = System.nanoTime();
+        final String ownId = this.node.getId();
+        final Map<Node, ArrayList<String>> transfers = new LinkedHashMap<>();
+        final ArrayList<String> droppedFiles = new ArrayList<>();
+        final ArrayList<String> stripes = new ArrayList<>();
+
+        for (String fileName : storageService.getFiles()) {
+            final ErasureCode.Fragment fragment = storageService.readFragmentHeader(fileName);
+            if (fragment != null) {
+                final List<Node> oldHolders = previous.getReplicas(fileName, fragment.width());
+                final List<Node> newHolders = current.getReplicas(fileName, fragment.width());
+                final boolean isHolder = MembershipView.containsNode(newHolders, ownId);
+                if (!isHolder) droppedFiles.add(fileName);
+                if (!isHolder || (ownId.equals(getSender(oldHolders, current))
+                        && oldHolders.stream().anyMatch(holder -> !current.contains(holder.getId()))))
+                    stripes.add(fileName);
+                continue;
+            }
 
-        File folder = new File(storageService.getDbFolder());
-        ArrayList<String> folderFiles = new ArrayList<>(List.of(Objects.requireNonNull(folder.list())));
+            final List<Node> oldReplicas = previous.getReplicas(fileName);
+            final List<Node> newReplicas = current.getReplicas(fileName);
+            final boolean isReplica = MembershipView.containsNode(newReplicas, ownId);
+            if (!isReplica) droppedFiles.add(fileName);
+            else if (!ownId.equals(getSender(oldReplicas, current))) continue;
 
-        Node curNode = this.node;
-        Node receivingNode = curNode;
+            for (Node replica : newReplicas) {
+                if (replica.getId().equals(ownId)) continue;
+                if (isReplica && MembershipView.containsNode(oldReplicas, replica.getId())) continue;
+                transfers.computeIfAbsent(replica, n -> new ArrayList<>()).add(fileName);
+            }
+        }
 
-        for (int i = 0; i < Constants.replicationFactor; ++i)
-            receivingNode = this.storageService.getNextNode(receivingNode);
+        final int planned = transfers.values().stream().mapToInt(List::size).sum() + stripes.size();
+        if (planned == 0 && droppedFiles.isEmpty()) return true;
+        log.info("Rebalancing the ring", "version", current.version(), "files", planned, "nodes", transfers.size(),
+                "dropped", droppedFiles.size());
+
+        final Set<String> unsentFiles = new HashSet<>();
+        final long passStart = System.currentTimeMillis();
+        long passBytes = 0;
+        for (String fileName : stripes) {
+            long sent = repairStripe(fileName, current, previous);
+            if (sent < 0) unsentFiles.add(fileName);
+            else passBytes = pace(passStart, passBytes, sent);
+        }
+        for (Map.Entry<Node, ArrayList<String>> transfer : transfers.entrySet()) {
+            for (String fileName : filterUnsentFiles(transfer.getValue(), transfer.getKey())) {
+                long sent = sendFile(fileName, transfer.getKey());
+                if (sent < 0) unsentFiles.add(fileName);
+                else passBytes = pace(passStart, passBytes, sent);
+            }
+        }
 
-        for (int i = 0; i < Constants.replicationFactor; ++i) {
-            ArrayList<String> filesToTransfer = filterResponsibleFiles(folderFiles, curNode);
-            sendNodeFiles(filesToTransfer, receivingNode);
-            curNode = storageService.getPreviousNode(curNode);
-            receivingNode = storageService.getPreviousNode(receivingNode);
+        int dropped = 0;
+        for (String fileName : droppedFiles) {
+            // The ring may have changed again and made this node a replica
+            if (unsentFiles.contains(fileName) || isHolder(fileName, storageService.getView())) continue;
+            storageService.deleteFilePermanently(fileName);
+            ++dropped;
         }
+
+        Metrics.add("rebalance.dropped", dropped);
+        Metrics.recordSince("transfer.rebalance", start);
+        log.info("Rebalanced the ring", "version", current.version(), "bytes", passBytes, "dropped", dropped,
+                "failed", unsentFiles.size());
+        return unsentFiles.isEmpty();
     }
 
     /**
-     * Recovers from a crash by updating the node's files and deleting invalid ones
+     * Waits as long as needed to keep the pass under store.rebalanceRate bytes per second
+     * @return bytes sent in the pass so far
      */
-    public void recoverFromCrash() {
-        if (storageService.getNumberOfNodes() == 1) return;
+    private long pace(long passStart, long passBytes, long sent) throws InterruptedException {
+        Metrics.add("rebalance.bytes", sent);
+        passBytes += sent;
+        if (rebalanceBytesPerSecond <= 0) return passBytes;
+        long ahead = passStart + passBytes * 1000 / rebalanceBytesPerSecond - System.currentTimeMillis();
+        if (ahead > 0) Thread.sleep(ahead);
+        return passBytes;
+    }
 
-        // Copy own files
-        Node nextNode = storageService.getNextNode(this.node);
-        ArrayList<String> nextNodeFiles = this.getNodeFileNames(nextNode);
-        ArrayList<String> filesToTransfer = filterResponsibleFiles(nextNodeFiles, this.node);
+    /**
+     * @return true if this node is a replica of the key in the view, or one of its holders if it stores a fragment
+     */
+    private boolean isHolder(String fileName, MembershipView view) {
+        final ErasureCode.Fragment fragment = storageService.readFragmentHeader(fileName);
+        if (fragment == null) return view.isReplica(fileName, this.node.getId());
+        return MembershipView.containsNode(view.getReplicas(fileName, fragment.width()), this.node.getId());
+    }
 
-        List<String> validFiles = new ArrayList<>(filesToTransfer);
-        getFiles(filesToTransfer, nextNode, false);
+    /**
+     * Places the fragments of an erasure-coded key on its holders in the view, so that each holder stores a
+     * fragment of the latest write with an index of its own. Holders that lack one get the fragment of this node
+     * if its index is missing, and otherwise one rebuilt from any k fragments of the write. A deleted key only
+     * needs its tombstone on the holders.
+     * @param sources other view whose holders may store fragments of the key
+     * @return number of bytes sent, -1 if a holder could not be given its fragment
+     */
+    long repairStripe(String key, MembershipView view, MembershipView sources) {
+        final ValueFile.Contents local = storageService.readFragment(key);
+        final ErasureCode.Fragment own;
+        try {
+            own = local == null ? null : ErasureCode.parse(local.value());
+        } catch (IOException e) {
+            return -1;
+        }
+        final ErasureCode erasureCode = storageService.getErasureCode();
+        final int width = own != null ? own.width() : erasureCode.width();
+        if (width == 0) return -1;
+
+        // The fragment each holder stores, and the latest write and delete any of them knows of
+        final List<Node> holders = view.getReplicas(key, width);
+        final Map<Node, ListedFile> listings = new LinkedHashMap<>();
+        long version = local == null ? 0 : local.version();
+        long tombstone = storageService.getTombstoneVersion(key);
+        for (Node holder : holders) {
+            if (holder.getId().equals(this.node.getId())) continue;
+            ListedFile listed = getNodeFiles(holder, List.of(key)).get(key);
+            if (listed == null) continue;
+            listings.put(holder, listed);
+            if (listed.fragment() >= 0) version = Math.max(version, listed.version());
+            tombstone = Math.max(tombstone, listed.tombstone());
+        }
+        if (version == 0) return -1;
+
+        long sent = 0;
+        if (tombstone >= version) {
+            if (local == null) return 0;
+            for (Node holder : holders) {
+                ListedFile listed = listings.get(holder);
+                if (holder.getId().equals(this.node.getId()) || (listed != null && listed.tombstone() >= tombstone))
+                    continue;
+                long bytes = sendFile(key, holder);
+                if (bytes < 0) return -1;
+                sent += bytes;
+            }
+            return sent;
+        }
 
-        // get replicas from previous replicationFactor nodes
-        Node curNode = storageService.getPreviousNode(this.node);
-        for (int i = 0; i < Constants.replicationFactor - 1; ++i) {
-            if (curNode.getId().equals(this.node.getId())) break;
+        final Map<Integer, Node> placed = new HashMap<>();
+        final List<Node> lacking = new ArrayList<>();
+        for (Node holder : holders) {
+            final int index;
+            if (holder.getId().equals(this.node.getId()))
+                index = own != null && local.version() == version ? own.index() : -1;
+            else {
+                ListedFile listed = listings.get(holder);
+                index = listed != null && listed.version() == version ? listed.fragment() : -1;
+            }
+            if (index < 0 || placed.containsKey(index)) lacking.add(holder);
+            else placed.put(index, holder);
+        }
+        if (lacking.isEmpty()) return 0;
+
+        final List<Integer> missing = new ArrayList<>();
+        for (int index = 0; index < width; ++index) if (!placed.containsKey(index)) missing.add(index);
+
+        final List<ValueCodec.Encoded> fragments = new ArrayList<>();
+        final boolean hasOwn = own != null && local.version() == version;
+        if (hasOwn && missing.remove((Integer) own.index())) fragments.add(local.value());
+        // The rebuilt fragments expire with the write, as the holders of its other fragments store it
+        long expiresAt = hasOwn ? local.expiresAt() : 0;
+        if (fragments.size() < lacking.size()) {
+            final Set<Node> peers = new LinkedHashSet<>(holders);
+            peers.addAll(sources.getReplicas(key, width));
+            final int needed = own != null ? own.dataFragments() : erasureCode.dataFragments();
+            final StorageService.CollectedFragments collected = storageService.collectFragments(key,
+                    hasOwn ? own : null, peers, version, needed);
+            if (collected.fragments().size() < needed) {
+                log.warn("Not enough fragments to rebuild the key", "key", key, "fragments",
+                        collected.fragments().size());
+                return -1;
+            }
+            if (!hasOwn) expiresAt = collected.expiresAt();
+            try {
+                fragments.addAll(ErasureCode.rebuild(collected.fragments(),
+                        missing.subList(0, lacking.size() - fragments.size())));
+            } catch (IOException e) {
+                log.warn("Could not rebuild the fragments of the key", "key", key, "error", e.getMessage());
+                return -1;
+            }
+            Metrics.increment("erasure.rebuilds");
+        }
 
-            ArrayList<String> curNodeFiles = this.getNodeFileNames(curNode);
-            filesToTransfer = filterResponsibleFiles(curNodeFiles, curNode);
-            validFiles.addAll(filesToTransfer);
+        for (int i = 0; i < lacking.size(); ++i) {
+            long bytes = sendFragment(key, fragments.get(i), version, expiresAt, lacking.get(i));
+            if (bytes < 0) return -1;
+            sent += bytes;
+        }
+        return sent;
+    }
 
-            getFiles(filesToTransfer, curNode, false);
-            curNode = storageService.getPreviousNode(curNode);
+    /**
+     * @return number of bytes sent, -1 if the node did not store the fragment
+     */
+    private long sendFragment(String key, ValueCodec.Encoded fragment, long version, long expiresAt, Node holder) {
+        if (holder.getId().equals(this.node.getId()))
+            return storageService.saveFragment(key, fragment, version, expiresAt).getAction().equals("ok") ? 0 : -1;
+        try {
+            Message msg = ExpiryIndex.withExpiry(
+                    storageService.buildSaveFileMessage(key, 0, fragment, version, ValueCodec.accepted), expiresAt);
+            Message reply = new Message(Sender.sendTCPMessage(msg.toBytes(), holder.getId(), holder.getPort()));
+            if (reply.getAction().equals("ok")) return msg.getBody().length;
+            log.warn("Node did not store the fragment", "key", key, "node", holder.getId());
+        } catch (IOException e) {
+            log.warn("Could not send the fragment to node", "key", key, "node", holder.getId());
         }
+        return -1;
+    }
 
-        // delete invalid files
-        List<String> allFiles = storageService.getFiles();
-        for (String file : allFiles) {
-            if (!validFiles.contains(file)) storageService.deleteFilePermanently(file);
+    /**
+     * @return id of the node that sends a key to its new replicas: its first replica that is still in the ring
+     */
+    private static String getSender(List<Node> oldReplicas, MembershipView current) {
+        for (Node replica : oldReplicas)
+            if (current.contains(replica.getId())) return replica.getId();
+        return null;
+    }
+
+    /**
+     * @return the files each node other than this one is a replica of in the view
+     */
+    private Map<Node, ArrayList<String>> planTransfers(List<String> fileNames, MembershipView view) {
+        final Map<Node, ArrayList<String>> transfers = new LinkedHashMap<>();
+        for (String fileName : fileNames) {
+            for (Node replica : view.getReplicas(fileName)) {
+                if (!replica.getId().equals(this.node.getId()))
+                    transfers.computeIfAbsent(replica, n -> new ArrayList<>()).add(fileName);
+            }
+        }
+        return transfers;
+    }
+
+    /**
+     * Fetches the files this node is a replica of from the other nodes, the least loaded ones first, so each file
+     * is usually fetched from the node with the most spare capacity.
+     * @return the files this node is a replica of
+     */
+    private Set<String> fetchReplicatedFiles(MembershipView view) {
+        final Set<String> replicatedFiles = new HashSet<>();
+        for (Node peer : getPeersByLoad(view)) {
+            Map<String, ListedFile> listedFiles = this.getNodeFiles(peer);
+            // Fragments are placed by their holders, only the deletes of the ones this node has are applied
+            for (Map.Entry<String, ListedFile> listed : listedFiles.entrySet()) {
+                if (listed.getValue().fragment() >= 0 && storageService.hasFile(listed.getKey())
+                        && listed.getValue().tombstone() > storageService.getTombstoneVersion(listed.getKey()))
+                    storageService.safeDelete(listed.getKey(), listed.getValue().tombstone());
+            }
+            listedFiles.values().removeIf(listed -> listed.fragment() >= 0);
+            ArrayList<String> filesToTransfer = filterReplicatedFiles(new ArrayList<>(listedFiles.keySet()), view);
+            replicatedFiles.addAll(filesToTransfer);
+            getFiles(filterStaleFiles(filesToTransfer, listedFiles), peer);
+        }
+        return replicatedFiles;
+    }
+
+    /**
+     * @return the nodes of the view other than this one, by increasing request rate
+     */
+    private List<Node> getPeersByLoad(MembershipView view) {
+        final Map<String, NodeLoad> nodeLoads = this.loads.get();
+        final List<Node> peers = new ArrayList<>(view.nodes().values());
+        peers.removeIf(peer -> peer.getId().equals(this.node.getId()));
+        peers.sort(Comparator.comparingLong(peer -> {
+            NodeLoad load = nodeLoads.get(peer.getId());
+            return load == null ? 0 : load.requestRate();
+        }));
+        return peers;
+    }
+
+    /**
+     * Fetches a value from the nodes that should hold it, to replace a corrupted copy
+     * @return true if the value is stored again
+     */
+    public boolean fetchFile(String key) {
+        final MembershipView view = storageService.getView();
+        if (isErasureCoded(key, view)) return repairStripe(key, view, view) >= 0 && storageService.hasFile(key);
+
+        for (Node holder : view.getReplicas(key)) {
+            if (storageService.hasFile(key)) break;
+            if (!holder.getId().equals(this.node.getId()))
+                getFiles(new ArrayList<>(List.of(key)), holder);
+        }
+        return storageService.hasFile(key);
+    }
+
+    /**
+     * @return true if a holder of the key lists it as a fragment
+     */
+    private boolean isErasureCoded(String key, MembershipView view) {
+        final int width = storageService.getErasureCode().width();
+        if (width == 0) return false;
+        for (Node holder : view.getReplicas(key, width)) {
+            if (holder.getId().equals(this.node.getId())) continue;
+            ListedFile listed = getNodeFiles(holder, List.of(key)).get(key);
+            if (listed != null) return listed.fragment() >= 0;
+        }
+        return false;
+    }
+
+    /**
+     * Fetches a chunk from the first node that has it. Any node may, so they are asked in ring order.
+     * @return true if the chunk is stored again
+     */
+    public boolean fetchChunk(String hash) {
+        final ChunkStore chunkStore = storageService.getChunkStore();
+        Node peer = storageService.getNextNode(this.node);
+        for (int i = 1; i < storageService.getNumberOfNodes() && !chunkStore.hasChunk(hash); ++i) {
+            try {
+                Message msg = new Message("REQ", MessageTypes.GET_CHUNKS.getCode(), BatchCodec.encodeKeys(List.of(hash)));
+                Message reply = new Message(Sender.sendTCPMessage(msg.toBytes(), peer.getId(), peer.getPort()));
+                if (reply.getAction().equals("ok"))
+                    storageService.saveChunks(BatchCodec.decodeValues(reply.getBody()));
+            } catch (IOException e) {
+                log.warn("Could not get the chunk from the node", "chunk", hash, "node", peer.getId());
+            }
+            peer = storageService.getNextNode(peer);
         }
+        return chunkStore.hasChunk(hash);
     }
 
     /**
      * Creates a Message request to save a file
      * @param fileName name of the file to be saved
-     * @return if everything went well Message with saveFile action,
-     *         otherwise Message with error action
+     * @param accept accept header of the receiving node, null if it is not known
+     * @return Message with saveFile action
      */
-    private Message createMsgFromFile(String fileName) throws IOException {
+    private Message createMsgFromFile(String fileName, String accept) throws IOException {
         final String filePath = storageService.getDbFolder() + fileName;
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-        final DataOutputStream dos = new DataOutputStream(out);
-        byte[] fileBytes;
+        ValueFile.Contents value;
 
         synchronized (filePath.intern()) {
-            File file = new File(filePath);
-            try (FileInputStream fis = new FileInputStream(file.getPath())) {
-                dos.write(file.getName().getBytes(StandardCharsets.UTF_8));
-                dos.write("\r\n".getBytes(StandardCharsets.UTF_8));
-                fileBytes = fis.readAllBytes();
+            File file = storageService.getValuePath(fileName).toFile();
+            try {
+                value = ValueFile.read(file.toPath());
+            } catch (ValueFile.CorruptedException e) {
+                // Never sent, the scrubber replaces it with the copy of a replica
+                storageService.quarantineValue(fileName, e);
+                throw e;
             } catch (IOException e) {
-                System.out.println("Error opening file in createMsgFromFile: " + file.getPath());
+                log.warn("Error opening file in createMsgFromFile", "path", file.getPath());
                 throw e;
             }
         }
 
+        long timestamp = 0;
         final String tombstonePath = storageService.getTombstoneFolder() + fileName;
         final File tombstone = new File(tombstonePath);
         if (tombstone.exists()) {
             try {
-                long timestamp = TombstoneManager.getTimestamp(tombstonePath);
-                dos.writeLong(timestamp);
+                timestamp = TombstoneManager.getTimestamp(tombstonePath);
             } catch (IOException e) {
-                System.out.println("Error opening tombstone in createMsgFromFile: " + tombstone.getPath());
+                log.warn("Error opening tombstone in createMsgFromFile", "path", tombstone.getPath());
             }
         }
 
+        // saveFile always reads a timestamp, 0 when the file has no tombstone. Fragments are sent as they are stored
+        return ExpiryIndex.withExpiry(storageService.buildSaveFileMessage(fileName, timestamp, value.value(),
+                value.version(), value.value().codec() == ValueCodec.Codec.FRAGMENT ? ValueCodec.accepted : accept),
+                value.expiresAt());
+    }
+
+    /**
+     * @return number of bytes sent, -1 if the node did not store the file
+     */
+    private long sendFile(String fileName, Node node) {
         try {
-            dos.write(fileBytes);
+            Message msg = createMsgFromFile(fileName, storageService.getPeerAccept(node.getId()));
+            Message reply = new Message(storageService.sendWithChunks(node, msg));
+            if (reply.getAction().equals("ok")) return msg.getBody().length;
+            log.warn("Node did not store the file", "key", fileName, "node", node.getId());
         } catch (IOException e) {
-            System.out.println("Error writing file bytes in createMsgFromFile: " + filePath);
+            log.warn("Could not send file to node", "key", fileName, "node", node.getId());
         }
-        return new Message("REQ", "saveFile", out.toByteArray());
+        return -1;
     }
 
     /**
-     * Sends the files in fileNames to a node
-     * @param fileNames array with the file names to send
-     * @param node node to which we want to send the files
+     * The key filter of the node rules out most of the files it does not have. Only the versions of the others
+     * are asked for, and files it has the same or a newer write and delete of are not sent.
+     * @return the files the node lacks or has an older version of, all of them if it did not send its filter
      */
-    private void sendNodeFiles(ArrayList<String> fileNames, Node node) {
+    private List<String> filterUnsentFiles(List<String> fileNames, Node node) {
+        final KeyFilter filter = getNodeFilter(node);
+        if (filter == null) return fileNames;
+
+        final List<String> unsentFiles = new ArrayList<>();
+        final List<String> maybeStored = new ArrayList<>();
         for (String fileName : fileNames) {
-            try {
-                Message msg = createMsgFromFile(fileName);
-                Sender.sendTCPMessage(msg.toBytes(), node.getId(), node.getPort());
-            } catch (IOException e) {
-                System.out.println("Could not send file to node: " + node.getId());
+            if (filter.mightContain(fileName)) maybeStored.add(fileName);
+            else unsentFiles.add(fileName);
+        }
+        if (maybeStored.isEmpty()) return unsentFiles;
+
+        final Map<String, ListedFile> listedFiles = getNodeFiles(node, maybeStored);
+        for (String fileName : maybeStored) {
+            ListedFile listed = listedFiles.get(fileName);
+            if (listed == null || listed.version() < storageService.getValueVersion(fileName)
+                    || listed.tombstone() < storageService.getTombstoneVersion(fileName)) {
+                unsentFiles.add(fileName);
+            } else {
+                Metrics.increment("transfer.skipped");
             }
         }
+        return unsentFiles;
     }
 
-    private void getFiles(ArrayList<String> fileNames, Node node, boolean deleteFiles) {
+    /**
+     * @return the key filter of a node, null if it could not be fetched
+     */
+    private KeyFilter getNodeFilter(Node node) {
+        try {
+            Message message = new Message("REQ", MessageTypes.GET_FILTER.getCode(), null);
+            Message reply = new Message(Sender.sendTCPMessage(message.toBytes(), node.getId(), node.getPort()));
+            if (!reply.getAction().equals("ok")) return null;
+            return KeyFilter.fromBytes(reply.getBody());
+        } catch (IOException e) {
+            log.warn("Error getting the key filter of node", "node", node.getId());
+            return null;
+        }
+    }
+
+    private void getFiles(ArrayList<String> fileNames, Node node) {
         for (String fileName : fileNames) {
             try {
-                Message msg = new Message("REQ", deleteFiles ? "getAndDelete" : "get",
-                        fileName.getBytes(StandardCharsets.UTF_8));
+                Message msg = new Message("REQ", MessageTypes.GET_REPLICA.getCode(),
+                        fileName.getBytes(StandardCharsets.UTF_8))
+                        .setHeader(ValueCodec.acceptHeader, ValueCodec.accepted);
 
                 byte[] response = Sender.sendTCPMessage(msg.toBytes(), node.getId(), node.getPort());
                 Message responseMsg = new Message(response);
                 if (!responseMsg.getAction().equals("ok")) continue;
 
-                storageService.saveFile(fileName, responseMsg.getBody());
+                // Compressed and chunked values are stored as they arrive, without decoding them
+                final boolean isEncoded = ValueCodec.codecEncoding.equals(responseMsg.getHeader(ValueCodec.encodingHeader));
+                final long version = HybridClock.fromHeader(responseMsg.getHeader(HybridClock.versionHeader));
+                final long expiresAt = ExpiryIndex.fromHeader(responseMsg.getHeader(ExpiryIndex.expiresHeader));
+                // A fragment is only stored by the holder of its index, which repairStripe gives it to
+                if (isEncoded && StorageService.getReplyCodec(responseMsg.getBody()) == ValueCodec.Codec.FRAGMENT)
+                    continue;
+                Message saveReply = storageService.saveFile(fileName, responseMsg.getBody(), isEncoded, version, expiresAt);
+                if (!saveReply.getAction().equals(MessageTypes.MISSING_CHUNKS.getCode())) continue;
+
+                // Only the chunks this node does not have yet are transferred
+                Message chunksMsg = new Message("REQ", MessageTypes.GET_CHUNKS.getCode(), saveReply.getBody());
+                Message chunksReply = new Message(Sender.sendTCPMessage(chunksMsg.toBytes(), node.getId(), node.getPort()));
+                if (!chunksReply.getAction().equals("ok")) continue;
+
+                storageService.saveChunks(BatchCodec.decodeValues(chunksReply.getBody()));
+                storageService.saveFile(fileName, responseMsg.getBody(), isEncoded, version, expiresAt);
             } catch (IOException e) {
-                System.out.println("Could not get the files from the node: " + node.getId());
+                log.warn("Could not get the file from the node", "key", fileName, "node", node.getId());
             }
         }
     }
@@ -192,33 +587,45 @@ public class TransferService {
     /**
      * gets the name of the files in a node by requesting it through TCP
      * @param node node from which we want to get the files' names
-     * @return array with the name of the files stored in node's database
+     * @return the files stored in node's database and their versions, in the order the node listed them
+     */
+    private Map<String, ListedFile> getNodeFiles(Node node) {
+        return getNodeFiles(node, List.of());
+    }
+
+    /**
+     * @param keys keys to list, all the files of the node if empty
      */
-    private ArrayList<String> getNodeFileNames(Node node) {
+    private Map<String, ListedFile> getNodeFiles(Node node, List<String> keys) {
+        final LinkedHashMap<String, ListedFile> files = new LinkedHashMap<>();
         try {
-            Message message = new Message("REQ", "getFiles", null);
+            Message message = new Message("REQ", "getFiles", keys.isEmpty() ? null : BatchCodec.encodeKeys(keys));
             Message reply = new Message(Sender.sendTCPMessage(message.toBytes(), node.getId(), node.getPort()));
-            if (!reply.getAction().equals("ok")) return new ArrayList<>();
+            if (!reply.getAction().equals("ok")) return files;
 
             final BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(reply.getBody())));
 
-            ArrayList<String> fileNames = new ArrayList<>();
             String line;
             while ((line = reader.readLine()) != null) {
-                fileNames.add(line);
+                // Each line is the key, the version of the value, the version of the delete and, if the value is
+                // erasure-coded, the index of the fragment
+                String[] fields = line.split(" ");
+                files.put(fields[0], fields.length < 3 ? new ListedFile(0, 0, -1) :
+                        new ListedFile(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                                fields.length < 4 ? -1 : Integer.parseInt(fields[3])));
             }
 
-            return fileNames;
-        } catch (IOException e) {
-            System.out.println("Error getting files from node: " + node.getId());
-            return new ArrayList<>();
+            return files;
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Error getting files from node", "node", node.getId());
+            return files;
         }
     }
 
-    private ArrayList<String> filterResponsibleFiles(ArrayList<String> fileNames, Node node) {
+    private ArrayList<String> filterReplicatedFiles(ArrayList<String> fileNames, MembershipView view) {
         final ArrayList<String> filteredFileNames = new ArrayList<>();
         for (String fileName : fileNames) {
-            if (storageService.getResponsibleNode(fileName).getId().equals(node.getId())
+            if (view.isReplica(fileName, this.node.getId())
                 && !fileName.equals("tombstones") && !fileName.equals("membership.log")
                 && !fileName.equals("membershipCounter.txt")) {
                     filteredFileNames.add(fileName);
@@ -228,4 +635,19 @@ public class TransferService {
         return filteredFileNames;
     }
 
+    /**
+     * @return the files missing locally, or whose value or delete is newer on the node that listed them
+     */
+    private ArrayList<String> filterStaleFiles(ArrayList<String> fileNames, Map<String, ListedFile> listedFiles) {
+        final ArrayList<String> staleFileNames = new ArrayList<>();
+        for (String fileName : fileNames) {
+            ListedFile listed = listedFiles.get(fileName);
+            if (!storageService.hasFile(fileName) || listed.version() > storageService.getValueVersion(fileName)
+                    || listed.tombstone() > storageService.getTombstoneVersion(fileName))
+                staleFileNames.add(fileName);
+        }
+
+        return staleFileNames;
+    }
+
 }
@@ -0,0 +1,54 @@
+package server.storage;
+
+import server.Constants;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copies of hot values owned by other nodes, kept in memory so this node serves them instead of redirecting.
+ * A copy expires hotKeyTtlMs after it was sent unless the owner sends it again, and the least recently read
+ * copies are dropped first once the copies take more than hotCacheBytes.
+ */
+class ValueCache {
+    /**
+     * @param tombstone version of the delete sent with the value, 0 if there was none
+     */
+    record Entry(ValueCodec.Encoded value, long version, long tombstone, long expiresAt) {}
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    /**
+     * @return the copy of the value, null if there is none or it expired
+     */
+    synchronized Entry get(String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null || entry.expiresAt() > System.currentTimeMillis()) return entry;
+
+        remove(key);
+        return null;
+    }
+
+    synchronized void put(String key, Entry entry) {
+        remove(key);
+        entries.put(key, entry);
+        bytes += entry.value().bytes().length;
+
+        final Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > Constants.hotCacheBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().value().bytes().length;
+            eldest.remove();
+        }
+    }
+
+    synchronized void remove(String key) {
+        final Entry entry = entries.remove(key);
+        if (entry != null) bytes -= entry.value().bytes().length;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+}
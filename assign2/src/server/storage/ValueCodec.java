@@ -0,0 +1,220 @@
+package server.storage;
+
+import server.Constants;
+import server.logging.Logger;
+import server.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of stored values. Each value records the codec it was stored with, so values written with
+ * different settings can live side by side, and peers exchange the stored bytes as they are.
+ * Values smaller than compressionThreshold, or that do not shrink by at least an eighth, are stored raw.
+ * The codec is read from the store.compression system property (none or deflate).
+ */
+public class ValueCodec {
+    public enum Codec {
+        NONE(0, "none"),
+        DEFLATE(1, "deflate"),
+        CHUNKED(2, "chunked"), // The bytes are a ChunkStore manifest
+        FRAGMENT(3, "fragment"); // The bytes are an ErasureCode fragment
+
+        private final int id;
+        private final String code;
+
+        Codec(int id, String code) {
+            this.id = id;
+            this.code = code;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        static Codec fromId(int id) throws IOException {
+            for (Codec codec : values()) if (codec.id == id) return codec;
+            throw new IOException("Unknown codec " + id);
+        }
+    }
+
+    /**
+     * A value as it is stored
+     * @param rawLength length of the value once decoded
+     */
+    public record Encoded(Codec codec, int rawLength, byte[] bytes) {}
+
+    private static final Logger log = Logger.get("storage");
+
+    // Deflater and Inflater hold native buffers, so each thread reuses its own
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Deflater> archiveDeflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * Sent by nodes with every reply, lists the codecs they can decode
+     */
+    public static final String acceptHeader = "accept";
+    public static final String accepted = Codec.DEFLATE.getCode() + "," + Codec.CHUNKED.getCode() + "," +
+            Codec.FRAGMENT.getCode();
+    /**
+     * Set to codecEncoding when the values in a body are written by write instead of decoded
+     */
+    public static final String encodingHeader = "encoding";
+    public static final String codecEncoding = "codec";
+
+    private final Codec codec;
+
+    public ValueCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    public static Codec configuredCodec() {
+        String codec = System.getProperty("store.compression", Constants.defaultCompression);
+        for (Codec candidate : List.of(Codec.NONE, Codec.DEFLATE)) {
+            if (candidate.getCode().equalsIgnoreCase(codec.trim())) return candidate;
+        }
+
+        log.warn("Unknown compression codec, using the default", "codec", codec);
+        return Codec.DEFLATE;
+    }
+
+    public Encoded encode(byte[] value) {
+        if (codec == Codec.NONE || value.length < Constants.compressionThreshold)
+            return new Encoded(Codec.NONE, value.length, value);
+
+        final byte[] compressed = deflate(value, deflaters.get());
+        Metrics.add("codec.rawBytes", value.length);
+        if (compressed.length > value.length - value.length / 8) {
+            Metrics.add("codec.storedBytes", value.length);
+            return new Encoded(Codec.NONE, value.length, value);
+        }
+
+        Metrics.add("codec.storedBytes", compressed.length);
+        return new Encoded(codec, value.length, compressed);
+    }
+
+    /**
+     * Compresses a value again at the best deflate level, for values that are rarely read. Chunked values and
+     * fragments are kept as they are, since their chunks are shared with other values and their shards are coded.
+     * @return the smaller of the recompressed value and the value as it was stored
+     */
+    public static Encoded archive(Encoded encoded) throws IOException {
+        if (encoded.codec() == Codec.CHUNKED || encoded.codec() == Codec.FRAGMENT ||
+                encoded.rawLength() < Constants.compressionThreshold) return encoded;
+
+        final byte[] compressed = deflate(decode(encoded), archiveDeflaters.get());
+        if (compressed.length >= encoded.bytes().length) return encoded;
+        return new Encoded(Codec.DEFLATE, encoded.rawLength(), compressed);
+    }
+
+    /**
+     * Chunked values are decoded by the ChunkStore, which has their chunks
+     */
+    public static byte[] decode(Encoded encoded) throws IOException {
+        return switch (encoded.codec()) {
+            case NONE -> encoded.bytes();
+            case DEFLATE -> inflate(encoded.bytes(), encoded.rawLength());
+            case CHUNKED -> throw new IOException("Chunked values are decoded by the chunk store");
+            case FRAGMENT -> throw new IOException("Fragments are decoded from the fragments of the other holders");
+        };
+    }
+
+    /**
+     * @return the accept header without the codec
+     */
+    public static String withoutCodec(String acceptHeader, Codec codec) {
+        if (acceptHeader == null) return null;
+
+        List<String> codecs = new ArrayList<>(Arrays.asList(acceptHeader.split(",")));
+        codecs.remove(codec.getCode());
+        return String.join(",", codecs);
+    }
+
+    /**
+     * @param acceptHeader accept header of a peer, null if it did not send one
+     * @return true if the peer can decode values stored with the codec
+     */
+    public static boolean accepts(String acceptHeader, Codec codec) {
+        if (codec == Codec.NONE) return true;
+        return acceptHeader != null && Arrays.asList(acceptHeader.split(",")).contains(codec.getCode());
+    }
+
+    /**
+     * Wire form of a value exchanged between peers: codec id, decoded length, checksum and the stored bytes.
+     * The checksum is the one of the value file, so a value is checked from the disk of one node to the disk of the other.
+     */
+    public static void write(DataOutputStream dos, Encoded encoded) throws IOException {
+        dos.writeByte(encoded.codec().getId());
+        dos.writeInt(encoded.rawLength());
+        dos.writeInt(ValueFile.checksum(encoded.bytes()));
+        dos.write(encoded.bytes());
+    }
+
+    /**
+     * Reads a value written by write, taking the rest of the stream
+     * @throws IOException if the value does not match its checksum
+     */
+    public static Encoded read(DataInputStream dis) throws IOException {
+        Codec codec = Codec.fromId(dis.readUnsignedByte());
+        int rawLength = dis.readInt();
+        int checksum = dis.readInt();
+        byte[] bytes = dis.readAllBytes();
+        if (ValueFile.checksum(bytes) != checksum) throw new IOException("Value does not match its checksum");
+        return new Encoded(codec, rawLength, bytes);
+    }
+
+    /**
+     * @return codec of a value written by write at the offset of bytes, without reading the value
+     */
+    public static Codec peekCodec(byte[] bytes, int offset) throws IOException {
+        if (bytes.length <= offset) throw new IOException("No value at offset " + offset);
+        return Codec.fromId(bytes[offset] & 0xFF);
+    }
+
+    private static byte[] deflate(byte[] value, Deflater deflater) {
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2 + 64);
+        final byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed, int rawLength) throws IOException {
+        final Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+
+        final byte[] value = new byte[rawLength];
+        try {
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(value, length, rawLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                length += inflated;
+            }
+            if (length != rawLength) throw new IOException("Truncated compressed value");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed value", e);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,261 @@
+package server.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * On-disk format of a stored value: a header with a magic number, the codec, the decoded length, the version of the
+ * write (a HybridClock value), the time the value expires at, the stored length and the CRC32C of the stored bytes,
+ * followed by the stored bytes. Version 3 files have no expiry time, which is read as 0 (never), version 2 files also
+ * have no write version, which is read as 0, and version 1 files also have no codec and no decoded length.
+ * Files are written to a temporary file and renamed over the final one, so a reader only ever sees a complete old or
+ * new file. The rename can still reach the disk before the data does, which the checksum catches.
+ * Files written before the header existed have no magic number and are read as they are, except empty files,
+ * which is what a crash leaves when the rename reached the disk and the data did not.
+ */
+class ValueFile {
+    private static final int magic = 0x4B564600; // "KVF" followed by the format version
+    private static final int magicMask = 0xFFFFFF00;
+    private static final int version = 4;
+    private static final int headerSizeV1 = 12;
+    private static final int headerSizeV2 = 17;
+    private static final int headerSizeV3 = 25;
+    static final int headerSize = 33;
+
+    /**
+     * A value file as it is stored
+     * @param version version of the write that stored the value, 0 if it was written before values had one
+     * @param expiresAt wall clock time in milliseconds after which the value is gone, 0 if it never expires
+     */
+    record Contents(ValueCodec.Encoded value, long version, long expiresAt) {
+        Contents(ValueCodec.Encoded value, long version) {
+            this(value, version, 0);
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && now >= expiresAt;
+        }
+    }
+
+    /**
+     * Header of a value file, read without the value
+     * @param length number of stored bytes
+     */
+    record Header(ValueCodec.Codec codec, long version, long expiresAt, int length) {
+    }
+
+    /**
+     * Thrown when a file is truncated or its value does not match the checksum
+     */
+    static class CorruptedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptedException(Path file, String reason) {
+            super(file.getFileName() + ": " + reason);
+        }
+    }
+
+    /**
+     * Writes a file that has no write version, such as a chunk
+     */
+    static void write(Path target, Path tempFolder, ValueCodec.Encoded value) throws IOException {
+        write(target, tempFolder, value, 0, 0);
+    }
+
+    /**
+     * Writes the value to tempFolder, then atomically replaces the target with it
+     * @param expiresAt wall clock time in milliseconds after which the value is gone, 0 if it never expires
+     */
+    static void write(Path target, Path tempFolder, ValueCodec.Encoded value, long writeVersion, long expiresAt)
+            throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(headerSize)
+                .putInt(magic | version)
+                .put((byte) value.codec().getId())
+                .putInt(value.rawLength())
+                .putLong(writeVersion)
+                .putLong(expiresAt)
+                .putInt(value.bytes().length)
+                .putInt(checksum(value.bytes()));
+
+        writeAtomically(target, tempFolder, header.array(), value.bytes());
+    }
+
+    /**
+     * Same temporary file and rename as values, for files without a header such as tombstones
+     */
+    static void writeAtomically(Path target, Path tempFolder, byte[]... parts) throws IOException {
+        // Values and tombstones share the folder and have the same names, so the writer thread is part of the name
+        final Path temp = tempFolder.resolve(target.getFileName() + "." + Thread.currentThread().getId());
+        try (OutputStream out = new FileOutputStream(temp.toFile())) {
+            for (byte[] part : parts) out.write(part);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the value as it is stored, without decoding it
+     * @throws CorruptedException if the file is truncated or the checksum does not match
+     */
+    static ValueCodec.Encoded readEncoded(Path file) throws IOException {
+        return read(file).value();
+    }
+
+    /**
+     * @return the value as it is stored and the version of its write
+     * @throws CorruptedException if the file is truncated or the checksum does not match
+     */
+    static Contents read(Path file) throws IOException {
+        final byte[] content;
+        try (FileInputStream fis = new FileInputStream(file.toFile())) {
+            content = fis.readAllBytes();
+        }
+        return parse(file, content);
+    }
+
+    /**
+     * Reads only the header, without checking the value against its checksum
+     * @return version of the write that stored the value, 0 if the file has none
+     */
+    static long readVersion(Path file) throws IOException {
+        final byte[] header = readHeader(file, 0);
+        return header == null ? 0 : ByteBuffer.wrap(header).getLong(9);
+    }
+
+    /**
+     * Reads only the header, without checking the value against its checksum
+     * @return time the value expires at, 0 if it never expires
+     */
+    static long readExpiry(Path file) throws IOException {
+        final byte[] header = readHeader(file, 0);
+        return header == null || headerSizeOf(header) < headerSize ? 0 : ByteBuffer.wrap(header).getLong(17);
+    }
+
+    /**
+     * Reads only the header and the first bytes of the value, without checking the value against its checksum
+     * @return the codec, the decoded length and the first valueBytes stored bytes, null if the file has no write
+     *         version in its header
+     */
+    static ValueCodec.Encoded readStart(Path file, int valueBytes) throws IOException {
+        final byte[] start = readHeader(file, valueBytes);
+        if (start == null) return null;
+
+        final ByteBuffer buffer = ByteBuffer.wrap(start);
+        return new ValueCodec.Encoded(ValueCodec.Codec.fromId(buffer.get(4)), buffer.getInt(5),
+                Arrays.copyOfRange(start, headerSizeOf(start), start.length));
+    }
+
+    /**
+     * @return the header and up to valueBytes bytes of the value, null if the header has no write version
+     */
+    private static byte[] readHeader(Path file, int valueBytes) throws IOException {
+        final byte[] start;
+        try (FileInputStream fis = new FileInputStream(file.toFile())) {
+            start = fis.readNBytes(headerSize + valueBytes);
+        }
+
+        final int size = headerSizeOf(start);
+        return size < headerSizeV3 || start.length < size ? null : start;
+    }
+
+    /**
+     * @return size of the header of a file that starts with the bytes, 0 if it has no header
+     */
+    private static int headerSizeOf(byte[] start) {
+        if (start.length < Integer.BYTES) return 0;
+        final int word = ByteBuffer.wrap(start).getInt(0);
+        if ((word & magicMask) != magic) return 0;
+        return switch (word & ~magicMask) {
+            case 1 -> headerSizeV1;
+            case 2 -> headerSizeV2;
+            case 3 -> headerSizeV3;
+            case version -> headerSize;
+            default -> 0;
+        };
+    }
+
+    /**
+     * Reads only the header and checks the file is as long as it says, which is what a crash before the data reached
+     * the disk breaks. The value is not checked against its checksum.
+     * @throws CorruptedException if the file is empty, its header is truncated or its length does not match
+     */
+    static Header readCheckedHeader(Path file) throws IOException {
+        final long fileSize = Files.size(file);
+        if (fileSize == 0) throw new CorruptedException(file, "empty file");
+        final byte[] start;
+        try (FileInputStream fis = new FileInputStream(file.toFile())) {
+            start = fis.readNBytes(headerSize);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(start);
+        if (start.length < headerSizeV1 || (buffer.getInt(0) & magicMask) != magic) // Written before the header existed
+            return new Header(ValueCodec.Codec.NONE, 0, 0, (int) fileSize);
+
+        final int fileVersion = buffer.getInt() & ~magicMask;
+        final int size = headerSizeOf(start);
+        if (size == 0) throw new CorruptedException(file, "unknown version " + fileVersion);
+        if (start.length < size) throw new CorruptedException(file, "truncated header");
+
+        final ValueCodec.Codec codec = fileVersion >= 2 ? ValueCodec.Codec.fromId(buffer.get()) : ValueCodec.Codec.NONE;
+        if (fileVersion >= 2) buffer.getInt(); // Decoded length
+        final long writeVersion = fileVersion >= 3 ? buffer.getLong() : 0;
+        final long expiresAt = fileVersion >= 4 ? buffer.getLong() : 0;
+        final int length = buffer.getInt();
+        if (size + (long) length != fileSize)
+            throw new CorruptedException(file, "expected " + length + " bytes, found " + (fileSize - size));
+        return new Header(codec, writeVersion, expiresAt, length);
+    }
+
+    /**
+     * @return whether the header of the file is complete and the file is as long as it says
+     */
+    static boolean hasValidLength(Path file) {
+        try {
+            readCheckedHeader(file);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Contents parse(Path file, byte[] content) throws IOException {
+        if (content.length == 0) throw new CorruptedException(file, "empty file");
+
+        final ByteBuffer buffer = ByteBuffer.wrap(content);
+        if (content.length < headerSizeV1 || (buffer.getInt(0) & magicMask) != magic) // Written before the header existed
+            return new Contents(new ValueCodec.Encoded(ValueCodec.Codec.NONE, content.length, content), 0);
+
+        final int fileVersion = buffer.getInt() & ~magicMask;
+        if (fileVersion > version) throw new CorruptedException(file, "unknown version " + fileVersion);
+        if (content.length < headerSizeOf(content)) throw new CorruptedException(file, "truncated header");
+
+        final ValueCodec.Codec codec = fileVersion >= 2 ? ValueCodec.Codec.fromId(buffer.get()) : ValueCodec.Codec.NONE;
+        final int rawLength = fileVersion >= 2 ? buffer.getInt() : -1;
+        final long writeVersion = fileVersion >= 3 ? buffer.getLong() : 0;
+        final long expiresAt = fileVersion >= 4 ? buffer.getLong() : 0;
+        final int length = buffer.getInt();
+        final int expectedChecksum = buffer.getInt();
+        if (length != buffer.remaining())
+            throw new CorruptedException(file, "expected " + length + " bytes, found " + buffer.remaining());
+
+        final byte[] value = new byte[length];
+        buffer.get(value);
+        if (checksum(value) != expectedChecksum) throw new CorruptedException(file, "checksum mismatch");
+
+        return new Contents(new ValueCodec.Encoded(codec, fileVersion >= 2 ? rawLength : length, value), writeVersion,
+                expiresAt);
+    }
+
+    /**
+     * CRC32C of the stored bytes, also sent with values exchanged between peers
+     */
+    static int checksum(byte[] value) {
+        final CRC32C crc = new CRC32C();
+        crc.update(value);
+        return (int) crc.getValue();
+    }
+}